@@ -1,6 +1,6 @@
 import pandas as pd
 import numpy as np
-from scipy.stats import ttest_rel, ttest_ind, pearsonr, linregress
+from scipy.stats import ttest_rel, ttest_ind, pearsonr, linregress, f, chi2
 import matplotlib.pyplot as plt
 import matplotlib.transforms as mtrans
 import seaborn as sns
@@ -8,6 +8,17 @@ import seaborn as sns
 df = pd.read_csv('results.csv')
 print(df.columns)
 
+# results.csv from the Java simulation (org.sleepandcognition.prosrand.Simulation) has the test statistics,
+# not their p-values, and no diversity measures
+if 'pvalue' not in df.columns:
+    continuous = df['var_type'] == 'continuous'
+    df['pvalue'] = 1.0
+    df.loc[continuous, 'pvalue'] = f.sf(df.loc[continuous, 'statistic'], df.loc[continuous, 'df1'],
+                                        df.loc[continuous, 'df2'])
+    tested = ~continuous & (df['df1'] > 0)
+    df.loc[tested, 'pvalue'] = chi2.sf(df.loc[tested, 'statistic'], df.loc[tested, 'df1'])
+has_rho = 'norm_rho' in df.columns
+
 df['is_bad'] = df['pvalue'] < 0.25
 
 print("Number of subjects per protocol:")
@@ -23,10 +34,11 @@ summ = df.groupby(['algorithm', 'n_vars', 'place_interval'])['pvalue'].mean()
 print("P values:")
 print(summ)
 
-summ = df.groupby(['algorithm', 'n_vars', 'place_interval'])['norm_rho'].mean()
+if has_rho:
+    summ = df.groupby(['algorithm', 'n_vars', 'place_interval'])['norm_rho'].mean()
 
-print("Normalized Rho:")
-print(summ)
+    print("Normalized Rho:")
+    print(summ)
 
 result1_filter = (df['n_vars']==1) & (df['place_interval']==4) & df['is_used'] & (df['n_groups'] <= 3)
 print(df[result1_filter])
@@ -157,29 +169,30 @@ print(r)
 print()
 print("all data:")
 print(df)
-print("diversity calculations")
-rho_results = df.drop_duplicates(subset=['algorithm', 'n', 'place_interval', 'n_vars', 'n_groups', 'exp', 'norm_rho']).copy()
-rho_results.drop(columns=['norm_rho_used', 'is_used', 'is_bad', 'var_name'], inplace=True)
-print(rho_results)
-filter_alt = (rho_results['algorithm'] == 'Alternating')
-filter_bal = (rho_results['algorithm'] == 'Balanced')
-m = pd.merge(rho_results[filter_alt], rho_results[filter_bal], on=['exp', 'n_vars', 'n_groups', 'place_interval', 'n'], suffixes=('_alt', '_bal'))
-print(m)
-print(m['norm_rho_alt'].describe())
-print(m['norm_rho_bal'].describe())
-s = m.groupby('n_vars')['norm_rho_bal'].describe()
-print(s)
-
-g = m.groupby('n_vars')['norm_rho_bal'].mean()
-print(g)
-
-fig, ax = plt.subplots()
-sns.boxplot(data=m, x='n_vars', y='norm_rho_bal', ax=ax)
-#ax.scatter(g.index, g)
-ax.set_xlabel("Number of Baseline Variables Submitted")
-ax.set_ylabel("$\\bar{R}$")
-fig.savefig('fig5.pdf')
-fig.savefig('fig5.png')
-r = pearsonr(m['n_vars'], m['norm_rho_bal'])
-print("Correlation, # variables vs. Rho-bar:")
-print(r)
+if has_rho:
+    print("diversity calculations")
+    rho_results = df.drop_duplicates(subset=['algorithm', 'n', 'place_interval', 'n_vars', 'n_groups', 'exp', 'norm_rho']).copy()
+    rho_results.drop(columns=['norm_rho_used', 'is_used', 'is_bad', 'var_name'], inplace=True)
+    print(rho_results)
+    filter_alt = (rho_results['algorithm'] == 'Alternating')
+    filter_bal = (rho_results['algorithm'] == 'Balanced')
+    m = pd.merge(rho_results[filter_alt], rho_results[filter_bal], on=['exp', 'n_vars', 'n_groups', 'place_interval', 'n'], suffixes=('_alt', '_bal'))
+    print(m)
+    print(m['norm_rho_alt'].describe())
+    print(m['norm_rho_bal'].describe())
+    s = m.groupby('n_vars')['norm_rho_bal'].describe()
+    print(s)
+
+    g = m.groupby('n_vars')['norm_rho_bal'].mean()
+    print(g)
+
+    fig, ax = plt.subplots()
+    sns.boxplot(data=m, x='n_vars', y='norm_rho_bal', ax=ax)
+    #ax.scatter(g.index, g)
+    ax.set_xlabel("Number of Baseline Variables Submitted")
+    ax.set_ylabel("$\\bar{R}$")
+    fig.savefig('fig5.pdf')
+    fig.savefig('fig5.png')
+    r = pearsonr(m['n_vars'], m['norm_rho_bal'])
+    print("Correlation, # variables vs. Rho-bar:")
+    print(r)
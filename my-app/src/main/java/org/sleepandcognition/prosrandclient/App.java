@@ -6,6 +6,7 @@ import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.util.Set;
 
 /**
  * Obviously this is not a full-fledged application of any kind. It does contain the bare minimum amount
@@ -29,7 +30,7 @@ public class App {
 
         RandomizerConnection() throws IOException {
             sock = getRandomizerSocket();
-            out = new PrintWriter(sock.getOutputStream(), true);
+            out = new PrintWriter(sock.getOutputStream(), false);
             in = new BufferedReader(new InputStreamReader(sock.getInputStream()));
         }
 
@@ -48,26 +49,101 @@ public class App {
         }
 
         void close() throws IOException {
+            out.flush();
             sock.close();
         }
     }
 
+    /* One connection, kept open and used for every request (see sendCommands) */
+    RandomizerConnection connection;
+
+    /*
+     * Commands that are safe to send again when the connection is lost before their reply came: they change
+     * nothing, or (GET) give the same answer however often they are sent. Not PUT, PLACE and the like, which may
+     * have been carried out already, and fail (or do it twice) if sent again.
+     */
+    static final Set<String> REPEATABLE_COMMANDS = Set.of("HELLO", "EXISTS", "COMMITTED", "GET", "STATS");
+
+    static boolean isRepeatable(String command) {
+        return REPEATABLE_COMMANDS.contains(command.split(" ", 2)[0].toUpperCase());
+    }
+
+    RandomizerConnection openConnection() throws IOException {
+        return new RandomizerConnection();
+    }
+
+    /*
+     * Sends the commands all at once (pipelined), then reads the replies, which come back in the same order.
+     * Servers since version 6 of the protocol keep the connection open for further commands. If the server has
+     * closed the connection (as older servers do after each reply), connects again and re-sends the commands that
+     * went unanswered, as long as they are repeatable (see REPEATABLE_COMMANDS). A command that is not, and may or
+     * may not have been carried out, is not sent again; nor is anything after it, and an IOException says which.
+     */
+    public String[] sendCommands(String... commands) throws IOException {
+        String[] replies = new String[commands.length];
+        int answered = 0;
+        // commands before this were sent, on this connection or one since lost
+        int sent = 0;
+        boolean reconnected = false;
+        while (answered < commands.length) {
+            if (answered < sent && !isRepeatable(commands[answered])) {
+                throw new IOException("Lost the connection to the randomization server; it may or may not have"
+                        + " carried out: " + commands[answered]);
+            }
+            if (connection == null) {
+                connection = openConnection();
+            }
+            int end = answered;
+            while (end < commands.length && (end >= sent || isRepeatable(commands[end]))) {
+                connection.out.print(commands[end] + "\n");
+                ++end;
+            }
+            sent = Math.max(sent, end);
+            connection.out.flush();
+            String reply;
+            while (answered < end && (reply = connection.in.readLine()) != null) {
+                replies[answered++] = reply.trim();
+                reconnected = false;
+            }
+            if (answered < end) {
+                connection.close();
+                connection = null;
+                if (reconnected) {
+                    throw new IOException("No reply from randomization server!");
+                }
+                reconnected = true;
+            }
+        }
+        return replies;
+    }
+
     public void submitScore(String subjectID, int score) throws IOException {
-        RandomizerConnection rc = new RandomizerConnection();
-        rc.out.println(String.format("PUT %s score=%d", subjectID, score));
-        String reply = rc.in.readLine().trim();
+        String reply = sendCommands(String.format("PUT %s score=%d", subjectID, score))[0];
         if (!reply.equals("OK")) {
             System.err.println(reply);
             throw new IOException("Unexpected reply from randomization server!");
         }
-        rc.close();
     }
 
     public String getStudyGroup(String subjectID) throws IOException {
-        RandomizerConnection rc = new RandomizerConnection();
-        rc.out.println(String.format("GET %s", subjectID));
-        String reply = rc.in.readLine().trim();
-        rc.close();
-        return reply;
+        return sendCommands(String.format("GET %s", subjectID))[0];
+    }
+
+    /* The groups of several subjects, for the price of one round trip */
+    public String[] getStudyGroups(String... subjectIDs) throws IOException {
+        String[] commands = new String[subjectIDs.length];
+        for (int i = 0; i < subjectIDs.length; ++i) {
+            commands[i] = String.format("GET %s", subjectIDs[i]);
+        }
+        return sendCommands(commands);
+    }
+
+    /* Call when done with the randomization server */
+    public void disconnect() throws IOException {
+        if (connection != null) {
+            connection.out.println("BYE");
+            connection.close();
+            connection = null;
+        }
     }
 }
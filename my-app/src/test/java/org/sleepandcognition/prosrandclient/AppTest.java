@@ -1,13 +1,89 @@
 package org.sleepandcognition.prosrandclient;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
 /**
  * Unit test for simple App.
  */
 public class AppTest {
+    ServerSocket serverSocket;
+    ExecutorService serverThread = Executors.newSingleThreadExecutor();
+
+    @BeforeEach
+    public void listen() throws IOException {
+        serverSocket = new ServerSocket(0);
+    }
+
+    @AfterEach
+    public void stopListening() throws IOException {
+        serverThread.shutdownNow();
+        serverSocket.close();
+    }
+
+    /* Connects to the test's server rather than a real randomizer */
+    private App client() {
+        return new App() {
+            @Override
+            RandomizerConnection openConnection() throws IOException {
+                return new RandomizerConnection() {
+                    @Override
+                    Socket getRandomizerSocket() throws IOException {
+                        return new Socket("127.0.0.1", serverSocket.getLocalPort());
+                    }
+                };
+            }
+        };
+    }
+
+    /*
+     * As an old server would, reads the first connection's requests (of which there are sentFirst), answers only
+     * the first, and closes it; then answers every request on the next one, until it is closed. Returns the
+     * requests received on that second connection.
+     */
+    private Future<List<String>> serveDroppingTheFirstConnection(int sentFirst) {
+        return serverThread.submit(() -> {
+            try (Socket first = serverSocket.accept()) {
+                BufferedReader in = new BufferedReader(new InputStreamReader(first.getInputStream()));
+                String request = in.readLine();
+                for (int i = 1; i < sentFirst; i++) {
+                    in.readLine();
+                }
+                PrintWriter out = new PrintWriter(first.getOutputStream(), true);
+                out.println("re " + request);
+            }
+            ArrayList<String> requests = new ArrayList<String>();
+            try (Socket second = serverSocket.accept()) {
+                BufferedReader in = new BufferedReader(new InputStreamReader(second.getInputStream()));
+                PrintWriter out = new PrintWriter(second.getOutputStream(), true);
+                String request;
+                while ((request = in.readLine()) != null) {
+                    requests.add(request);
+                    out.println("re " + request);
+                }
+            }
+            return requests;
+        });
+    }
 
     /**
      * Rigorous Test :-)
@@ -16,4 +92,38 @@ public class AppTest {
     public void shouldAnswerWithTrue() {
         assertTrue(true);
     }
+
+    @Test
+    public void sendsRepeatableCommandsAgainAfterTheConnectionIsLost() throws Exception {
+        Future<List<String>> resent = serveDroppingTheFirstConnection(3);
+        App app = client();
+        String[] replies = app.sendCommands("GET s1", "EXISTS s2", "GET s3");
+        assertArrayEquals(new String[] {"re GET s1", "re EXISTS s2", "re GET s3"}, replies);
+        app.connection.close();
+        assertEquals(Arrays.asList("EXISTS s2", "GET s3"), resent.get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void doesNotSendAChangeAgainThatMayHaveBeenMade() throws Exception {
+        Future<List<String>> resent = serveDroppingTheFirstConnection(3);
+        App app = client();
+        IOException lost =
+                assertThrows(IOException.class, () -> app.sendCommands("GET s1", "PLACE s2 score=1", "GET s3"));
+        assertTrue(lost.getMessage().contains("PLACE s2 score=1"), lost.getMessage());
+        // nothing after the PLACE either; the next request reconnects
+        assertArrayEquals(new String[] {"re GET s4"}, app.sendCommands("GET s4"));
+        app.connection.close();
+        assertEquals(Arrays.asList("GET s4"), resent.get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void sendsAgainOnlyWhatComesBeforeAChange() throws Exception {
+        Future<List<String>> resent = serveDroppingTheFirstConnection(4);
+        App app = client();
+        IOException lost = assertThrows(
+                IOException.class, () -> app.sendCommands("GET s1", "GET s2", "PUT s3 score=2", "GET s4"));
+        assertTrue(lost.getMessage().contains("PUT s3 score=2"), lost.getMessage());
+        app.connection.close();
+        assertEquals(Arrays.asList("GET s2"), resent.get(10, TimeUnit.SECONDS));
+    }
 }
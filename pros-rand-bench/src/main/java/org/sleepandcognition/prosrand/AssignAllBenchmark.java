@@ -0,0 +1,43 @@
+package org.sleepandcognition.prosrand;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/* Randomizer.assignAllSubjects() (the ASSIGN command) on a backlog of all the subjects, none yet assigned */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class AssignAllBenchmark extends CohortBenchmark {
+    /* 0 to score on one thread only; 1 to score on all cores whatever the backlog */
+    @Param({"0", "1"})
+    public int parallelScoringThreshold;
+
+    BalancingRandomizer randomizer;
+
+    @Setup(Level.Iteration)
+    public void setUp() throws Exception {
+        Cohort cohort = new Cohort(mix);
+        randomizer = cohort.randomizer(groups, new SubjectDatabase());
+        randomizer.setParallelScoringThreshold(parallelScoringThreshold);
+        cohort.addSubjects(randomizer, subjects);
+    }
+
+    @Benchmark
+    public void assignAllSubjects() throws Exception {
+        randomizer.assignAllSubjects();
+    }
+}
@@ -0,0 +1,48 @@
+package org.sleepandcognition.prosrand;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * BalancingRandomizer.assignAnySubjectAGroup(), the core of the balancing algorithm, with half the subjects
+ * already in groups and the other half waiting. Each call is preceded by one new subject arriving, so that the
+ * backlog stays the same size from one call to the next (as with a steady stream of PLACEs).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AssignmentBenchmark extends CohortBenchmark {
+    Cohort cohort;
+    BalancingRandomizer randomizer;
+
+    @Setup(Level.Iteration)
+    public void setUp() throws Exception {
+        cohort = new Cohort(mix);
+        randomizer = cohort.randomizer(groups, new SubjectDatabase());
+        cohort.addSubjects(randomizer, subjects);
+        for (int i = 0; i < subjects / 2; ++i) {
+            randomizer.assignAnySubjectAGroup();
+        }
+        randomizer.pendingChanges.clear();
+    }
+
+    @Benchmark
+    public void assignAnySubjectAGroup() throws Exception {
+        randomizer.addSubject(randomizer.subjectFromValues(cohort.nextID(), cohort.nextValues()));
+        randomizer.assignAnySubjectAGroup();
+        randomizer.pendingChanges.clear();
+    }
+}
@@ -0,0 +1,107 @@
+package org.sleepandcognition.prosrand;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/*
+ * A made-up cohort for the benchmarks: subjects with some continuous variables (c0, c1, ...; normally
+ * distributed scores) and some categorical ones (k0, k1, ...; three levels each, not equally likely),
+ * drawn from a generator with a fixed seed, so that every run of a benchmark, before and after a change,
+ * sees the same subjects in the same order.
+ *
+ * The mix of variables is given as "continuous/categorical", e.g. "2/1" for two continuous and one categorical.
+ */
+public class Cohort {
+    static final long SEED = 20130501L;
+    static final List<String> LEVELS = Arrays.asList("low", "mid", "high");
+
+    Random random = new Random(SEED);
+    int continuousCount;
+    int categoricalCount;
+    int subjectCount;
+
+    public Cohort(String mix) {
+        String[] counts = mix.split("/");
+        continuousCount = Integer.parseInt(counts[0]);
+        categoricalCount = Integer.parseInt(counts[1]);
+    }
+
+    public ProtocolSpec spec(int groupCount) {
+        ArrayList<VariableSpec> variableSpecs = new ArrayList<VariableSpec>();
+        for (int i = 0; i < continuousCount; ++i) {
+            VariableSpec spec = new VariableSpec();
+            spec.setName("c" + i);
+            spec.setType("continuous");
+            variableSpecs.add(spec);
+        }
+        for (int i = 0; i < categoricalCount; ++i) {
+            VariableSpec spec = new VariableSpec();
+            spec.setName("k" + i);
+            spec.setType("categorical");
+            spec.setLevels(LEVELS);
+            variableSpecs.add(spec);
+        }
+        ArrayList<String> groupNames = new ArrayList<String>();
+        for (int i = 0; i < groupCount; ++i) {
+            groupNames.add("G" + i);
+        }
+        ProtocolSpec spec = new ProtocolSpec();
+        spec.setGroupNames(groupNames);
+        spec.setVariableSpec(variableSpecs);
+        spec.setAlgorithm("Balanced");
+        return spec;
+    }
+
+    /* A quiet BalancingRandomizer for this cohort's variables, with no subjects yet */
+    public BalancingRandomizer randomizer(int groupCount, SubjectDatabase database)
+            throws IOException, InvalidDataException {
+        BalancingRandomizer randomizer = new BalancingRandomizer(spec(groupCount), database);
+        randomizer.setVerbosity(-1);
+        return randomizer;
+    }
+
+    /* Adds the given number of subjects, unassigned and unsaved, as if they had been PUT */
+    public void addSubjects(Randomizer randomizer, int count) throws IOException, InvalidDataException {
+        for (int i = 0; i < count; ++i) {
+            randomizer.addSubject(randomizer.subjectFromValues(nextID(), nextValues()));
+        }
+        randomizer.pendingChanges.clear();
+    }
+
+    public String nextID() {
+        return "s" + (++subjectCount);
+    }
+
+    /* Variable values for the next subject, as a client would send them */
+    public Map<String, String> nextValues() {
+        HashMap<String, String> values = new HashMap<String, String>();
+        for (int i = 0; i < continuousCount; ++i) {
+            double score = 50.0 + 10.0 * random.nextGaussian();
+            values.put("c" + i, String.format("%.1f", score));
+        }
+        for (int i = 0; i < categoricalCount; ++i) {
+            double p = random.nextDouble();
+            values.put("k" + i, LEVELS.get(p < 0.5 ? 0 : (p < 0.8 ? 1 : 2)));
+        }
+        return values;
+    }
+
+    /* The variable values as they follow the subject ID in a PUT (or PLACE) command line: name=value ... */
+    public static String commandValues(Map<String, String> values) {
+        StringBuilder words = new StringBuilder();
+        for (Iterator<Map.Entry<String, String>> it = values.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, String> entry = it.next();
+            if (words.length() > 0) {
+                words.append(' ');
+            }
+            words.append(entry.getKey()).append('=').append(entry.getValue());
+        }
+        return words.toString();
+    }
+}
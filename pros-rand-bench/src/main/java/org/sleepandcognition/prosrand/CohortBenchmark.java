@@ -0,0 +1,19 @@
+package org.sleepandcognition.prosrand;
+
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/* The parameters shared by the benchmarks: how many subjects, how many groups, and what mix of variables */
+@State(Scope.Thread)
+public abstract class CohortBenchmark {
+    @Param({"1000", "10000"})
+    public int subjects;
+
+    @Param({"2", "4"})
+    public int groups;
+
+    /* continuous/categorical variables; see Cohort */
+    @Param({"3/0", "2/2", "0/3"})
+    public String mix;
+}
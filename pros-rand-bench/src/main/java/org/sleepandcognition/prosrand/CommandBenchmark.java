@@ -0,0 +1,72 @@
+package org.sleepandcognition.prosrand;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * CommandInterface.parseCommand() of the line protocol's commands, against a protocol with the given number of
+ * subjects, all assigned: the questions about one subject (EXISTS, GET of an assigned subject), and PUTs of new
+ * subjects, whose variable values are made up beforehand.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandBenchmark extends CohortBenchmark {
+    static final int LINES_POOL_SIZE = 4096;
+
+    Cohort cohort;
+    CommandInterface commander;
+    String[] existsLines;
+    String[] getLines;
+    String[] putValues; // the end of a PUT line, after the subject ID
+    int next;
+
+    @Setup(Level.Iteration)
+    public void setUp() throws Exception {
+        cohort = new Cohort(mix);
+        BalancingRandomizer randomizer = cohort.randomizer(groups, new SubjectDatabase());
+        cohort.addSubjects(randomizer, subjects);
+        randomizer.assignAllSubjects();
+        commander = new CommandInterface(randomizer);
+        existsLines = new String[LINES_POOL_SIZE];
+        getLines = new String[LINES_POOL_SIZE];
+        putValues = new String[LINES_POOL_SIZE];
+        for (int i = 0; i < LINES_POOL_SIZE; ++i) {
+            String subjectID = "s" + (1 + cohort.random.nextInt(subjects));
+            existsLines[i] = "EXISTS " + subjectID;
+            getLines[i] = "GET " + subjectID;
+            putValues[i] = Cohort.commandValues(cohort.nextValues());
+        }
+    }
+
+    @Benchmark
+    public String exists() throws Exception {
+        next = (next + 1) % LINES_POOL_SIZE;
+        return commander.parseCommand(existsLines[next]);
+    }
+
+    @Benchmark
+    public String get() throws Exception {
+        next = (next + 1) % LINES_POOL_SIZE;
+        return commander.parseCommand(getLines[next]);
+    }
+
+    @Benchmark
+    public String put() throws Exception {
+        next = (next + 1) % LINES_POOL_SIZE;
+        return commander.parseCommand("PUT " + cohort.nextID() + " " + putValues[next]);
+    }
+}
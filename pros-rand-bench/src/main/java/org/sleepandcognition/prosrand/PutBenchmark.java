@@ -0,0 +1,63 @@
+package org.sleepandcognition.prosrand;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Randomizer.putOrPlaceSubject() of new subjects, given as a client would give them, into a protocol that
+ * already has the given number of subjects, all assigned. Nothing is saved (a SubjectDatabase does nothing),
+ * so this is the cost of the randomizer itself. The variable values are made up beforehand.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PutBenchmark extends CohortBenchmark {
+    static final int VALUES_POOL_SIZE = 4096;
+
+    Cohort cohort;
+    BalancingRandomizer randomizer;
+    Map<String, String>[] valuesPool;
+    int next;
+
+    @SuppressWarnings("unchecked")
+    @Setup(Level.Iteration)
+    public void setUp() throws Exception {
+        cohort = new Cohort(mix);
+        randomizer = cohort.randomizer(groups, new SubjectDatabase());
+        cohort.addSubjects(randomizer, subjects);
+        randomizer.assignAllSubjects();
+        valuesPool = new Map[VALUES_POOL_SIZE];
+        for (int i = 0; i < valuesPool.length; ++i) {
+            valuesPool[i] = cohort.nextValues();
+        }
+    }
+
+    private Map<String, String> nextValues() {
+        next = (next + 1) % valuesPool.length;
+        return valuesPool[next];
+    }
+
+    @Benchmark
+    public String put() throws Exception {
+        return randomizer.putOrPlaceSubject(cohort.nextID(), nextValues(), true);
+    }
+
+    @Benchmark
+    public String place() throws Exception {
+        return randomizer.putOrPlaceSubject(cohort.nextID(), nextValues(), false);
+    }
+}
@@ -0,0 +1,73 @@
+package org.sleepandcognition.prosrand;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Writing and reading the subject file (SubjectFileDatabase), with all the subjects assigned to groups.
+ * The file is in a temporary directory, deleted afterwards.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SubjectFileBenchmark extends CohortBenchmark {
+    File directory;
+    SubjectFileDatabase database;
+    BalancingRandomizer randomizer;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Cohort cohort = new Cohort(mix);
+        randomizer = cohort.randomizer(groups, new SubjectDatabase());
+        cohort.addSubjects(randomizer, subjects);
+        randomizer.assignAllSubjects();
+        directory = Files.createTempDirectory("prosrand-bench").toFile();
+        database = new SubjectFileDatabase(new File(directory, "subjects.txt").getPath());
+        database.WriteOutSubjects(randomizer.subjectsByID, randomizer.variables);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Benchmark
+    public void writeOutSubjects() throws Exception {
+        database.WriteOutSubjects(randomizer.subjectsByID, randomizer.variables);
+    }
+
+    @Benchmark
+    public ArrayList<MultiDimSubject> readSubjectsIntoGroups() throws Exception {
+        // empty groups to read into, as at start-up
+        Map<String, InterventionGroup> emptyGroups = new HashMap<String, InterventionGroup>();
+        for (Iterator<String> it = randomizer.groups.keySet().iterator(); it.hasNext(); ) {
+            InterventionGroup group = new InterventionGroup(it.next());
+            group.variables = randomizer.variables;
+            emptyGroups.put(group.name, group);
+        }
+        return database.ReadSubjectsIntoGroups(randomizer.variables, emptyGroups);
+    }
+}
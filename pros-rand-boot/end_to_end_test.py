@@ -81,7 +81,7 @@ def run_test(protocol_name,
 
     r = requests.get(make_url(False, "version"))
     assert r.status_code == 200
-    assert r.text == "5"
+    assert r.text == "9"
 
     # not found when not yet started
     r = requests.post(make_url(True, 'subject/s01'),
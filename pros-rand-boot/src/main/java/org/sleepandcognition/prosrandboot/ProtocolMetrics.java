@@ -0,0 +1,121 @@
+package org.sleepandcognition.prosrandboot;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.TimeGauge;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import org.sleepandcognition.prosrand.Randomizer;
+import org.sleepandcognition.prosrand.RandomizerStats;
+
+/*
+ * Publishes one protocol's statistics (see RandomizerStats) as metrics, tagged with the protocol's name, at
+ * /actuator/metrics and /actuator/prometheus. The meters read the randomizer's own counters when scraped, so
+ * nothing is recorded twice; the counts of subjects come from its summary as of the last save, so that scraping
+ * never waits for the randomizer's lock. They must be removed when the protocol is stopped (or unloaded), so that
+ * a protocol started (or loaded) again under the same name gets meters of its own.
+ *
+ * Micrometer hands back the meter already registered under the same name and tags, rather than a new one, so any
+ * meters of an earlier Randomizer of the same protocol still registered (i.e. it is being stopped or unloaded while
+ * the new one is started) are replaced first; and removing the meters leaves alone any that have been replaced.
+ *
+ *   prosrand.operation{operation}            count and total time of each operation (put, place, get, ...),
+ *                                            including queue, the time changes wait behind others to the protocol
+ *   prosrand.operation.max{operation}        longest time taken
+ *   prosrand.operation.p99{operation}        99th percentile of the times taken (to within a factor of two)
+ *   prosrand.assignments                     subjects assigned since the protocol was started
+ *   prosrand.subjects, prosrand.backlog      all subjects, and subjects waiting for a group
+ *   prosrand.group.size{group}               subjects in each group
+ *   prosrand.imbalance                       greatest distance between the mean feature vectors of any two groups
+ *   prosrand.imbalance.standardized          the same, with each dimension scaled as the balancing algorithm does
+ */
+public class ProtocolMetrics {
+    MeterRegistry registry;
+    ArrayList<Meter> meters = new ArrayList<Meter>();
+
+    public ProtocolMetrics(MeterRegistry registry, String protocolName, Randomizer randomizer) {
+        this.registry = registry;
+        Tags protocol = Tags.of("protocol", protocolName);
+        RandomizerStats stats = randomizer.stats();
+        synchronized (registry) {
+            for (RandomizerStats.Operation operation : RandomizerStats.Operation.values()) {
+                RandomizerStats.Timer timer = stats.timer(operation);
+                Tags tags = protocol.and("operation", operation.tag());
+                add("prosrand.operation", tags, (name, t) -> FunctionTimer.builder(
+                                name,
+                                timer,
+                                RandomizerStats.Timer::count,
+                                RandomizerStats.Timer::totalNanos,
+                                TimeUnit.NANOSECONDS)
+                        .tags(t)
+                        .register(registry));
+                add("prosrand.operation.max", tags, (name, t) -> TimeGauge.builder(
+                                name, timer, TimeUnit.NANOSECONDS, RandomizerStats.Timer::maxNanos)
+                        .tags(t)
+                        .register(registry));
+                add("prosrand.operation.p99", tags, (name, t) -> TimeGauge.builder(
+                                name, timer, TimeUnit.NANOSECONDS, x -> x.percentileNanos(0.99))
+                        .tags(t)
+                        .register(registry));
+            }
+            add("prosrand.assignments", protocol, (name, t) -> FunctionCounter.builder(
+                            name, stats, RandomizerStats::assignments)
+                    .tags(t)
+                    .register(registry));
+            add("prosrand.subjects", protocol, (name, t) -> Gauge.builder(
+                            name, randomizer, r -> r.summary().getSubjectCount())
+                    .tags(t)
+                    .register(registry));
+            add("prosrand.backlog", protocol, (name, t) -> Gauge.builder(
+                            name, randomizer, r -> r.summary().getUnassignedCount())
+                    .tags(t)
+                    .register(registry));
+            for (Iterator<String> it = randomizer.summary().getGroupSizes().keySet().iterator(); it.hasNext(); ) {
+                String groupName = it.next();
+                add("prosrand.group.size", protocol.and("group", groupName), (name, t) -> Gauge.builder(
+                                name, randomizer, r -> r.summary().getGroupSizes().get(groupName))
+                        .tags(t)
+                        .register(registry));
+            }
+            add("prosrand.imbalance", protocol, (name, t) -> Gauge.builder(
+                            name, randomizer, Randomizer::maxDistanceBetweenGroups)
+                    .tags(t)
+                    .register(registry));
+            if (randomizer.imbalance().getMaxStandardizedDistance() != null) {
+                add("prosrand.imbalance.standardized", protocol, (name, t) -> Gauge.builder(
+                                name, randomizer, r -> r.imbalance().getMaxStandardizedDistance())
+                        .tags(t)
+                        .register(registry));
+            }
+        }
+    }
+
+    /* Registers a meter, once any of the same name and tags left by an earlier Randomizer is removed */
+    private void add(String name, Tags tags, BiFunction<String, Tags, Meter> register) {
+        Meter stale = registry.find(name).tags(tags).meter();
+        if (stale != null) {
+            registry.remove(stale.getId());
+        }
+        meters.add(register.apply(name, tags));
+    }
+
+    public void remove() {
+        synchronized (registry) {
+            for (Iterator<Meter> it = meters.iterator(); it.hasNext(); ) {
+                Meter meter = it.next();
+                Meter.Id id = meter.getId();
+                // unless replaced meanwhile by the same meter of a later Randomizer
+                if (registry.find(id.getName()).tags(id.getTags()).meter() == meter) {
+                    registry.remove(id);
+                }
+            }
+            meters.clear();
+        }
+    }
+}
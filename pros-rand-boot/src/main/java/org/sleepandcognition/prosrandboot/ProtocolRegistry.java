@@ -0,0 +1,385 @@
+package org.sleepandcognition.prosrandboot;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import org.sleepandcognition.prosrand.ChangeFeed;
+import org.sleepandcognition.prosrand.ProtocolSummary;
+import org.sleepandcognition.prosrand.Randomizer;
+
+/*
+ * The protocols being served, by name. Looking up a protocol takes no lock shared with other protocols,
+ * so starting (i.e. loading the subjects of) one protocol does not hold up requests to any other.
+ *
+ * A protocol stays registered until it is stopped, but need not stay loaded: one that has not been used for
+ * the idle timeout, or the least recently used ones when more protocols (or more subjects, in all) are loaded
+ * than the budget allows, are closed (every change is already saved, so closing only waits for the database
+ * to finish writing) and their Randomizers dropped. The next request for such a protocol loads it again from
+ * its database, with the loader it was started with. Protocols with nowhere to save their subjects (temp=true)
+ * are never unloaded. Looking for protocols to unload is done on a thread of its own, one protocol at a time;
+ * it passes over any protocol being loaded or in use, rather than waiting for it.
+ *
+ * Requests use a protocol through a Lease, and a protocol is only unloaded (or closed when stopped) once no
+ * lease on it is open, so no request ever finds its Randomizer closed under it. Each protocol's loading is a
+ * future: the first request for a protocol that is not loaded does the loading, without holding any lock, and
+ * any others that come along meanwhile wait on the same future.
+ *
+ * Each protocol has one ChangeFeed from when it is started until it is stopped, given to each Randomizer loaded
+ * for it, so that its subscribers are not disturbed by it being unloaded and loaded again.
+ */
+public class ProtocolRegistry {
+    /* How often to look for idle protocols */
+    static final long SWEEP_PERIOD_MILLIS = 10000;
+
+    private static class Protocol {
+        String name;
+        Callable<Randomizer> loader;
+        boolean unloadable;
+        // Guarded by the Protocol
+        CompletableFuture<Randomizer> loading; // null when neither loaded nor being loaded
+        Randomizer randomizer; // null when not loaded (or still being loaded)
+        int users; // leases open, and requests waiting for it to load
+        boolean stopped;
+        boolean everLoaded;
+        // Read without the lock, by summaries() and loadedCount()
+        volatile Randomizer loaded; // the randomizer, once it is ready for use
+        volatile long lastUsedMillis;
+        volatile ProtocolSummary lastSummary; // as of when it was last unloaded
+        ChangeFeed changes = new ChangeFeed(ChangeFeed.DEFAULT_CAPACITY);
+        CompletableFuture<Void> closed = new CompletableFuture<Void>(); // once stopped and closed
+
+        Protocol(String name, Callable<Randomizer> loader, boolean unloadable) {
+            this.name = name;
+            this.loader = loader;
+            this.unloadable = unloadable;
+        }
+    }
+
+    /* A protocol's Randomizer, in use by one request; close it when done */
+    public class Lease implements AutoCloseable {
+        Protocol protocol;
+        Randomizer randomizer;
+
+        Lease(Protocol protocol, Randomizer randomizer) {
+            this.protocol = protocol;
+            this.randomizer = randomizer;
+        }
+
+        public Randomizer randomizer() {
+            return randomizer;
+        }
+
+        @Override
+        public void close() {
+            release(protocol);
+        }
+    }
+
+    ConcurrentHashMap<String, Protocol> protocols = new ConcurrentHashMap<String, Protocol>();
+    /* Protocols stopped but not yet closed, by name; one started again under the same name waits for its close */
+    ConcurrentHashMap<String, CompletableFuture<Void>> closing =
+            new ConcurrentHashMap<String, CompletableFuture<Void>>();
+    long idleTimeoutMillis;
+    int maxLoaded;
+    long maxLoadedSubjects;
+    BiConsumer<String, Randomizer> whenUnloaded;
+    /* Does all the unloading, and closes stopped protocols, so that no request waits for either */
+    ScheduledExecutorService unloader;
+
+    /*
+     * idleTimeout: unload protocols not used for this long (zero for never); maxLoaded, maxLoadedSubjects: keep no
+     * more than this many protocols, or subjects in all, loaded (0 for no limit); whenUnloaded: called with the name
+     * and the Randomizer of each protocol unloaded or stopped, after it is closed (by then, a protocol of the same
+     * name may have been started again, with a Randomizer of its own).
+     */
+    public ProtocolRegistry(
+            Duration idleTimeout, int maxLoaded, long maxLoadedSubjects, BiConsumer<String, Randomizer> whenUnloaded) {
+        this.idleTimeoutMillis = idleTimeout.toMillis();
+        this.maxLoaded = maxLoaded;
+        this.maxLoadedSubjects = maxLoadedSubjects;
+        this.whenUnloaded = whenUnloaded;
+        unloader = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "protocol unloader");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (idleTimeoutMillis > 0) {
+            unloader.scheduleWithFixedDelay(
+                    this::sweep,
+                    Math.min(SWEEP_PERIOD_MILLIS, idleTimeoutMillis),
+                    Math.min(SWEEP_PERIOD_MILLIS, idleTimeoutMillis),
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /*
+     * Registers the named protocol and loads it with the given loader, unless it is already registered; the loader
+     * is kept to load it again after it has been unloaded, if unloadable. If the first loading fails, the protocol
+     * is forgotten, so that it may be started again, and the exception is thrown to the caller.
+     * Returns a lease on the protocol (the one already registered, if it was).
+     */
+    public Lease start(String protocolName, Callable<Randomizer> loader, boolean unloadable) throws Exception {
+        Protocol protocol = new Protocol(protocolName, loader, unloadable);
+        Protocol existing = protocols.putIfAbsent(protocolName, protocol);
+        Lease lease = acquire(existing != null ? existing : protocol);
+        if (lease == null) {
+            // stopped meanwhile
+            throw new IllegalStateException("Protocol " + protocolName + " was stopped, or failed to load, meanwhile");
+        }
+        return lease;
+    }
+
+    /* A lease on the named protocol, loading it if need be; or null if there is no such protocol. */
+    public Lease lease(String protocolName) throws Exception {
+        Protocol protocol = protocols.get(protocolName);
+        if (protocol == null) {
+            return null;
+        }
+        return acquire(protocol);
+    }
+
+    private Lease acquire(Protocol protocol) throws Exception {
+        CompletableFuture<Randomizer> loading;
+        boolean toLoad = false;
+        synchronized (protocol) {
+            if (protocol.stopped) {
+                return null;
+            }
+            if (protocol.loading == null) {
+                protocol.loading = new CompletableFuture<Randomizer>();
+                toLoad = true;
+            }
+            loading = protocol.loading;
+            ++protocol.users;
+            protocol.lastUsedMillis = System.currentTimeMillis();
+        }
+        if (toLoad) {
+            load(protocol, loading);
+        }
+        Randomizer randomizer;
+        try {
+            randomizer = loading.join();
+        } catch (CompletionException ex) {
+            release(protocol);
+            throw (ex.getCause() instanceof Exception) ? (Exception) ex.getCause() : ex;
+        }
+        if (toLoad && (maxLoaded > 0 || maxLoadedSubjects > 0)) {
+            unloader.execute(this::sweep);
+        }
+        return new Lease(protocol, randomizer);
+    }
+
+    /* Loads the protocol, holding none of its locks, and completes the future with the result */
+    private void load(Protocol protocol, CompletableFuture<Randomizer> loading) {
+        Randomizer randomizer;
+        try {
+            // a protocol stopped under the same name may still be writing to the same files
+            CompletableFuture<Void> previous = closing.get(protocol.name);
+            if (previous != null) {
+                previous.join();
+            }
+            randomizer = protocol.loader.call();
+            randomizer.setChangeFeed(protocol.changes);
+        } catch (Exception ex) {
+            synchronized (protocol) {
+                protocol.loading = null;
+                if (!protocol.everLoaded) {
+                    protocol.stopped = true;
+                    protocols.remove(protocol.name, protocol);
+                    protocol.changes.close();
+                }
+            }
+            loading.completeExceptionally(ex);
+            return;
+        }
+        synchronized (protocol) {
+            protocol.everLoaded = true;
+            protocol.randomizer = randomizer;
+            protocol.loaded = randomizer;
+        }
+        loading.complete(randomizer);
+    }
+
+    /* Ends one request's use of the protocol; the last to finish with a stopped protocol has it closed */
+    private void release(Protocol protocol) {
+        synchronized (protocol) {
+            protocol.lastUsedMillis = System.currentTimeMillis();
+            if (--protocol.users == 0 && protocol.stopped) {
+                unloader.execute(() -> closeStopped(protocol));
+            }
+        }
+    }
+
+    /*
+     * Forgets about the named protocol at once, so that new requests for it find nothing, and has it closed (in
+     * the background) once the requests using it are done. Returns false if there was no such protocol.
+     */
+    public boolean stop(String protocolName) {
+        Protocol protocol = protocols.get(protocolName);
+        if (protocol == null) {
+            return false;
+        }
+        synchronized (protocol) {
+            if (protocol.stopped) {
+                // by another request, or it failed to load, meanwhile
+                return false;
+            }
+            protocol.stopped = true;
+            // before it is forgotten, so that one started again under the same name waits for this one's close
+            closing.put(protocolName, protocol.closed);
+            protocols.remove(protocolName, protocol);
+            if (protocol.users == 0) {
+                unloader.execute(() -> closeStopped(protocol));
+            }
+        }
+        return true;
+    }
+
+    private void closeStopped(Protocol protocol) {
+        try {
+            synchronized (protocol) {
+                unload(protocol);
+            }
+        } catch (Exception ex) {
+            // every change was saved as it was made; at worst, the database did not finish closing
+            ex.printStackTrace();
+        } finally {
+            protocol.changes.close();
+            protocol.closed.complete(null);
+            closing.remove(protocol.name, protocol.closed);
+        }
+    }
+
+    /* The named protocol's changes, whether or not it is loaded; or null if there is no such protocol */
+    public ChangeFeed changes(String protocolName) {
+        Protocol protocol = protocols.get(protocolName);
+        return protocol != null ? protocol.changes : null;
+    }
+
+    /*
+     * A summary of every protocol registered, in order of name: of those unloaded for the time being, as they were
+     * when unloaded (nothing changes while they are not loaded). Takes no lock, so it never waits for a protocol
+     * being loaded, or for a change; a protocol still being started for the first time is left out.
+     */
+    public Map<String, ProtocolSummary> summaries() {
+        TreeMap<String, ProtocolSummary> result = new TreeMap<String, ProtocolSummary>();
+        for (Iterator<Protocol> it = protocols.values().iterator(); it.hasNext(); ) {
+            Protocol protocol = it.next();
+            Randomizer randomizer = protocol.loaded;
+            ProtocolSummary summary = (randomizer != null) ? randomizer.summary() : protocol.lastSummary;
+            if (summary != null) {
+                result.put(protocol.name, summary);
+            }
+        }
+        return result;
+    }
+
+    public int registeredCount() {
+        return protocols.size();
+    }
+
+    public int loadedCount() {
+        int count = 0;
+        for (Iterator<Protocol> it = protocols.values().iterator(); it.hasNext(); ) {
+            if (it.next().loaded != null) {
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    /*
+     * Unloads the protocols that have been idle for the idle timeout, and then, least recently used first, as many
+     * more as it takes to get within the budget. Protocols in use, or being loaded, are skipped. Only ever run on
+     * the unloader thread, so one sweep at a time.
+     */
+    void sweep() {
+        long now = System.currentTimeMillis();
+        ArrayList<Protocol> candidates = new ArrayList<Protocol>();
+        int loadedCount = 0;
+        long loadedSubjects = 0;
+        for (Iterator<Protocol> it = protocols.values().iterator(); it.hasNext(); ) {
+            Protocol protocol = it.next();
+            Randomizer randomizer = protocol.loaded;
+            if (randomizer != null) {
+                ++loadedCount;
+                loadedSubjects += randomizer.subjectCount();
+                if (protocol.unloadable) {
+                    candidates.add(protocol);
+                }
+            }
+        }
+        // lastUsedMillis may change while sorting, so sort on a copy
+        TreeMap<Long, ArrayList<Protocol>> byLastUse = new TreeMap<Long, ArrayList<Protocol>>();
+        for (Iterator<Protocol> it = candidates.iterator(); it.hasNext(); ) {
+            Protocol protocol = it.next();
+            byLastUse.computeIfAbsent(protocol.lastUsedMillis, t -> new ArrayList<Protocol>()).add(protocol);
+        }
+        for (Iterator<ArrayList<Protocol>> it = byLastUse.values().iterator(); it.hasNext(); ) {
+            for (Iterator<Protocol> pt = it.next().iterator(); pt.hasNext(); ) {
+                Protocol protocol = pt.next();
+                boolean overBudget = (maxLoaded > 0 && loadedCount > maxLoaded)
+                        || (maxLoadedSubjects > 0 && loadedSubjects > maxLoadedSubjects);
+                synchronized (protocol) {
+                    boolean idle = idleTimeoutMillis > 0 && now - protocol.lastUsedMillis >= idleTimeoutMillis;
+                    if (protocol.randomizer == null
+                            || protocol.users > 0
+                            || protocol.stopped
+                            || !(idle || overBudget)) {
+                        continue;
+                    }
+                    long subjects = protocol.randomizer.subjectCount();
+                    try {
+                        unload(protocol);
+                    } catch (Exception ex) {
+                        // keep it loaded, and try again next time
+                        ex.printStackTrace();
+                        continue;
+                    }
+                    --loadedCount;
+                    loadedSubjects -= subjects;
+                }
+            }
+        }
+    }
+
+    /*
+     * Closes the protocol's Randomizer, if loaded; called holding the Protocol's lock, with no leases open, so that
+     * nobody can start loading it again until it is closed
+     */
+    private void unload(Protocol protocol) throws Exception {
+        if (protocol.randomizer == null) {
+            return;
+        }
+        Randomizer randomizer = protocol.randomizer;
+        CompletableFuture<Randomizer> loading = protocol.loading;
+        protocol.randomizer = null;
+        protocol.loaded = null;
+        protocol.loading = null;
+        try {
+            randomizer.close();
+        } catch (Exception ex) {
+            if (!protocol.stopped) {
+                protocol.randomizer = randomizer;
+                protocol.loaded = randomizer;
+                protocol.loading = loading;
+            }
+            throw ex;
+        } finally {
+            if (protocol.randomizer == null) {
+                protocol.lastSummary = randomizer.summary();
+                whenUnloaded.accept(protocol.name, randomizer);
+            }
+        }
+    }
+}
@@ -1,40 +1,109 @@
 package org.sleepandcognition.prosrandboot;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Hashtable;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import javax.sql.DataSource;
 import javax.xml.parsers.ParserConfigurationException;
 import org.sleepandcognition.prosrand.AlternatingRandomizer;
 import org.sleepandcognition.prosrand.BalancingRandomizer;
+import org.sleepandcognition.prosrand.BatchResult;
+import org.sleepandcognition.prosrand.ChangeEvent;
+import org.sleepandcognition.prosrand.ChangeFeed;
+import org.sleepandcognition.prosrand.EventLog;
+import org.sleepandcognition.prosrand.Imbalance;
 import org.sleepandcognition.prosrand.InterventionGroup;
 import org.sleepandcognition.prosrand.InvalidDataException;
-import org.sleepandcognition.prosrand.MultiDimSubject;
+import org.sleepandcognition.prosrand.MinimizationRandomizer;
 import org.sleepandcognition.prosrand.ProtocolSpec;
+import org.sleepandcognition.prosrand.ProtocolSummary;
 import org.sleepandcognition.prosrand.Randomizer;
 import org.sleepandcognition.prosrand.SubjectDatabase;
 import org.sleepandcognition.prosrand.SubjectFileDatabase;
+import org.sleepandcognition.prosrand.SubjectJdbcDatabase;
+import org.sleepandcognition.prosrand.SubjectLogDatabase;
+import org.sleepandcognition.prosrand.SubjectPage;
+import org.sleepandcognition.prosrand.SubjectRecord;
+import org.sleepandcognition.prosrand.SyncPolicy;
 import org.sleepandcognition.prosrand.VariableSpec;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.util.DigestUtils;
 import org.springframework.web.bind.annotation.CrossOrigin;
 import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.WebRequest;
 import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 import org.xml.sax.SAXException;
 
 @CrossOrigin
 @RestController
 public class RandomizerController {
-    Hashtable<String, Randomizer> randomizers;
+    /* Most subjects given on one page of GET /{protocolName}/subjects/page */
+    static final int MAX_PAGE_SIZE = 10000;
+    /* A subscriber to changes with nothing to tell is sent a comment this often, to find out if it has gone away */
+    static final long HEARTBEAT_MILLIS = 15000;
+    /* Most events sent to a subscriber at once */
+    static final int MAX_EVENTS = 1000;
 
-    public RandomizerController() throws SAXException, ParserConfigurationException, IOException {
-        randomizers = new Hashtable<String, Randomizer>();
+    ProtocolRegistry randomizers;
+    /* For protocols with "jdbc" storage; see spring.datasource in application.properties */
+    DataSource dataSource;
+    MeterRegistry meterRegistry;
+    /* What each protocol logs; see prosrand.protocols.log-level in application.properties */
+    EventLog.Level logLevel;
+    /* Spring's, so that exported subjects look as they do in other responses */
+    ObjectMapper objectMapper;
+    /* The meters of each loaded protocol's Randomizer, to be removed when it is unloaded or stopped */
+    ConcurrentHashMap<Randomizer, ProtocolMetrics> metrics = new ConcurrentHashMap<Randomizer, ProtocolMetrics>();
+    /* A thread for each subscriber to changes, waiting for them; see followChanges() */
+    ExecutorService followers = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "change subscriber");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /* See prosrand.protocols.* in application.properties, and ProtocolRegistry */
+    public RandomizerController(
+            DataSource dataSource,
+            MeterRegistry meterRegistry,
+            ObjectMapper objectMapper,
+            @Value("${prosrand.protocols.idle-timeout:30m}") Duration idleTimeout,
+            @Value("${prosrand.protocols.max-loaded:0}") int maxLoaded,
+            @Value("${prosrand.protocols.max-loaded-subjects:0}") long maxLoadedSubjects,
+            @Value("${prosrand.protocols.log-level:INFO}") EventLog.Level logLevel)
+            throws SAXException, ParserConfigurationException, IOException {
+        randomizers = new ProtocolRegistry(idleTimeout, maxLoaded, maxLoadedSubjects, this::removeMetrics);
+        this.dataSource = dataSource;
+        this.meterRegistry = meterRegistry;
+        this.objectMapper = objectMapper;
+        this.logLevel = logLevel;
+        Gauge.builder("prosrand.protocols.registered", randomizers, ProtocolRegistry::registeredCount)
+                .register(meterRegistry);
+        Gauge.builder("prosrand.protocols.loaded", randomizers, ProtocolRegistry::loadedCount)
+                .register(meterRegistry);
     }
 
     @GetMapping("/")
@@ -47,65 +116,135 @@ public class RandomizerController {
         return Randomizer.RandomizerCommVersion();
     }
 
-    protected Randomizer randomizerOfName(String protocolName) {
-        if (randomizers.containsKey(protocolName)) {
-            return randomizers.get(protocolName);
+    /* For the duration of one request; the protocol is not unloaded while the lease is open */
+    protected ProtocolRegistry.Lease leaseOf(String protocolName) throws Exception {
+        ProtocolRegistry.Lease lease = randomizers.lease(protocolName);
+        if (lease != null) {
+            return lease;
         } else {
             throw new ResponseStatusException(HttpStatus.NOT_FOUND);
         }
     }
 
+    /*
+     * A summary of each protocol, including those unloaded for the time being; see ProtocolRegistry.summaries().
+     * Like the groups and variables of a protocol, it comes with an ETag, and if the client already has the same,
+     * the answer is 304 Not Modified, with no body.
+     */
     @GetMapping("/protocols")
-    public Map<String, Randomizer> getProtocols() {
-        return randomizers;
+    public Map<String, ProtocolSummary> getProtocols(WebRequest request) {
+        Map<String, ProtocolSummary> summaries = randomizers.summaries();
+        StringBuilder tags = new StringBuilder();
+        for (Iterator<Map.Entry<String, ProtocolSummary>> it = summaries.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, ProtocolSummary> entry = it.next();
+            tags.append(entry.getKey()).append(' ').append(entry.getValue().etag()).append('\n');
+        }
+        String etag = "\"" + DigestUtils.md5DigestAsHex(tags.toString().getBytes(StandardCharsets.UTF_8)) + "\"";
+        if (request.checkNotModified(etag)) {
+            return null;
+        }
+        return summaries;
+    }
+
+    @GetMapping("/{protocolName}/summary")
+    ProtocolSummary getSummary(@PathVariable String protocolName, WebRequest request) throws Exception {
+        try (ProtocolRegistry.Lease lease = leaseOf(protocolName)) {
+            ProtocolSummary summary = lease.randomizer().summary();
+            if (request.checkNotModified(summary.etag())) {
+                return null;
+            }
+            return summary;
+        }
     }
 
     @PostMapping("/{protocolName}/start")
-    synchronized void startProtocol(
+    void startProtocol(
             @PathVariable String protocolName,
             @RequestBody ProtocolSpec spec,
             @RequestParam(required = false) boolean temp)
             throws Exception {
-        if (randomizers.containsKey(protocolName)) {
-            if (!randomizerOfName(protocolName).matchesSpecs(spec)) {
+        try (ProtocolRegistry.Lease lease =
+                randomizers.start(protocolName, () -> newRandomizer(protocolName, spec, temp), !temp)) {
+            // If it was already started (or being started by someone else), it has to be the same protocol
+            if (!lease.randomizer().matchesSpecs(spec)) {
                 throw new ResponseStatusException(HttpStatus.BAD_REQUEST);
             }
-            // already started; ignore
-            return;
         }
+    }
+
+    protected Randomizer newRandomizer(String protocolName, ProtocolSpec spec, boolean temp) throws Exception {
         SubjectDatabase database;
         if (temp) {
             database = new SubjectDatabase();
         } else {
             String subjectFile = String.format("subjects_%s.txt", protocolName);
-            database = new SubjectFileDatabase(subjectFile);
+            if (spec.getStorage() == null || spec.getStorage().equals("file")) {
+                database = new SubjectFileDatabase(subjectFile);
+            } else if (spec.getStorage().equals("log")) {
+                String logFile = String.format("subjects_%s.log", protocolName);
+                SubjectLogDatabase logDatabase = new SubjectLogDatabase(logFile, subjectFile);
+                if (spec.getSyncPolicy() != null) {
+                    try {
+                        logDatabase.setSyncPolicy(SyncPolicy.fromName(spec.getSyncPolicy()), spec.getSyncDelayMillis());
+                    } catch (IllegalArgumentException ex) {
+                        throw new ResponseStatusException(HttpStatus.BAD_REQUEST);
+                    }
+                }
+                if (spec.getCheckpointInterval() != null) {
+                    logDatabase.setCheckpointInterval(spec.getCheckpointInterval());
+                }
+                database = logDatabase;
+            } else if (spec.getStorage().equals("jdbc")) {
+                database = new SubjectJdbcDatabase(dataSource, protocolName);
+            } else {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST);
+            }
         }
         Randomizer r;
         if (spec.getAlgorithm().equals("Alternating")) {
             r = new AlternatingRandomizer(spec, database);
         } else if (spec.getAlgorithm().equals("Balanced")) {
             r = new BalancingRandomizer(spec, database);
+        } else if (spec.getAlgorithm().equals("Minimization")) {
+            try {
+                r = new MinimizationRandomizer(spec, database);
+            } catch (InvalidDataException ex) {
+                // e.g. a continuous variable without cut points; found before the database is read
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, ex.getMessage());
+            }
         } else {
             throw new ResponseStatusException(HttpStatus.BAD_REQUEST);
         }
-        // Everything possible in log, as that can be useful for troubleshooting
-        r.setVerbosity(100);
-        randomizers.put(protocolName, r);
+        r.eventLog().setLevel(logLevel);
+        r.eventLog().setSource(protocolName);
+        metrics.put(r, new ProtocolMetrics(meterRegistry, protocolName, r));
+        return r;
+    }
+
+    /*
+     * Once a protocol is unloaded (or stopped); they are registered again if it is loaded again. Only the meters of
+     * that Randomizer go, not those of another started meanwhile under the same name.
+     */
+    void removeMetrics(String protocolName, Randomizer randomizer) {
+        ProtocolMetrics protocolMetrics = metrics.remove(randomizer);
+        if (protocolMetrics != null) {
+            protocolMetrics.remove();
+        }
     }
 
     @DeleteMapping("/{protocolName}/stop")
-    void stopProtocol(@PathVariable String protocolName) {
-        if (randomizers.containsKey(protocolName)) {
-            randomizers.remove(protocolName);
-        } 
-        else {
+    void stopProtocol(@PathVariable String protocolName) throws Exception {
+        if (!randomizers.stop(protocolName)) {
             throw new ResponseStatusException(HttpStatus.NOT_FOUND);
         }
     }
 
     @GetMapping("/{protocolName}/subject/{id}")
-    boolean getSubject(@PathVariable String protocolName, @PathVariable String id) {
-        boolean doesExist = randomizerOfName(protocolName).checkID(id);
+    boolean getSubject(@PathVariable String protocolName, @PathVariable String id) throws Exception {
+        boolean doesExist;
+        try (ProtocolRegistry.Lease lease = leaseOf(protocolName)) {
+            doesExist = lease.randomizer().checkID(id);
+        }
         if (doesExist) {
             return true;
         } else {
@@ -117,8 +256,8 @@ public class RandomizerController {
     void putSubject(
             @PathVariable String protocolName, @PathVariable String id, @RequestBody Hashtable<String, String> features)
             throws Exception {
-        try {
-            randomizerOfName(protocolName).putOrPlaceSubject(id, features, true);
+        try (ProtocolRegistry.Lease lease = leaseOf(protocolName)) {
+            lease.randomizer().putOrPlaceSubject(id, features, true);
         } catch (InvalidDataException ex) {
             throw new ResponseStatusException(HttpStatus.BAD_REQUEST);
         }
@@ -126,15 +265,17 @@ public class RandomizerController {
 
     @GetMapping("/{protocolName}/subject/{id}/group")
     String getGroup(@PathVariable String protocolName, @PathVariable String id) throws Exception {
-        return randomizerOfName(protocolName).getGroup(id);
+        try (ProtocolRegistry.Lease lease = leaseOf(protocolName)) {
+            return lease.randomizer().getGroup(id);
+        }
     }
 
     @PostMapping("/{protocolName}/subject/{id}/group")
     String placeSubject(
             @PathVariable String protocolName, @PathVariable String id, @RequestBody Hashtable<String, String> features)
             throws Exception {
-        try {
-            String group = randomizerOfName(protocolName).putOrPlaceSubject(id, features, false);
+        try (ProtocolRegistry.Lease lease = leaseOf(protocolName)) {
+            String group = lease.randomizer().putOrPlaceSubject(id, features, false);
             return group;
         } catch (InvalidDataException ex) {
             throw new ResponseStatusException(HttpStatus.BAD_REQUEST);
@@ -143,31 +284,174 @@ public class RandomizerController {
 
     @PostMapping("/{protocolName}/subject/{id}/commit")
     boolean commitSubject(@PathVariable String protocolName, @PathVariable String id) throws Exception {
-        return randomizerOfName(protocolName).commitSubject(id);
+        try (ProtocolRegistry.Lease lease = leaseOf(protocolName)) {
+            return lease.randomizer().commitSubject(id);
+        }
     }
 
     @GetMapping("/{protocolName}/subject/{id}/committed")
-    boolean isSubjectCommitted(@PathVariable String protocolName, @PathVariable String id) {
-        return randomizerOfName(protocolName).isCommitted(id);
+    boolean isSubjectCommitted(@PathVariable String protocolName, @PathVariable String id) throws Exception {
+        try (ProtocolRegistry.Lease lease = leaseOf(protocolName)) {
+            return lease.randomizer().isCommitted(id);
+        }
     }
 
     @GetMapping("/{protocolName}/groups")
-    List<InterventionGroup> getAllGroups(@PathVariable String protocolName) {
-        return randomizerOfName(protocolName).getGroups();
+    List<InterventionGroup> getAllGroups(@PathVariable String protocolName, WebRequest request) throws Exception {
+        try (ProtocolRegistry.Lease lease = leaseOf(protocolName)) {
+            // The tag before the groups: if they change in between, the client only misses a 304 next time
+            if (request.checkNotModified(lease.randomizer().summary().etag())) {
+                return null;
+            }
+            return lease.randomizer().getGroups();
+        }
+    }
+
+    /* Cheap enough to poll often: it is kept up to date as subjects are saved, and read without waiting */
+    @GetMapping("/{protocolName}/imbalance")
+    Imbalance getImbalance(@PathVariable String protocolName) throws Exception {
+        try (ProtocolRegistry.Lease lease = leaseOf(protocolName)) {
+            return lease.randomizer().imbalance();
+        }
     }
 
     @GetMapping("/{protocolName}/variables")
-    List<VariableSpec> getVariables(@PathVariable String protocolName) {
-        return randomizerOfName(protocolName).getVariables();
+    List<VariableSpec> getVariables(@PathVariable String protocolName, WebRequest request) throws Exception {
+        try (ProtocolRegistry.Lease lease = leaseOf(protocolName)) {
+            // They never change while it is loaded
+            if (request.checkNotModified(lease.randomizer().summary().instanceEtag())) {
+                return null;
+            }
+            return lease.randomizer().getVariables();
+        }
     }
 
+    /* All at once; for many subjects, see below. Formatted after the lease is closed, so as not to hold it up. */
     @GetMapping("/{protocolName}/subjects")
-    List<MultiDimSubject> getSubjects(@PathVariable String protocolName) {
-        return randomizerOfName(protocolName).getSubjects();
+    List<SubjectRecord> getSubjects(@PathVariable String protocolName) throws Exception {
+        try (ProtocolRegistry.Lease lease = leaseOf(protocolName)) {
+            return lease.randomizer().snapshotSubjects();
+        }
+    }
+
+    /* In order of arrival, starting after the given cursor; see Randomizer.subjectsAfter() */
+    @GetMapping("/{protocolName}/subjects/page")
+    SubjectPage getSubjectPage(
+            @PathVariable String protocolName,
+            @RequestParam(defaultValue = "0") long after,
+            @RequestParam(defaultValue = "1000") int limit)
+            throws Exception {
+        if (limit < 1 || limit > MAX_PAGE_SIZE) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST);
+        }
+        try (ProtocolRegistry.Lease lease = leaseOf(protocolName)) {
+            return lease.randomizer().subjectsAfter(after, limit);
+        }
+    }
+
+    /*
+     * Every subject, as of one moment, written out a subject at a time (as the client reads them) once the lease
+     * is closed; see SubjectExport.
+     */
+    @GetMapping("/{protocolName}/subjects/export")
+    ResponseEntity<StreamingResponseBody> exportSubjects(
+            @PathVariable String protocolName, @RequestParam(defaultValue = "ndjson") String format)
+            throws Exception {
+        SubjectExport.Format exportFormat;
+        try {
+            exportFormat = SubjectExport.Format.fromName(format);
+        } catch (IllegalArgumentException ex) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST);
+        }
+        SubjectExport export;
+        try (ProtocolRegistry.Lease lease = leaseOf(protocolName)) {
+            ArrayList<String> variableNames = new ArrayList<String>();
+            for (VariableSpec variable : lease.randomizer().getVariables()) {
+                variableNames.add(variable.getName());
+            }
+            export = new SubjectExport(lease.randomizer().snapshotSubjects(), variableNames, objectMapper);
+        }
+        return ResponseEntity.ok()
+                .contentType(MediaType.parseMediaType(exportFormat.contentType()))
+                .body(out -> export.write(exportFormat, out));
+    }
+
+    /*
+     * A stream (server-sent events) of the changes to the protocol's subjects as they are saved: an event for each,
+     * named for its kind (put, assign, commit, remove), with the ChangeEvent as JSON, and its cursor (EPOCH-SEQUENCE,
+     * see ChangeFeed) as the event ID. Starts with the changes after the given cursor (or Last-Event-ID, sent by a
+     * browser when it reconnects), if still kept, or else from now on. A "reset" event means some changes were
+     * missed, e.g. the cursor was given out before the server was restarted. Does not load the protocol, or keep it
+     * loaded.
+     */
+    @GetMapping(path = "/{protocolName}/changes", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    SseEmitter getChanges(
+            @PathVariable String protocolName,
+            @RequestParam(required = false) String after,
+            @RequestHeader(name = "Last-Event-ID", required = false) String lastEventId) {
+        ChangeFeed feed = randomizers.changes(protocolName);
+        if (feed == null) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND);
+        }
+        String start = (lastEventId != null) ? lastEventId : (after != null) ? after : feed.latest();
+        SseEmitter emitter = new SseEmitter();
+        followers.execute(() -> followChanges(feed, start, emitter));
+        return emitter;
+    }
+
+    /* Sends the changes after the given one, until the client goes away, or the protocol is stopped */
+    void followChanges(ChangeFeed feed, String after, SseEmitter emitter) {
+        try {
+            while (true) {
+                List<ChangeEvent> events = feed.eventsAfter(after, MAX_EVENTS, HEARTBEAT_MILLIS);
+                if (events == null) {
+                    emitter.complete();
+                    return;
+                }
+                if (events.isEmpty()) {
+                    emitter.send(SseEmitter.event().comment(""));
+                }
+                for (Iterator<ChangeEvent> it = events.iterator(); it.hasNext(); ) {
+                    ChangeEvent event = it.next();
+                    emitter.send(SseEmitter.event()
+                            .id(event.cursor())
+                            .name(event.getKind())
+                            .data(event, MediaType.APPLICATION_JSON));
+                    after = event.cursor();
+                }
+            }
+        } catch (IOException | IllegalStateException ex) {
+            // the client went away, or the response timed out; it may resume from the last event it got
+        } catch (InterruptedException ex) {
+            emitter.complete();
+        }
+    }
+
+    /* Adds (and if assign is true, places) many subjects together; see Randomizer.putOrPlaceSubjects() */
+    @PostMapping("/{protocolName}/subjects/batch")
+    List<BatchResult> putOrPlaceSubjects(
+            @PathVariable String protocolName,
+            @RequestParam(defaultValue = "false") boolean assign,
+            @RequestBody List<SubjectEntry> subjects)
+            throws Exception {
+        ArrayList<String> ids = new ArrayList<String>();
+        ArrayList<Hashtable<String, String>> features = new ArrayList<Hashtable<String, String>>();
+        for (SubjectEntry subject : subjects) {
+            if (subject.getId() == null || subject.getFeatures() == null) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST);
+            }
+            ids.add(subject.getId());
+            features.add(subject.getFeatures());
+        }
+        try (ProtocolRegistry.Lease lease = leaseOf(protocolName)) {
+            return lease.randomizer().putOrPlaceSubjects(ids, features, !assign);
+        }
     }
 
     @PostMapping("/{protocolName}/assignall")
     void assignAll(@PathVariable String protocolName) throws Exception {
-        randomizerOfName(protocolName).assignAllSubjects();
+        try (ProtocolRegistry.Lease lease = leaseOf(protocolName)) {
+            lease.randomizer().assignAllSubjects();
+        }
     }
 }
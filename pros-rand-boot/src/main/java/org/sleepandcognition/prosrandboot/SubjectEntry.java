@@ -0,0 +1,27 @@
+package org.sleepandcognition.prosrandboot;
+
+import java.util.Hashtable;
+
+/* One subject of a batch POSTed to /{protocolName}/subjects/batch: its ID and its variable values, as for a single
+ * subject
+ */
+public class SubjectEntry {
+    String id;
+    Hashtable<String, String> features;
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public Hashtable<String, String> getFeatures() {
+        return features;
+    }
+
+    public void setFeatures(Hashtable<String, String> features) {
+        this.features = features;
+    }
+}
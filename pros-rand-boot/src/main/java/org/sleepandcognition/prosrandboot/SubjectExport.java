@@ -0,0 +1,105 @@
+package org.sleepandcognition.prosrandboot;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import org.sleepandcognition.prosrand.SubjectRecord;
+
+/*
+ * Writes a snapshot of a protocol's subjects (see Randomizer.snapshotSubjects()) a subject at a time, for
+ * GET /{protocolName}/subjects/export. The snapshot is taken first, in full, so that the export is of the time of the
+ * request, not of however long sending it takes: it holds a SubjectRecord (the id, group, flags and features) of
+ * every subject, so its memory grows with the number of subjects, though the formatted output is never built up,
+ * only written out as the client reads it. Taking the snapshot does not hold up the randomizer, nor does it need the
+ * randomizer once taken, so it goes on taking requests however long the export takes.
+ */
+public class SubjectExport {
+    public enum Format {
+        NDJSON("application/x-ndjson"),
+        CSV("text/csv");
+
+        String contentType;
+
+        Format(String contentType) {
+            this.contentType = contentType;
+        }
+
+        public String contentType() {
+            return contentType;
+        }
+
+        /* "ndjson" or "csv", in any case; IllegalArgumentException otherwise */
+        public static Format fromName(String name) {
+            return valueOf(name.toUpperCase());
+        }
+    }
+
+    List<SubjectRecord> subjects;
+    /* The variables, in order of the protocol's spec; the CSV format has a column for each */
+    List<String> variableNames;
+    ObjectMapper mapper;
+
+    public SubjectExport(List<SubjectRecord> subjects, List<String> variableNames, ObjectMapper mapper) {
+        this.subjects = subjects;
+        this.variableNames = variableNames;
+        this.mapper = mapper;
+    }
+
+    public void write(Format format, OutputStream out) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        switch (format) {
+            case NDJSON -> writeNdjson(writer);
+            case CSV -> writeCsv(writer);
+        }
+        writer.flush();
+    }
+
+    /* One JSON object per line, as in GET /{protocolName}/subjects */
+    void writeNdjson(Writer writer) throws IOException {
+        for (Iterator<SubjectRecord> it = subjects.iterator(); it.hasNext(); ) {
+            writer.write(mapper.writeValueAsString(it.next()));
+            writer.write('\n');
+        }
+    }
+
+    /* A header line, then a line per subject: id, arrivalNumber, groupName, committed, and each variable's value */
+    void writeCsv(Writer writer) throws IOException {
+        writer.write("id,arrivalNumber,groupName,committed");
+        for (Iterator<String> it = variableNames.iterator(); it.hasNext(); ) {
+            writer.write(',');
+            writer.write(csvField(it.next()));
+        }
+        writer.write('\n');
+        for (Iterator<SubjectRecord> it = subjects.iterator(); it.hasNext(); ) {
+            SubjectRecord subject = it.next();
+            writer.write(csvField(subject.getId()));
+            writer.write(',');
+            writer.write(Long.toString(subject.getArrivalNumber()));
+            writer.write(',');
+            writer.write(subject.getGroupName() == null ? "" : csvField(subject.getGroupName()));
+            writer.write(',');
+            writer.write(Boolean.toString(subject.isCommitted()));
+            Map<String, String> values = subject.variableValues();
+            for (Iterator<String> vt = variableNames.iterator(); vt.hasNext(); ) {
+                writer.write(',');
+                writer.write(csvField(values.get(vt.next())));
+            }
+            writer.write('\n');
+        }
+    }
+
+    /* Quoted, with any quotes doubled, if it contains a comma, quote or line break */
+    static String csvField(String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+            return value;
+        }
+        return "\"" + value.replace("\"", "\"\"") + "\"";
+    }
+}
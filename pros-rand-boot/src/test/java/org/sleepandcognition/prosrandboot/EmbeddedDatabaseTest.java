@@ -0,0 +1,48 @@
+package org.sleepandcognition.prosrandboot;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.sql.Connection;
+import javax.sql.DataSource;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+/*
+ * The embedded database (spring.datasource in application.properties, here put in a directory of the test's own) is
+ * not created by starting the server, nor by its health check or metrics, but only once something connects to it,
+ * as a protocol with jdbc storage does.
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+class EmbeddedDatabaseTest {
+    @TempDir
+    static File directory;
+
+    @DynamicPropertySource
+    static void databaseInDirectory(DynamicPropertyRegistry registry) {
+        registry.add("spring.datasource.url", () -> "jdbc:h2:file:" + new File(directory, "subjects_db").getPath());
+    }
+
+    @Autowired
+    TestRestTemplate rest;
+
+    @Autowired
+    DataSource dataSource;
+
+    @Test
+    void leavesTheDatabaseAloneUntilSomethingUsesIt() throws Exception {
+        assertTrue(rest.getForObject("/actuator/health", String.class).contains("UP"));
+        rest.getForObject("/actuator/prometheus", String.class);
+        assertArrayEquals(new String[0], directory.list());
+
+        try (Connection connection = dataSource.getConnection()) {
+            assertTrue(new File(directory, "subjects_db.mv.db").exists());
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package org.sleepandcognition.prosrandboot;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+import org.sleepandcognition.prosrand.AlternatingRandomizer;
+import org.sleepandcognition.prosrand.InvalidDataException;
+import org.sleepandcognition.prosrand.ProtocolSpec;
+import org.sleepandcognition.prosrand.Randomizer;
+import org.sleepandcognition.prosrand.SubjectDatabase;
+import org.sleepandcognition.prosrand.VariableSpec;
+
+public class ProtocolRegistryTest {
+    /* Knows whether it has been closed */
+    static class FakeRandomizer extends AlternatingRandomizer {
+        volatile boolean closed;
+
+        FakeRandomizer() throws IOException, InvalidDataException {
+            super(spec(), new SubjectDatabase());
+            setVerbosity(-1);
+        }
+
+        @Override
+        public void close() throws IOException {
+            super.close();
+            closed = true;
+        }
+    }
+
+    static ProtocolSpec spec() {
+        VariableSpec sex = new VariableSpec();
+        sex.setName("sex");
+        sex.setType("categorical");
+        sex.setLevels(Arrays.asList("F", "M"));
+        ProtocolSpec spec = new ProtocolSpec();
+        spec.setGroupNames(Arrays.asList("A", "B"));
+        spec.setVariableSpec(Arrays.asList(sex));
+        spec.setAlgorithm("Alternating");
+        return spec;
+    }
+
+    ConcurrentHashMap<String, AtomicInteger> loads = new ConcurrentHashMap<String, AtomicInteger>();
+    List<String> unloaded = Collections.synchronizedList(new ArrayList<String>());
+
+    ProtocolRegistry registry(Duration idleTimeout, int maxLoaded) {
+        return new ProtocolRegistry(idleTimeout, maxLoaded, 0, (name, randomizer) -> {
+            assertTrue(((FakeRandomizer) randomizer).closed, name + " not closed when unloaded");
+            unloaded.add(name);
+        });
+    }
+
+    Callable<Randomizer> loader(String name) {
+        return () -> {
+            loads.computeIfAbsent(name, n -> new AtomicInteger()).incrementAndGet();
+            return new FakeRandomizer();
+        };
+    }
+
+    void start(ProtocolRegistry registry, String name) throws Exception {
+        registry.start(name, loader(name), true).close();
+        // so that no two protocols were last used in the same millisecond
+        Thread.sleep(5);
+    }
+
+    void use(ProtocolRegistry registry, String name) throws Exception {
+        registry.lease(name).close();
+        Thread.sleep(5);
+    }
+
+    /* Waits for whatever the unloader has been given to do */
+    static void settle(ProtocolRegistry registry) throws Exception {
+        registry.unloader.submit(() -> {}).get(10, TimeUnit.SECONDS);
+    }
+
+    /* Sweeps on the unloader (the sweep done on loading may have come before the loading request was done) */
+    static void sweep(ProtocolRegistry registry) throws Exception {
+        registry.unloader.submit(registry::sweep).get(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void unloadsTheLeastRecentlyUsedOverTheBudget() throws Exception {
+        ProtocolRegistry registry = registry(Duration.ZERO, 2);
+        start(registry, "a");
+        start(registry, "b");
+        use(registry, "a");
+        start(registry, "c");
+        settle(registry);
+        assertEquals(Arrays.asList("b"), unloaded);
+        assertEquals(2, registry.loadedCount());
+        assertEquals(3, registry.registeredCount());
+        assertEquals(3, registry.summaries().size());
+
+        // loaded again, from its loader, which leaves a as the least recently used
+        use(registry, "b");
+        settle(registry);
+        assertEquals(2, loads.get("b").get());
+        assertEquals(Arrays.asList("b", "a"), unloaded);
+        assertEquals(1, loads.get("a").get());
+        assertEquals(1, loads.get("c").get());
+    }
+
+    @Test
+    public void unloadsIdleProtocolsButNotTemporaryOnes() throws Exception {
+        ProtocolRegistry registry = registry(Duration.ofMillis(100), 0);
+        start(registry, "a");
+        registry.start("temp", loader("temp"), false).close();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (registry.loadedCount() > 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(Arrays.asList("a"), unloaded);
+        assertEquals(1, registry.loadedCount());
+
+        try (ProtocolRegistry.Lease lease = registry.lease("a")) {
+            assertFalse(((FakeRandomizer) lease.randomizer()).closed);
+        }
+        assertEquals(2, loads.get("a").get());
+        assertEquals(1, loads.get("temp").get());
+    }
+
+    @Test
+    public void anOpenLeaseKeepsItsProtocolLoaded() throws Exception {
+        ProtocolRegistry registry = registry(Duration.ZERO, 1);
+        try (ProtocolRegistry.Lease lease = registry.start("a", loader("a"), true)) {
+            Thread.sleep(5);
+            // over the budget, but a is in use, so b goes instead
+            start(registry, "b");
+            sweep(registry);
+            assertEquals(Arrays.asList("b"), unloaded);
+            assertFalse(((FakeRandomizer) lease.randomizer()).closed);
+        }
+        start(registry, "c");
+        sweep(registry);
+        assertEquals(Arrays.asList("b", "a"), unloaded);
+    }
+
+    @Test
+    public void stopReturnsAtOnceAndClosesOnceTheLastLeaseIsReleased() throws Exception {
+        ProtocolRegistry registry = registry(Duration.ZERO, 0);
+        ProtocolRegistry.Lease lease = registry.start("a", loader("a"), true);
+        FakeRandomizer randomizer = (FakeRandomizer) lease.randomizer();
+        assertTrue(registry.stop("a"));
+        assertNull(registry.lease("a"));
+        assertNull(registry.changes("a"));
+        assertFalse(registry.stop("a"));
+        settle(registry);
+        assertFalse(randomizer.closed);
+
+        // started again meanwhile, it waits for the first to be closed
+        ExecutorService starter = Executors.newSingleThreadExecutor();
+        Future<ProtocolRegistry.Lease> restarted = starter.submit(() -> registry.start("a", loader("a"), true));
+        Thread.sleep(100);
+        assertFalse(restarted.isDone());
+
+        lease.close();
+        try (ProtocolRegistry.Lease again = restarted.get(10, TimeUnit.SECONDS)) {
+            assertTrue(randomizer.closed);
+            assertEquals(Arrays.asList("a"), unloaded);
+            assertNotSame(randomizer, again.randomizer());
+            assertFalse(((FakeRandomizer) again.randomizer()).closed);
+        }
+        starter.shutdown();
+    }
+
+    @Test
+    public void aFailedFirstLoadForgetsTheProtocol() throws Exception {
+        ProtocolRegistry registry = registry(Duration.ZERO, 0);
+        assertThrows(
+                InvalidDataException.class,
+                () -> registry.start(
+                        "a",
+                        () -> {
+                            throw new InvalidDataException("bad spec");
+                        },
+                        true));
+        assertEquals(0, registry.registeredCount());
+        assertNull(registry.lease("a"));
+        start(registry, "a");
+        assertEquals(1, registry.loadedCount());
+    }
+
+    @Test
+    public void loadingOneProtocolHoldsUpNeitherOthersNorTheUnloader() throws Exception {
+        ProtocolRegistry registry = registry(Duration.ZERO, 1);
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch finish = new CountDownLatch(1);
+        ExecutorService starter = Executors.newSingleThreadExecutor();
+        Future<ProtocolRegistry.Lease> slow = starter.submit(() -> registry.start(
+                "slow",
+                () -> {
+                    loading.countDown();
+                    finish.await();
+                    return new FakeRandomizer();
+                },
+                true));
+        try {
+            assertTrue(loading.await(10, TimeUnit.SECONDS));
+            start(registry, "a");
+            start(registry, "b");
+            // the sweep passes over the protocol being loaded
+            settle(registry);
+            assertEquals(Arrays.asList("a"), unloaded);
+            assertFalse(slow.isDone());
+        } finally {
+            finish.countDown();
+        }
+        slow.get(10, TimeUnit.SECONDS).close();
+        starter.shutdown();
+    }
+
+    @Test
+    public void noLeaseSeesAClosedRandomizer() throws Exception {
+        ProtocolRegistry registry = registry(Duration.ofMillis(1), 1);
+        List<String> names = Arrays.asList("a", "b", "c");
+        for (String name : names) {
+            start(registry, name);
+        }
+        ExecutorService clients = Executors.newFixedThreadPool(8);
+        ArrayList<Future<Object>> done = new ArrayList<Future<Object>>();
+        for (int t = 0; t < 8; t++) {
+            done.add(clients.submit(() -> {
+                for (int i = 0; i < 300; i++) {
+                    String name = names.get(ThreadLocalRandom.current().nextInt(names.size()));
+                    try (ProtocolRegistry.Lease lease = registry.lease(name)) {
+                        FakeRandomizer randomizer = (FakeRandomizer) lease.randomizer();
+                        assertFalse(randomizer.closed, name + " closed when leased");
+                        randomizer.subjectCount();
+                        Thread.yield();
+                        assertFalse(randomizer.closed, name + " closed while leased");
+                        assertSame(randomizer, lease.randomizer());
+                    }
+                }
+                return null;
+            }));
+        }
+        for (Future<Object> future : done) {
+            future.get(60, TimeUnit.SECONDS);
+        }
+        clients.shutdown();
+        assertTrue(unloaded.size() > 0);
+    }
+}
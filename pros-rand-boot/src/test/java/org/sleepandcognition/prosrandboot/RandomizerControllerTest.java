@@ -0,0 +1,152 @@
+package org.sleepandcognition.prosrandboot;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+
+/*
+ * The ETags of /protocols, /{protocolName}/summary, /groups and /variables: a client that sends back the tag it
+ * was given (If-None-Match) gets 304 Not Modified until something about the subjects changes. Each test starts
+ * protocols of its own, with temp=true so that nothing is saved.
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+public class RandomizerControllerTest {
+    static final String SPEC = "{\"groupNames\": [\"A\", \"B\"], \"algorithm\": \"Balanced\","
+            + " \"variableSpec\": [{\"name\": \"score\", \"type\": \"continuous\"}]}";
+
+    @Autowired
+    TestRestTemplate rest;
+
+    private void start(String protocolName) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_JSON);
+        ResponseEntity<String> response = rest.postForEntity(
+                "/" + protocolName + "/start?temp=true", new HttpEntity<String>(SPEC, headers), String.class);
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+    }
+
+    private void stop(String protocolName) {
+        rest.delete("/" + protocolName + "/stop");
+    }
+
+    private void put(String protocolName, String id, double score) {
+        ResponseEntity<String> response = rest.postForEntity(
+                "/" + protocolName + "/subject/" + id, Map.of("score", Double.toString(score)), String.class);
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+    }
+
+    private String place(String protocolName, String id, double score) {
+        ResponseEntity<String> response = rest.postForEntity(
+                "/" + protocolName + "/subject/" + id + "/group",
+                Map.of("score", Double.toString(score)),
+                String.class);
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        return response.getBody();
+    }
+
+    /* GETs the path, sending the given tag (if any) as If-None-Match */
+    private ResponseEntity<String> get(String path, String etag) {
+        HttpHeaders headers = new HttpHeaders();
+        if (etag != null) {
+            headers.setIfNoneMatch(etag);
+        }
+        return rest.exchange(path, HttpMethod.GET, new HttpEntity<Void>(headers), String.class);
+    }
+
+    /* Checks that the tag it was given gets a 304, with no body; returns the tag */
+    private String notModifiedWithItsOwnTag(String path) {
+        ResponseEntity<String> first = get(path, null);
+        assertEquals(HttpStatus.OK, first.getStatusCode(), path);
+        String etag = first.getHeaders().getETag();
+        assertNotNull(etag, path);
+        ResponseEntity<String> again = get(path, etag);
+        assertEquals(HttpStatus.NOT_MODIFIED, again.getStatusCode(), path);
+        assertNull(again.getBody(), path);
+        assertEquals(etag, again.getHeaders().getETag(), path);
+        return etag;
+    }
+
+    /* Checks that the old tag no longer gets a 304; returns the new one */
+    private String modifiedSince(String path, String oldEtag) {
+        ResponseEntity<String> response = get(path, oldEtag);
+        assertEquals(HttpStatus.OK, response.getStatusCode(), path);
+        assertNotNull(response.getBody(), path);
+        String etag = response.getHeaders().getETag();
+        assertNotEquals(oldEtag, etag, path);
+        assertEquals(HttpStatus.NOT_MODIFIED, get(path, etag).getStatusCode(), path);
+        return etag;
+    }
+
+    @Test
+    public void summaryChangesWithEachPutAndAssignment() {
+        start("etagSummary");
+        String path = "/etagSummary/summary";
+        String etag = notModifiedWithItsOwnTag(path);
+        put("etagSummary", "s1", 1.0);
+        etag = modifiedSince(path, etag);
+        // assigning a subject that was waiting
+        assertEquals(HttpStatus.OK, rest.getForEntity("/etagSummary/subject/s1/group", String.class).getStatusCode());
+        etag = modifiedSince(path, etag);
+        // reading a group already assigned changes nothing
+        rest.getForEntity("/etagSummary/subject/s1/group", String.class);
+        assertEquals(HttpStatus.NOT_MODIFIED, get(path, etag).getStatusCode());
+        place("etagSummary", "s2", 2.0);
+        modifiedSince(path, etag);
+        stop("etagSummary");
+    }
+
+    @Test
+    public void groupsChangeWithEachPutAndAssignment() {
+        start("etagGroups");
+        String path = "/etagGroups/groups";
+        String etag = notModifiedWithItsOwnTag(path);
+        place("etagGroups", "s1", 1.0);
+        etag = modifiedSince(path, etag);
+        put("etagGroups", "s2", 2.0);
+        modifiedSince(path, etag);
+        stop("etagGroups");
+    }
+
+    @Test
+    public void protocolsChangeWithAnyProtocol() {
+        start("etagListFirst");
+        String etag = notModifiedWithItsOwnTag("/protocols");
+        put("etagListFirst", "s1", 1.0);
+        etag = modifiedSince("/protocols", etag);
+        start("etagListSecond");
+        etag = modifiedSince("/protocols", etag);
+        place("etagListSecond", "s1", 1.0);
+        etag = modifiedSince("/protocols", etag);
+        stop("etagListFirst");
+        stop("etagListSecond");
+        modifiedSince("/protocols", etag);
+    }
+
+    @Test
+    public void variablesKeepTheirTagUntilTheProtocolIsStartedAgain() {
+        start("etagVariables");
+        String path = "/etagVariables/variables";
+        String etag = notModifiedWithItsOwnTag(path);
+        put("etagVariables", "s1", 1.0);
+        place("etagVariables", "s2", 2.0);
+        assertEquals(HttpStatus.NOT_MODIFIED, get(path, etag).getStatusCode());
+        // another randomizer, though of the same protocol, never reuses a tag
+        stop("etagVariables");
+        start("etagVariables");
+        modifiedSince(path, etag);
+        stop("etagVariables");
+    }
+}
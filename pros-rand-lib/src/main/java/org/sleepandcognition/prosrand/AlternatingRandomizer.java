@@ -29,7 +29,7 @@ public class AlternatingRandomizer extends Randomizer {
         for (Iterator<String> it = groupNamesInOrder.iterator(); it.hasNext(); ) {
             InterventionGroup aGroup = groups.get(it.next());
             if (aGroup.isEmpty()) {
-                assignSubjectToGroup(aGroup, unassignedSubjects.get(0));
+                assignSubjectToGroup(aGroup, unassignedSubjects.first());
                 return;
             }
             if (aGroup.currentGroupSize() < minimumScaledGroupSize) {
@@ -41,7 +41,7 @@ public class AlternatingRandomizer extends Randomizer {
             InterventionGroup aGroup = groups.get(it.next());
             if (aGroup.currentGroupSize()
                     == minimumScaledGroupSize) { // This group is in least-filled tier; consider adding to it
-                assignSubjectToGroup(aGroup, unassignedSubjects.get(0));
+                assignSubjectToGroup(aGroup, unassignedSubjects.first());
                 return;
             }
         } // END for each group (second pass)
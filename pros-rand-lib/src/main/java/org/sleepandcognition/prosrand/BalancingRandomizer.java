@@ -1,15 +1,17 @@
 package org.sleepandcognition.prosrand;
 
 import java.io.IOException;
-import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.Iterator;
-import java.util.Map;
+import java.util.stream.IntStream;
 
 import javax.xml.parsers.ParserConfigurationException;
 
 import org.xml.sax.SAXException;
 
 public class BalancingRandomizer extends Randomizer {
+    public static final int DEFAULT_PARALLEL_SCORING_THRESHOLD = 4096;
+
     public BalancingRandomizer(
             String groupListFile,
             VariableSet variables,
@@ -22,32 +24,98 @@ public class BalancingRandomizer extends Randomizer {
 
     public BalancingRandomizer(ProtocolSpec spec, SubjectDatabase db) throws IOException, InvalidDataException {
         super(spec, db);
+        if (spec.parallelScoringThreshold != null) {
+            parallelScoringThreshold = spec.parallelScoringThreshold;
+        }
     }
 
     private MeanVectorCalculator means;
+    /* Means and standard deviations of all subjects, copied out of the MeanVectorCalculator
+     * as of statistics version standardizationVersion.
+     */
+    private double[] globalMean;
+    private double[] globalStddev;
+    private long standardizationVersion = -1;
+    private HashMap<InterventionGroup, CandidateRanking> rankings;
+    private volatile int parallelScoringThreshold = DEFAULT_PARALLEL_SCORING_THRESHOLD;
+
+    /* With at least this many subjects waiting, score them against a group on all cores (in the common
+     * fork/join pool); 0 for always on one thread. The assignments are the same either way.
+     */
+    public void setParallelScoringThreshold(int subjects) {
+        parallelScoringThreshold = subjects;
+    }
 
     protected synchronized MeanVectorCalculator getMeans() {
         if (means == null) {
-            means = new MeanVectorCalculator();
+            means = new MeanVectorCalculator(variables.dimensionCount());
         }
         return means;
     }
 
+    @Override
+    protected MeanVectorCalculator allSubjectStatistics() {
+        return getMeans();
+    }
+
+    private void refreshStandardization() {
+        MeanVectorCalculator m = getMeans();
+        if (standardizationVersion != m.version()) {
+            if (globalMean == null) {
+                globalMean = new double[m.dimensionCount()];
+                globalStddev = new double[m.dimensionCount()];
+            }
+            for (int i = 0; i < globalMean.length; ++i) {
+                globalMean[i] = m.mean(i);
+                globalStddev[i] = m.stddev(i);
+            }
+            standardizationVersion = m.version();
+        }
+    }
+
+    /* The subject's features as z-scores against all subjects encountered so far.
+     * Cached on the subject until the global statistics change.
+     */
+    private double[] standardizedFeatures(MultiDimSubject subject) {
+        if (subject.standardized == null || subject.standardizedVersion != standardizationVersion) {
+            if (subject.standardized == null) {
+                subject.standardized = new double[globalMean.length];
+            }
+            for (int i = 0; i < globalMean.length; ++i) {
+                double v = 0.0;
+                if (globalStddev[i] > 0.0) {
+                    v = (subject.features[i] - globalMean[i]) / globalStddev[i];
+                }
+                subject.standardized[i] = v;
+            }
+            subject.standardizedVersion = standardizationVersion;
+        }
+        return subject.standardized;
+    }
+
+    private double[] weightedStandardizedMean(InterventionGroup aGroup) {
+        return aGroup.weightedStandardizedMean(globalMean, globalStddev, standardizationVersion);
+    }
+
     @Override
     protected synchronized boolean addSubject(MultiDimSubject subject) throws IOException, InvalidDataException {
         if (super.addSubject(subject)) {
             /* Keep track of statistics on all subjects encountered: */
-            for (Enumeration<String> vit = subject.baselineCharacteristics.keys(); vit.hasMoreElements(); ) {
-                String key = vit.nextElement();
-                Double value = subject.baselineCharacteristics.get(key);
-                getMeans().encounter(key, value);
-            }
+            getMeans().encounter(subject);
             return true;
         } else {
             return false;
         }
     }
 
+    @Override
+    protected synchronized void forgetSubject(String subjectID) {
+        MultiDimSubject subject = subjectsByID.get(subjectID);
+        super.forgetSubject(subjectID);
+        /* The statistics on all subjects are of the subjects we have now, as after a restart */
+        getMeans().forget(subject);
+    }
+
     /* This method is the core of the balancing randomizer.
      * Find the un-assigned subject and the group that have the most negative dot product
      * (i.e. the greatest mis-match) and assign that subject to that group.
@@ -60,31 +128,33 @@ public class BalancingRandomizer extends Randomizer {
      * scaled group size. For each of these groups, calculate the average vector, averaged over the
      * subjects already in that group; and for each unassigned subject, calculate the dot product
      * of the group's vector and the subject's vector. Keep track of which group/subject pairing is the
-     * winner for most negative.
+     * winner for most negative. (The dot products for each group are kept in a CandidateRanking, so
+     * they are only recalculated when that group's mean, or the statistics of all subjects, change.
+     * Ties go to the group that comes first by name, then to the subject that has waited longest.)
      *
      * Be sure to save the subject database after each assignment, so that we do not lose
      * any assignment which may have been announced to the world.
      */
     @Override
     protected synchronized void assignAnySubjectAGroup() {
+        refreshStandardization();
         int minimumScaledGroupSize = Integer.MAX_VALUE;
         for (Iterator<String> it = groupNamesInOrder.iterator(); it.hasNext(); ) {
             InterventionGroup aGroup = groups.get(it.next());
             if (aGroup.isEmpty()) {
-                if (verbosity > 0) {
-                    System.out.println("Found empty group, will assign to that one");
-                }
+                events.log(EventLog.Level.DEBUG, "emptyGroup", "Found empty group, will assign to that one");
                 // Find the most normal subject so far
                 double shortestVector = Double.MAX_VALUE;
                 MultiDimSubject winningSubject = null;
                 for (MultiDimSubject subject : unassignedSubjects) {
-                    double length = nomalizedLength(subject.baselineCharacteristics);
+                    double length = nomalizedLength(standardizedFeatures(subject));
                     if (length < shortestVector) {
                         shortestVector = length;
                         winningSubject = subject;
                     }
                 }
                 assignSubjectToGroup(aGroup, winningSubject);
+                winningSubject.standardized = null;
                 return;
             }
             if (aGroup.currentGroupSize() < minimumScaledGroupSize) {
@@ -92,18 +162,20 @@ public class BalancingRandomizer extends Randomizer {
             }
         } // END for each group (first pass)
 
-        if (verbosity >= 0) {
-            for (Enumeration<String> it = means.keyIterator(); it.hasMoreElements(); ) {
-                String key = it.nextElement();
-                if (verbosity > 0) {
-                    System.out.print(String.format("Mean of %s, all subjects: %f  ", key, means.mean(key)));
-                    System.out.println(String.format("Std dev of %s: %f", key, means.stddev(key)));
-                }
+        if (events.isEnabled(EventLog.Level.DEBUG)) {
+            for (int i = 0; i < means.dimensionCount(); ++i) {
+                String key = variables.dimensionKey(i);
+                events.log(
+                        EventLog.Level.DEBUG,
+                        "overallMean",
+                        "Mean of %s, all subjects: %f  Std dev of %s: %f",
+                        key,
+                        means.mean(i),
+                        key,
+                        means.stddev(i));
             }
         }
-        if (verbosity >= 0) {
-            System.out.println("Considering groups:");
-        }
+        events.log(EventLog.Level.INFO, "consideringGroups", "Considering groups:");
         double mostNegativeDotProduct = Double.MAX_VALUE;
         InterventionGroup winningGroup = null;
         MultiDimSubject winningSubject = null;
@@ -111,43 +183,171 @@ public class BalancingRandomizer extends Randomizer {
             InterventionGroup aGroup = groups.get(it.next());
             if (aGroup.currentGroupSize()
                     == minimumScaledGroupSize) { // This group is in least-filled tier; consider adding to it
-                Map<String, Double> vector = aGroup.getMeanVector();
-                if (verbosity >= 0) {
-                    System.out.println(aGroup.sizeString());
-                }
-                for (MultiDimSubject subject : unassignedSubjects) {
-                    double dotProduct = dotProductForVectors(vector, subject.baselineCharacteristics);
-                    if (dotProduct < mostNegativeDotProduct) {
-                        mostNegativeDotProduct = dotProduct;
-                        winningGroup = aGroup;
-                        winningSubject = subject;
-                    }
+                events.log(EventLog.Level.INFO, "groupSize", "%s: %d    ", aGroup.name, aGroup.currentGroupSize());
+                CandidateRanking ranking = rankingFor(aGroup);
+                int slot = ranking.bestSlot();
+                if (slot >= 0 && ranking.scores[slot] < mostNegativeDotProduct) {
+                    mostNegativeDotProduct = ranking.scores[slot];
+                    winningGroup = aGroup;
+                    winningSubject = unassignedSubjects.subjectInSlot(slot);
                 }
             }
         } // END for each group (second pass)
         assignSubjectToGroup(winningGroup, winningSubject);
+        winningSubject.standardized = null;
     }
 
-    private double nomalizedLength(Map<String, Double> baselineCharacteristics) {
-        double accum = dotProductForVectors(baselineCharacteristics, baselineCharacteristics);
-        return Math.sqrt(accum);
+    private CandidateRanking rankingFor(InterventionGroup aGroup) {
+        if (rankings == null) {
+            rankings = new HashMap<InterventionGroup, CandidateRanking>();
+        }
+        CandidateRanking ranking = rankings.get(aGroup);
+        if (ranking == null) {
+            ranking = new CandidateRanking(aGroup);
+            rankings.put(aGroup, ranking);
+        }
+        if (!ranking.isCurrent()) {
+            ranking.rank();
+        }
+        return ranking;
     }
 
-    private double dotProductForVectors(
-            Map<String, Double> vector, Map<String, Double> baselineCharacteristics) {
+    /* The unassigned subjects, ordered by their dot product with one group's weighted standardized mean,
+     * most negative first. This is a binary heap of backlog slot numbers, built in O(U) once the scores
+     * are calculated; subjects that leave the backlog are discarded lazily when they reach the top.
+     *
+     * The ranking stays valid as long as the group's membership, the statistics of all subjects, and the
+     * backlog's slot layout are unchanged, and no subjects have been added to the backlog. During a bulk
+     * ASSIGN only the group that just received a subject needs to be re-ranked.
+     *
+     * Scoring a large backlog is spread over several threads; see score() and setParallelScoringThreshold().
+     */
+    private class CandidateRanking {
+        InterventionGroup group;
+        double[] scores; // indexed by backlog slot
+        int[] heap;
+        int heapSize;
+        long groupModificationCount = -1;
+        long statsVersion = -1;
+        long layoutVersion = -1;
+        int slotCount = -1;
+
+        CandidateRanking(InterventionGroup group) {
+            this.group = group;
+        }
+
+        boolean isCurrent() {
+            return groupModificationCount == group.modificationCount
+                    && statsVersion == standardizationVersion
+                    && layoutVersion == unassignedSubjects.layoutVersion()
+                    && slotCount == unassignedSubjects.slotCount();
+        }
+
+        void rank() {
+            int slots = unassignedSubjects.slotCount();
+            if (scores == null || scores.length < slots) {
+                scores = new double[Math.max(slots, 16)];
+                heap = new int[scores.length];
+            }
+            double[] vector = weightedStandardizedMean(group);
+            int threshold = parallelScoringThreshold;
+            if (threshold > 0 && unassignedSubjects.size() >= threshold) {
+                IntStream.range(0, slots).parallel().forEach(slot -> score(vector, slot));
+            } else {
+                for (int slot = 0; slot < slots; ++slot) {
+                    score(vector, slot);
+                }
+            }
+            heapSize = 0;
+            for (int slot = 0; slot < slots; ++slot) {
+                if (unassignedSubjects.subjectInSlot(slot) != null) {
+                    heap[heapSize++] = slot;
+                }
+            }
+            for (int i = heapSize / 2 - 1; i >= 0; --i) {
+                siftDown(i);
+            }
+            groupModificationCount = group.modificationCount;
+            statsVersion = standardizationVersion;
+            layoutVersion = unassignedSubjects.layoutVersion();
+            slotCount = slots;
+        }
+
+        /*
+         * Each slot's score depends only on that slot's subject, and each subject is in one slot, so the slots
+         * can be scored in any order, on any threads, with the same result. (standardizedFeatures() caches on the
+         * subject, which again only the thread scoring its slot touches.) The heap is then built on this thread
+         * in slot order, so ties are broken just as they are when scoring on one thread.
+         */
+        private void score(double[] vector, int slot) {
+            MultiDimSubject subject = unassignedSubjects.subjectInSlot(slot);
+            if (subject != null) {
+                double dotProduct = dotProductForVectors(vector, standardizedFeatures(subject));
+                if (Double.isNaN(dotProduct)) {
+                    // can never win, just like in a straightforward scan
+                    dotProduct = Double.POSITIVE_INFINITY;
+                }
+                scores[slot] = dotProduct + 0.0; // no distinction between -0.0 and 0.0
+            }
+        }
+
+        /* Backlog slot of the best candidate still waiting for assignment, or -1 */
+        int bestSlot() {
+            while (heapSize > 0 && unassignedSubjects.subjectInSlot(heap[0]) == null) {
+                heap[0] = heap[--heapSize];
+                siftDown(0);
+            }
+            if (heapSize > 0) {
+                return heap[0];
+            }
+            return -1;
+        }
+
+        private boolean ranksBefore(int slotA, int slotB) {
+            double a = scores[slotA];
+            double b = scores[slotB];
+            if (a < b) {
+                return true;
+            }
+            if (a > b) {
+                return false;
+            }
+            return slotA < slotB;
+        }
+
+        private void siftDown(int i) {
+            int slot = heap[i];
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= heapSize) {
+                    break;
+                }
+                if (child + 1 < heapSize && ranksBefore(heap[child + 1], heap[child])) {
+                    ++child;
+                }
+                if (!ranksBefore(heap[child], slot)) {
+                    break;
+                }
+                heap[i] = heap[child];
+                i = child;
+            }
+            heap[i] = slot;
+        }
+    }
+
+    double nomalizedLength(double[] standardized) {
         double accum = 0.0;
+        for (int i = 0; i < standardized.length; ++i) {
+            accum += variables.weightForDimension(i) * standardized[i] * standardized[i];
+        }
+        return Math.sqrt(accum);
+    }
 
-        for (String key : baselineCharacteristics.keySet()) {
-            double mean = getMeans().mean(key);
-            double stddev = getMeans().stddev(key);
-            double v1 = 0.0;
-            double v2 = 0.0;
-            if (stddev > 0.0) {
-                v1 = (baselineCharacteristics.get(key) - mean) / stddev;
-                v2 = (vector.get(key) - mean) / stddev;
-            }
-            double weight = variables.weightForKey(key);
-            accum += weight * v1 * v2;
+    /* Both vectors are already standardized, and the first is already weighted */
+    private static double dotProductForVectors(double[] weightedVector, double[] standardized) {
+        double accum = 0.0;
+        for (int i = 0; i < standardized.length; ++i) {
+            accum += weightedVector[i] * standardized[i];
         }
         return accum;
     }
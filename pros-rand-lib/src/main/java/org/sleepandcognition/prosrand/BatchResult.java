@@ -0,0 +1,27 @@
+package org.sleepandcognition.prosrand;
+
+/*
+ * What became of one subject of a batch given to Randomizer.putOrPlaceSubjects(): if it could not be added,
+ * why not; otherwise, if it was placed, the group it was assigned to.
+ */
+public class BatchResult {
+    String id;
+    String groupName;
+    String error;
+
+    public BatchResult(String id) {
+        this.id = id;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getGroupName() {
+        return groupName;
+    }
+
+    public String getError() {
+        return error;
+    }
+}
@@ -0,0 +1,61 @@
+package org.sleepandcognition.prosrand;
+
+/*
+ * One change to a randomizer's subjects, once durable, as told to subscribers of its ChangeFeed: a subject was put
+ * (added, or revised), assigned to a group, committed or removed. Or, kind "reset": the subscriber has missed some
+ * events (they were no longer kept, or it asked to resume with a cursor this feed never gave out), and should read
+ * the subjects afresh; the events that follow are those after this one.
+ */
+public class ChangeEvent {
+    static final String RESET = "reset";
+
+    String epoch;
+    long sequence;
+    String kind;
+    String id;
+    String groupName;
+    long timeMillis;
+
+    ChangeEvent(String epoch, long sequence, String kind, String id, String groupName) {
+        this.epoch = epoch;
+        this.sequence = sequence;
+        this.kind = kind;
+        this.id = id;
+        this.groupName = groupName;
+        timeMillis = System.currentTimeMillis();
+    }
+
+    /* Names the feed; see ChangeFeed */
+    public String getEpoch() {
+        return epoch;
+    }
+
+    /* Numbers the events of a feed 1, 2, 3... */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /* "EPOCH-SEQUENCE", for resuming after this event with ChangeFeed.eventsAfter() */
+    public String cursor() {
+        return epoch + "-" + sequence;
+    }
+
+    /* "put", "assign", "commit", "remove" or "reset" */
+    public String getKind() {
+        return kind;
+    }
+
+    /* The subject's ID; null for a reset */
+    public String getId() {
+        return id;
+    }
+
+    /* For an assignment, the group */
+    public String getGroupName() {
+        return groupName;
+    }
+
+    public long getTimeMillis() {
+        return timeMillis;
+    }
+}
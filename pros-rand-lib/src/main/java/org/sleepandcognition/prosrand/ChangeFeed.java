@@ -0,0 +1,97 @@
+package org.sleepandcognition.prosrand;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * The changes a randomizer has durably saved, as events numbered in order, for clients that want to follow along
+ * (a dashboard, or a scheduling system waiting for assignments) rather than poll the groups or subjects. The most
+ * recent events are kept in a ring buffer of fixed size, so a subscriber that was briefly away (or reconnects)
+ * can resume after the last event it saw; one that has fallen further behind gets a reset event instead.
+ *
+ * Sequence numbers start again from 1 in each feed, e.g. each time the program is started, so a subscriber resumes
+ * with a cursor that also names the feed: its epoch, a random ID chosen when the feed is made, and the sequence
+ * number, as "EPOCH-SEQUENCE". A cursor from any other feed gets a reset event, however its number compares.
+ *
+ * Publishing an event only puts it in the ring and wakes any subscribers waiting for it; each subscriber reads
+ * the events on its own thread, so a slow one holds up nobody else. See Randomizer.setChangeFeed().
+ */
+public class ChangeFeed {
+    public static final int DEFAULT_CAPACITY = 10000;
+
+    final String epoch;
+    ChangeEvent[] ring;
+    /* Sequence number of the newest event; 0 before the first */
+    long latest;
+    boolean closed;
+
+    public ChangeFeed(int capacity) {
+        ring = new ChangeEvent[capacity];
+        epoch = String.format("%016x", new SecureRandom().nextLong());
+    }
+
+    /* Called by the randomizer for each change, in order, once the database reports it durable */
+    synchronized void publish(SubjectChange change) {
+        String kind = change.kind.name().toLowerCase();
+        String groupName = (change.kind == SubjectChange.Kind.ASSIGN) ? change.groupName : null;
+        ++latest;
+        ring[(int) (latest % ring.length)] = new ChangeEvent(epoch, latest, kind, change.subject.identifier, groupName);
+        notifyAll();
+    }
+
+    /* The cursor of the newest event, after which a new subscriber starts; EPOCH-0 if there has been none */
+    public synchronized String latest() {
+        return epoch + "-" + latest;
+    }
+
+    /* The sequence number in a cursor of this feed; -1 if it is another feed's, or not a cursor at all */
+    private long sequenceOf(String cursor) {
+        int dash = cursor.lastIndexOf('-');
+        if (dash < 0 || !cursor.substring(0, dash).equals(epoch)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(cursor.substring(dash + 1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /* Ends every subscription; e.g. when the protocol is stopped */
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    /*
+     * Up to max of the events after the one the given cursor is for, in order; if there are none yet, waits up to
+     * the given time for some, and returns an empty list if none come. If the events after that one are no longer
+     * all kept, or the cursor is not for an event of this feed, returns just a reset event, whose cursor is the one
+     * to carry on after. Returns null once the feed is closed.
+     */
+    public synchronized List<ChangeEvent> eventsAfter(String cursor, int max, long timeoutMillis)
+            throws InterruptedException {
+        long after = sequenceOf(cursor);
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (!closed && after == latest) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return new ArrayList<ChangeEvent>();
+            }
+            wait(remaining);
+        }
+        if (closed) {
+            return null;
+        }
+        ArrayList<ChangeEvent> events = new ArrayList<ChangeEvent>();
+        if (after < 0 || after > latest || after < latest - ring.length) {
+            events.add(new ChangeEvent(epoch, latest, ChangeEvent.RESET, null, null));
+            return events;
+        }
+        for (long sequence = after + 1; sequence <= latest && events.size() < max; ++sequence) {
+            events.add(ring[(int) (sequence % ring.length)]);
+        }
+        return events;
+    }
+}
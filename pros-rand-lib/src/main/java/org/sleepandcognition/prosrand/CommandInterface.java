@@ -1,10 +1,20 @@
 package org.sleepandcognition.prosrand;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 
 public class CommandInterface {
+    /* A subscriber with nothing to tell is sent "#" this often, which also finds out if it has gone away */
+    static final long HEARTBEAT_MILLIS = 15000;
+    /* Most events a subscriber is sent at once */
+    static final int MAX_EVENTS = 1000;
+
     Randomizer randomizer;
 
     /*
@@ -15,9 +25,17 @@ public class CommandInterface {
         this.randomizer = randomizer;
     }
 
+    static final Set<String> COMMANDS = Set.of(
+            "HELLO", "BYE", "QUIT", "EXISTS", "COMMITTED", "PUT", "PLACE", "PUTBATCH", "PLACEBATCH", "GET", "COMMIT",
+            "ASSIGN", "EXPORT", "STATS", "SUBSCRIBE");
+
     public String parseCommand(String inputLine) throws IOException {
+        countCommand(inputLine);
         if (inputLine.equalsIgnoreCase("HELLO RAND!")) {
             return String.format("HI CLIENT! v%d", Randomizer.RandomizerCommVersion());
+        } else if (inputLine.equalsIgnoreCase("BYE")) {
+            // the network servers close the connection after this reply
+            return "BYE";
         } else if (inputLine.equalsIgnoreCase("QUIT")) {
             randomizer.quit();
             return "OK";
@@ -41,18 +59,10 @@ public class CommandInterface {
                 }
             } else if (wordsOnLine[0].equalsIgnoreCase("PUT") || wordsOnLine[0].equalsIgnoreCase("PLACE")) {
                 String subjectID = wordsOnLine[1];
-                Map<String, String> values = new HashMap<>();
-                for (int i = 2; i < wordsOnLine.length; ++i) {
-                    String nameValuePair = wordsOnLine[i];
-                    String[] tokens = nameValuePair.split("=");
-                    switch (tokens.length) {
-                        case 2 -> values.put(tokens[0], tokens[1]);
-                        case 1 -> values.put(tokens[0], "");
-                        default -> {
-                            System.err.println("Corrupt PUT line? " + inputLine);
-                            return "?";
-                        }
-                    }
+                Map<String, String> values = valuesFromWords(wordsOnLine, 2);
+                if (values == null) {
+                    System.err.println("Corrupt PUT line? " + inputLine);
+                    return "?";
                 }
                 if (wordsOnLine[0].equalsIgnoreCase("PUT")) {
                     try {
@@ -71,6 +81,9 @@ public class CommandInterface {
                         return "?";
                     }
                 }
+            } else if (wordsOnLine[0].equalsIgnoreCase("PUTBATCH") || wordsOnLine[0].equalsIgnoreCase("PLACEBATCH")) {
+                return putOrPlaceBatch(
+                        inputLine.substring(wordsOnLine[0].length()), wordsOnLine[0].equalsIgnoreCase("PUTBATCH"));
             } else if (wordsOnLine[0].equalsIgnoreCase("GET")) {
                 String subjectID = wordsOnLine[1];
                 String groupID = randomizer.getGroup(subjectID);
@@ -91,8 +104,166 @@ public class CommandInterface {
             } else if (wordsOnLine[0].equalsIgnoreCase("ASSIGN")) {
                 randomizer.assignAllSubjects();
                 return "OK";
+            } else if (wordsOnLine[0].equalsIgnoreCase("EXPORT")) {
+                randomizer.exportSubjects();
+                return "OK";
+            } else if (wordsOnLine[0].equalsIgnoreCase("STATS")) {
+                return stats();
+            } else if (wordsOnLine[0].equalsIgnoreCase("SUBSCRIBE")) {
+                // the network servers take a SUBSCRIBE they can serve before it gets here; see subscribeAfter()
+                System.err.println("SUBSCRIBE is only for network connections, to a randomizer with a change feed");
+                return "?";
             }
         }
         return "?";
     }
+
+    /*
+     PUTBATCH or PLACEBATCH: subjects separated by semicolons, each given as for PUT, e.g.
+        PLACEBATCH s1 score=4 sex=F;s2 score=5 sex=M
+     All are added with one save; the reply has a result for each subject, in order, separated by semicolons:
+     OK (PUTBATCH) or the group (PLACEBATCH), or ? if that subject could not be added.
+    */
+    private String putOrPlaceBatch(String subjectList, boolean putFlag) throws IOException {
+        String[] entries = subjectList.split(";");
+        String[] replies = new String[entries.length];
+        ArrayList<String> subjectIDs = new ArrayList<String>();
+        ArrayList<Map<String, String>> values = new ArrayList<Map<String, String>>();
+        ArrayList<Integer> replyIndexes = new ArrayList<Integer>();
+        for (int i = 0; i < entries.length; ++i) {
+            String[] words = entries[i].trim().split(" ");
+            Map<String, String> subjectValues = valuesFromWords(words, 1);
+            if (words[0].length() < 1 || subjectValues == null) {
+                System.err.println("Corrupt batch entry? " + entries[i]);
+                replies[i] = "?";
+            } else {
+                subjectIDs.add(words[0]);
+                values.add(subjectValues);
+                replyIndexes.add(i);
+            }
+        }
+        List<BatchResult> results = randomizer.putOrPlaceSubjects(subjectIDs, values, putFlag);
+        for (int i = 0; i < results.size(); ++i) {
+            BatchResult result = results.get(i);
+            if (result.error != null) {
+                System.err.println(result.id + ": " + result.error);
+                replies[replyIndexes.get(i)] = "?";
+            } else {
+                replies[replyIndexes.get(i)] = putFlag ? "OK" : result.groupName;
+            }
+        }
+        return String.join(";", replies);
+    }
+
+    /*
+     SUBSCRIBE [CURSOR]: turns the connection into a stream of the changes saved from now on (or of those after the
+     given one, if still kept), one per line:
+        EVENT CURSOR PUT|ASSIGN|COMMIT|REMOVE SUBJECT [GROUP]
+     The cursor is EPOCH-SEQUENCE (see ChangeFeed); the group is given for ASSIGN. RESET CURSOR means that some events
+     were missed (read the subjects afresh); those after it follow. "#" is sent now and then when there is nothing to
+     tell. The first reply is OK CURSOR, the one the stream starts after. The connection takes no more requests; the
+     client closes it when done, and may resume later with SUBSCRIBE and the last cursor it saw.
+     Returns the cursor to start after, if the line is a SUBSCRIBE that can be served; otherwise null, and the line
+     is for parseCommand().
+    */
+    public String subscribeAfter(String inputLine) {
+        if (!inputLine.regionMatches(true, 0, "SUBSCRIBE", 0, 9)) {
+            return null;
+        }
+        String[] wordsOnLine = inputLine.split(" ");
+        ChangeFeed feed = randomizer.changeFeed();
+        if (!wordsOnLine[0].equalsIgnoreCase("SUBSCRIBE") || feed == null || wordsOnLine.length > 2) {
+            return null;
+        }
+        countCommand(inputLine);
+        return (wordsOnLine.length > 1) ? wordsOnLine[1] : feed.latest();
+    }
+
+    /* One line of a SUBSCRIBE stream */
+    static String eventLine(ChangeEvent event) {
+        if (event.kind.equals(ChangeEvent.RESET)) {
+            return "RESET " + event.cursor();
+        }
+        String line = "EVENT " + event.cursor() + " " + event.kind.toUpperCase() + " " + event.id;
+        return (event.groupName != null) ? line + " " + event.groupName : line;
+    }
+
+    /* Closes the randomizer, and ends any subscriptions to its changes */
+    public void close() throws IOException {
+        try {
+            randomizer.close();
+        } finally {
+            ChangeFeed feed = randomizer.changeFeed();
+            if (feed != null) {
+                feed.close();
+            }
+        }
+    }
+
+    /* For STATS; counts anything else (or a comment) as OTHER */
+    private void countCommand(String inputLine) {
+        String command = inputLine.split(" ", 2)[0].toUpperCase();
+        randomizer.stats.countCommand(COMMANDS.contains(command) ? command : "OTHER");
+    }
+
+    /*
+     STATS: a line of name=value pairs, separated by spaces:
+        subjects, backlog (subjects waiting for a group), assignments (made since start), imbalance and
+        imbalance.standardized (see Imbalance), group.NAME (size of each group);
+        for each operation (put, place, batch, get, assign_all, commit, remove, and the database's save and
+        await_durable): OPERATION.count, and OPERATION.mean_us, OPERATION.p99_us and OPERATION.max_us,
+        the mean, 99th percentile (roughly) and longest time taken, in microseconds;
+        command.WORD, the number of each command received.
+     Numbers are written the same way (with a decimal point) whatever the locale.
+    */
+    private String stats() {
+        RandomizerStats stats = randomizer.stats;
+        StringBuilder line = new StringBuilder();
+        line.append("subjects=").append(randomizer.subjectCount());
+        line.append(" backlog=").append(randomizer.backlogSize());
+        line.append(" assignments=").append(stats.assignments());
+        Imbalance imbalance = randomizer.imbalance();
+        line.append(String.format(Locale.ROOT, " imbalance=%f", imbalance.maxDistance));
+        Double maxStandardizedDistance = imbalance.getMaxStandardizedDistance();
+        if (maxStandardizedDistance != null) {
+            line.append(String.format(Locale.ROOT, " imbalance.standardized=%f", maxStandardizedDistance));
+        }
+        for (Iterator<Map.Entry<String, Integer>> it =
+                        randomizer.groupSizes().entrySet().iterator();
+                it.hasNext(); ) {
+            Map.Entry<String, Integer> entry = it.next();
+            line.append(" group.").append(entry.getKey()).append('=').append(entry.getValue());
+        }
+        for (RandomizerStats.Operation operation : RandomizerStats.Operation.values()) {
+            RandomizerStats.Timer timer = stats.timer(operation);
+            String name = operation.tag();
+            line.append(' ').append(name).append(".count=").append(timer.count());
+            line.append(String.format(Locale.ROOT, " %s.mean_us=%.1f", name, timer.meanNanos() / 1000.0));
+            line.append(' ').append(name).append(".p99_us=").append(timer.percentileNanos(0.99) / 1000);
+            line.append(' ').append(name).append(".max_us=").append(timer.maxNanos() / 1000);
+        }
+        for (Iterator<Map.Entry<String, Long>> it =
+                        stats.commandCounts().entrySet().iterator();
+                it.hasNext(); ) {
+            Map.Entry<String, Long> entry = it.next();
+            line.append(" command.").append(entry.getKey()).append('=').append(entry.getValue());
+        }
+        return line.toString();
+    }
+
+    /* The name=value pairs (or bare names, for multidimensional variables) from the given word on; null if corrupt */
+    private static Map<String, String> valuesFromWords(String[] words, int firstWord) {
+        Map<String, String> values = new HashMap<>();
+        for (int i = firstWord; i < words.length; ++i) {
+            String[] tokens = words[i].split("=");
+            switch (tokens.length) {
+                case 2 -> values.put(tokens[0], tokens[1]);
+                case 1 -> values.put(tokens[0], "");
+                default -> {
+                    return null;
+                }
+            }
+        }
+        return values;
+    }
 }
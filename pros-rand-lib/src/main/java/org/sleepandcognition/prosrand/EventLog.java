@@ -0,0 +1,237 @@
+package org.sleepandcognition.prosrand;
+
+import java.io.PrintStream;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Diagnostics of a randomizer (which subject went to which group, the group means and compositions, and so on),
+ * kept off the threads that do the work. Logging an event only checks its level against this log's level, and if
+ * it is to be logged, puts the event (its name, a format, and the values for the format) into a ring buffer; a
+ * single background thread, shared by all logs, takes events out and formats and prints them. So nothing is
+ * formatted or printed while the randomizer's lock is held, and when an event's level is not enabled, logging it
+ * costs no more than the check. If the ring buffer is full, the event is dropped rather than making the caller
+ * wait; the log's next event that is written is preceded by a warning of how many of its events were dropped,
+ * through the same sink.
+ *
+ * The values of an event are formatted later, on the background thread, so they must not be changed afterwards;
+ * log copies of anything that may change (see lines() and InterventionGroup.subjectReport()).
+ */
+public class EventLog {
+    public enum Level {
+        WARN,
+        INFO,
+        DEBUG,
+        TRACE
+    }
+
+    public static class Event {
+        long timeMillis;
+        Level level;
+        String source;
+        String name;
+        String format;
+        Object[] values;
+        Sink sink;
+        EventLog log;
+        CountDownLatch written; // for flush()
+
+        public long getTimeMillis() {
+            return timeMillis;
+        }
+
+        public Level getLevel() {
+            return level;
+        }
+
+        /* The log that the event came from, e.g. a protocol's name; or null */
+        public String getSource() {
+            return source;
+        }
+
+        /* Identifies the kind of event, e.g. "assigned" */
+        public String getName() {
+            return name;
+        }
+
+        public Object[] getValues() {
+            return values;
+        }
+
+        public String getMessage() {
+            return String.format(format, values);
+        }
+    }
+
+    /* Where events go once they have been taken off the ring buffer; called on the background thread only */
+    public interface Sink {
+        void write(Event event);
+    }
+
+    /* Prints the message of each event, after its source if any */
+    public static class PrintSink implements Sink {
+        PrintStream out;
+
+        public PrintSink(PrintStream out) {
+            this.out = out;
+        }
+
+        public void write(Event event) {
+            String message = event.getMessage();
+            if (event.source != null) {
+                message = "[" + event.source + "] " + message;
+            }
+            out.println(message);
+        }
+    }
+
+    static final int RING_SIZE = 8192;
+    static final ArrayBlockingQueue<Event> ring = new ArrayBlockingQueue<Event>(RING_SIZE);
+    static volatile Thread writer;
+
+    volatile Level level = Level.INFO;
+    String source;
+    Sink sink = new PrintSink(System.out);
+    /* Events of this log that did not fit in the ring buffer, since the last warning of them; see writeEvents() */
+    final AtomicLong dropped = new AtomicLong();
+
+    public EventLog(String source) {
+        this.source = source;
+    }
+
+    /* Randomizer.setVerbosity(): below 0, warnings only; 0, INFO; 1, DEBUG; more, TRACE */
+    public static Level levelForVerbosity(int verbosity) {
+        if (verbosity < 0) {
+            return Level.WARN;
+        } else if (verbosity == 0) {
+            return Level.INFO;
+        } else if (verbosity == 1) {
+            return Level.DEBUG;
+        } else {
+            return Level.TRACE;
+        }
+    }
+
+    public void setLevel(Level level) {
+        this.level = level;
+    }
+
+    /* Shown before each message, e.g. the protocol's name when there are several */
+    public void setSource(String source) {
+        this.source = source;
+    }
+
+    public void setSink(Sink sink) {
+        this.sink = sink;
+    }
+
+    public boolean isEnabled(Level eventLevel) {
+        return eventLevel.compareTo(level) <= 0;
+    }
+
+    public void log(Level eventLevel, String name, String format, Object... values) {
+        if (!isEnabled(eventLevel)) {
+            return;
+        }
+        Event event = newEvent(eventLevel, name, format, values);
+        startWriterIfNeeded();
+        if (!ring.offer(event)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    private Event newEvent(Level eventLevel, String name, String format, Object... values) {
+        Event event = new Event();
+        event.timeMillis = System.currentTimeMillis();
+        event.level = eventLevel;
+        event.source = source;
+        event.name = name;
+        event.format = format;
+        event.values = values;
+        event.sink = sink;
+        event.log = this;
+        return event;
+    }
+
+    /*
+     * Waits (up to a few seconds) until every event logged so far has been printed; e.g. so that the
+     * command line prints a reply after the diagnostics of the command. Not to be called holding a lock
+     * that logging threads need.
+     */
+    public void flush() {
+        if (writer == null) {
+            return;
+        }
+        Event marker = new Event();
+        marker.log = this;
+        marker.written = new CountDownLatch(1);
+        try {
+            if (ring.offer(marker, 5, TimeUnit.SECONDS)) {
+                marker.written.await(5, TimeUnit.SECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static synchronized void startWriterIfNeeded() {
+        if (writer == null) {
+            writer = new Thread(EventLog::writeEvents, "randomizer event log");
+            writer.setDaemon(true);
+            writer.start();
+        }
+    }
+
+    private static void writeEvents() {
+        while (true) {
+            Event event;
+            try {
+                event = ring.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            long droppedSoFar = event.log.dropped.getAndSet(0);
+            if (droppedSoFar > 0) {
+                write(event.log.newEvent(
+                        Level.WARN, "eventsDropped", "(%d diagnostic events dropped)", droppedSoFar));
+            }
+            if (event.written != null) {
+                event.written.countDown();
+                continue;
+            }
+            write(event);
+        }
+    }
+
+    private static void write(Event event) {
+        try {
+            event.sink.write(event);
+        } catch (RuntimeException e) {
+            // a bad format, or sink, must not stop the logging of everything else
+            e.printStackTrace();
+        }
+    }
+
+    /*
+     * Formats as one line per entry, "key: value", each preceded by a line break; for an event whose format
+     * ends with its heading, e.g. "Current group means:%s". Copy the map if it may change.
+     */
+    public static Object lines(Map<?, ?> entries) {
+        return new Object() {
+            @Override
+            public String toString() {
+                StringBuilder builder = new StringBuilder();
+                for (Iterator<? extends Map.Entry<?, ?>> it = entries.entrySet().iterator(); it.hasNext(); ) {
+                    Map.Entry<?, ?> entry = it.next();
+                    builder.append(System.lineSeparator());
+                    builder.append(entry.getKey()).append(": ").append(entry.getValue());
+                }
+                return builder.toString();
+            }
+        };
+    }
+}
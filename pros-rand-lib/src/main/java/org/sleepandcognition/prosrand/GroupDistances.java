@@ -0,0 +1,130 @@
+package org.sleepandcognition.prosrand;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Keeps the distances between the mean feature vectors of each pair of groups (see Imbalance) up to date as
+ * subjects join and leave groups. Only the groups whose membership has changed since last time (according to
+ * InterventionGroup.modificationCount) have their mean and their row of distances recomputed, which is
+ * O(groups * dimensions) per group changed, with no lookups by name. The standardized distances change with the
+ * statistics of all subjects, i.e. with every subject added, so they are not worked out here at all: each
+ * Imbalance is given the group means and the scale of each dimension, O(groups + dimensions), and works them out
+ * only if and when they are asked for.
+ *
+ * Used while holding the randomizer's lock. Each update() produces a new Imbalance, to be published for readers
+ * that do not take the lock.
+ */
+class GroupDistances {
+    InterventionGroup[] groups;
+    String[] names;
+    long[] seenModificationCount;
+    double[][] means; // null for an empty group
+    double[][] distances;
+    double[] scale; // null if there are no statistics of all subjects
+    long statsVersionSeen = -1;
+    long version;
+    Imbalance current;
+
+    GroupDistances(List<String> groupNamesInOrder, Map<String, InterventionGroup> groupsByName) {
+        int n = groupNamesInOrder.size();
+        groups = new InterventionGroup[n];
+        names = new String[n];
+        seenModificationCount = new long[n];
+        means = new double[n][];
+        distances = new double[n][n];
+        for (int g = 0; g < n; ++g) {
+            names[g] = groupNamesInOrder.get(g);
+            groups[g] = groupsByName.get(names[g]);
+            seenModificationCount[g] = -1;
+        }
+    }
+
+    /*
+     * Brings the distances up to date, given the statistics of all subjects (or null if there are none).
+     * Returns the current Imbalance, a new one only if anything changed.
+     */
+    Imbalance update(MeanVectorCalculator allSubjects, VariableSet variables) {
+        boolean anyGroupChanged = false;
+        for (int g = 0; g < groups.length; ++g) {
+            if (seenModificationCount[g] != groups[g].modificationCount) {
+                seenModificationCount[g] = groups[g].modificationCount;
+                means[g] = groups[g].meanFeatures();
+                for (int h = 0; h < groups.length; ++h) {
+                    distances[g][h] = distances[h][g] = distance(means[g], means[h], null);
+                }
+                anyGroupChanged = true;
+            }
+        }
+        boolean statsChanged = allSubjects != null && allSubjects.version() != statsVersionSeen;
+        if (statsChanged) {
+            // so that the distance is the weighted length BalancingRandomizer scores by, sqrt(sum of w * z^2)
+            scale = new double[allSubjects.dimensionCount()];
+            for (int i = 0; i < scale.length; ++i) {
+                double stddev = allSubjects.stddev(i);
+                scale[i] = stddev > 0.0 ? Math.sqrt(variables.weightForDimension(i)) / stddev : 0.0;
+            }
+            statsVersionSeen = allSubjects.version();
+        }
+        if (current == null || anyGroupChanged || statsChanged) {
+            current = snapshot();
+        }
+        return current;
+    }
+
+    /* Euclidean distance, with each dimension multiplied by scale[i] if given; NaN if either group is empty */
+    static double distance(double[] mean1, double[] mean2, double[] scale) {
+        if (mean1 == null || mean2 == null) {
+            return Double.NaN;
+        }
+        double sum = 0.0;
+        for (int i = 0; i < mean1.length; ++i) {
+            double diff = mean1[i] - mean2[i];
+            if (scale != null) {
+                diff *= scale[i];
+            }
+            sum += diff * diff;
+        }
+        return Math.sqrt(sum);
+    }
+
+    private Imbalance snapshot() {
+        Imbalance imbalance = new Imbalance();
+        imbalance.version = ++version;
+        imbalance.distances = matrix(names, distances);
+        imbalance.maxDistance = max(distances);
+        if (scale != null) {
+            // each group's mean is replaced, never changed in place, when the group changes
+            imbalance.standardizeLater(names, means.clone(), scale);
+        }
+        return imbalance;
+    }
+
+    static Map<String, Map<String, Double>> matrix(String[] names, double[][] values) {
+        LinkedHashMap<String, Map<String, Double>> rows = new LinkedHashMap<String, Map<String, Double>>();
+        for (int g = 0; g < names.length; ++g) {
+            LinkedHashMap<String, Double> row = new LinkedHashMap<String, Double>();
+            for (int h = 0; h < names.length; ++h) {
+                if (h != g) {
+                    row.put(names[h], Double.isNaN(values[g][h]) ? null : values[g][h]);
+                }
+            }
+            rows.put(names[g], Collections.unmodifiableMap(row));
+        }
+        return Collections.unmodifiableMap(rows);
+    }
+
+    static double max(double[][] values) {
+        double max = 0.0;
+        for (int g = 0; g < values.length; ++g) {
+            for (int h = 0; h < values.length; ++h) {
+                if (values[g][h] > max) { // NaN is never greater
+                    max = values[g][h];
+                }
+            }
+        }
+        return max;
+    }
+}
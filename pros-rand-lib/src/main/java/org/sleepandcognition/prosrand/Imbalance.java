@@ -0,0 +1,73 @@
+package org.sleepandcognition.prosrand;
+
+import java.util.Map;
+
+/*
+ * How different the groups are, as of the last change saved: the distance between the mean feature vectors of each
+ * pair of groups, and the greatest such distance. The standardized distances are between the group means as the
+ * balancing algorithm sees them: each dimension divided by its standard deviation over all subjects, and the
+ * squared differences weighted by the dimensions' weights, as BalancingRandomizer weights a subject's length. Distances
+ * to an empty group are null, and left out of the maximum.
+ *
+ * Immutable; see Randomizer.imbalance(). The standardized distances are worked out the first time they are asked
+ * for, from the group means kept for the purpose, since they change with every subject added.
+ */
+public class Imbalance {
+    long version;
+    double maxDistance;
+    Map<String, Map<String, Double>> distances;
+    // Guarded by the Imbalance; the means and scale are dropped once the distances are worked out from them
+    private String[] names;
+    private double[][] means;
+    private double[] scale;
+    private Double maxStandardizedDistance;
+    private Map<String, Map<String, Double>> standardizedDistances;
+
+    /* Gives the group means (null for an empty group) and the scale of each dimension, not to be changed after */
+    void standardizeLater(String[] names, double[][] means, double[] scale) {
+        this.names = names;
+        this.means = means;
+        this.scale = scale;
+    }
+
+    private void standardize() {
+        if (means == null) {
+            return;
+        }
+        double[][] values = new double[means.length][means.length];
+        for (int g = 0; g < means.length; ++g) {
+            for (int h = g; h < means.length; ++h) {
+                values[g][h] = values[h][g] = GroupDistances.distance(means[g], means[h], scale);
+            }
+        }
+        standardizedDistances = GroupDistances.matrix(names, values);
+        maxStandardizedDistance = GroupDistances.max(values);
+        names = null;
+        means = null;
+        scale = null;
+    }
+
+    /* Increases whenever the groups' means, or the statistics they are standardized against, change */
+    public long getVersion() {
+        return version;
+    }
+
+    public double getMaxDistance() {
+        return maxDistance;
+    }
+
+    /* Null if the randomizer keeps no statistics of all subjects (i.e. is not a balancing one) */
+    public synchronized Double getMaxStandardizedDistance() {
+        standardize();
+        return maxStandardizedDistance;
+    }
+
+    public Map<String, Map<String, Double>> getDistances() {
+        return distances;
+    }
+
+    public synchronized Map<String, Map<String, Double>> getStandardizedDistances() {
+        standardize();
+        return standardizedDistances;
+    }
+}
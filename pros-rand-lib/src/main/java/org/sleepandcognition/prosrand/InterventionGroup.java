@@ -7,10 +7,9 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
-import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Iterator;
+import java.util.LinkedHashSet;
 
 /* See https://clinicaltrials.gov/ct2/about-studies/glossary for terminology
  *
@@ -23,8 +22,16 @@ import java.util.Iterator;
 
 public class InterventionGroup {
     protected String name;
-    protected ArrayList<MultiDimSubject> subjects;
-    protected MeanVectorCalculator means;
+    /* In order of assignment; a set, so that a subject can be removed without a search */
+    protected LinkedHashSet<MultiDimSubject> subjects;
+    VariableSet variables;
+    /* Running sum of the feature vectors of the subjects in this group; kept up to date on every add and remove */
+    double[] featureSums;
+    /* Cached weighted, standardized group mean, valid for the global statistics version it was computed against */
+    double[] weightedStandardizedMean;
+    long standardizedAgainstVersion = -1;
+    /* Incremented whenever a subject is added to or removed from this group */
+    long modificationCount;
 
     static Map<String, InterventionGroup> ReadGroups(String fileNameOrPath) {
         HashMap<String, InterventionGroup> groups = new HashMap<String, InterventionGroup>();
@@ -61,7 +68,7 @@ public class InterventionGroup {
 
     public InterventionGroup(String n) {
         name = n;
-        subjects = new ArrayList<MultiDimSubject>();
+        subjects = new LinkedHashSet<MultiDimSubject>();
     }
 
     public String getName() {
@@ -76,48 +83,85 @@ public class InterventionGroup {
         return (subjects.size() < 1);
     }
 
+    /* A copy, in order of assignment */
     public ArrayList<MultiDimSubject> getSubjects() {
-        return subjects;
+        return new ArrayList<MultiDimSubject>(subjects);
     }
 
     public void addSubject(MultiDimSubject subject) {
         subjects.add(subject);
         subject.setGroup(this);
-        if (means != null) {
-            means.encounter(subject);
+        if (featureSums == null) {
+            featureSums = new double[subject.features.length];
         }
-    }
-
-    protected MeanVectorCalculator getMeans() {
-        if (means == null) {
-            means = new MeanVectorCalculator();
-            for (Iterator<MultiDimSubject> it = subjects.iterator(); it.hasNext(); ) {
-                MultiDimSubject s = it.next();
-                means.encounter(s);
-            }
+        for (int i = 0; i < featureSums.length; ++i) {
+            featureSums[i] += subject.features[i];
         }
-        return means;
+        standardizedAgainstVersion = -1;
+        ++modificationCount;
     }
 
-    public Map<String, Double> getMeanVector() {
-        HashMap<String, Double> meanVector = new HashMap<String, Double>();
+    /* Mean of the feature vectors of the subjects in this group, or null if the group is empty. */
+    double[] meanFeatures() {
         if (subjects.size() > 0) {
-            for (Enumeration<String> vit = getMeans().keyIterator(); vit.hasMoreElements(); ) {
-                String key = vit.nextElement();
-                meanVector.put(key, Double.valueOf(getMeans().mean(key)));
+            double n = subjects.size();
+            double[] meanVector = new double[featureSums.length];
+            for (int i = 0; i < meanVector.length; ++i) {
+                meanVector[i] = featureSums[i] / n;
             }
             return meanVector;
         }
         return null;
     }
 
-    public void printSubjectReport() {
-        for (Iterator<MultiDimSubject> it = subjects.iterator(); it.hasNext(); ) {
-            MultiDimSubject s = it.next();
-            System.out.print(s.identifier);
-            System.out.print("\t");
-            System.out.println(s.baselineCharacteristics);
+    /* The group mean, standardized against the given means and standard deviations of all subjects, and
+     * multiplied by the weight of each dimension. Scoring a candidate subject against this group is then
+     * a single dot product with the candidate's standardized features.
+     * Only recomputed if this group's membership or the global statistics have changed since last time.
+     */
+    double[] weightedStandardizedMean(double[] globalMean, double[] globalStddev, long statsVersion) {
+        if (standardizedAgainstVersion != statsVersion || weightedStandardizedMean == null) {
+            if (weightedStandardizedMean == null) {
+                weightedStandardizedMean = new double[globalMean.length];
+            }
+            double n = subjects.size();
+            for (int i = 0; i < weightedStandardizedMean.length; ++i) {
+                double v = 0.0;
+                if (globalStddev[i] > 0.0 && n > 0) {
+                    v = (featureSums[i] / n - globalMean[i]) / globalStddev[i];
+                }
+                weightedStandardizedMean[i] = variables.weightForDimension(i) * v;
+            }
+            standardizedAgainstVersion = statsVersion;
+        }
+        return weightedStandardizedMean;
+    }
+
+    public Map<String, Double> getMeanVector() {
+        double[] meanVector = meanFeatures();
+        if (meanVector != null) {
+            return new HashMap<String, Double>(variables.valuesFromVector(meanVector));
         }
+        return null;
+    }
+
+    /*
+     * Each subject in the group, as of now, on a line of its own (its id, a tab, and its features), each line
+     * preceded by a line break; formatted only when logged
+     */
+    Object subjectReport() {
+        MultiDimSubject[] snapshot = subjects.toArray(new MultiDimSubject[0]);
+        return new Object() {
+            @Override
+            public String toString() {
+                StringBuilder builder = new StringBuilder();
+                for (MultiDimSubject s : snapshot) {
+                    builder.append(System.lineSeparator());
+                    builder.append(s.identifier).append("\t").append(s.getFeatures());
+                }
+                return builder.toString();
+            }
+        };
     }
 
     public String sizeString() {
@@ -125,9 +169,13 @@ public class InterventionGroup {
     }
 
     public void remove(MultiDimSubject subj) {
-        subjects.remove(subj);
+        if (subjects.remove(subj)) {
+            for (int i = 0; i < featureSums.length; ++i) {
+                featureSums[i] -= subj.features[i];
+            }
+            standardizedAgainstVersion = -1;
+            ++modificationCount;
+        }
         subj.myGroup = null;
-        // invalidate calculations so far
-        means = null;
     }
 }
@@ -1,71 +1,86 @@
 package org.sleepandcognition.prosrand;
 
-import java.util.Enumeration;
-import java.util.Hashtable;
-
+/* Keeps running statistics for each dimension of a set of feature vectors.
+ * All vectors encountered must be laid out according to the same VariableSet dimension index.
+ */
 public class MeanVectorCalculator {
-    Hashtable<String, MeanCalculator> calculators;
-
-    public MeanVectorCalculator() {
-        calculators = new Hashtable<String, MeanCalculator>();
-    }
+    private int n;
+    private double[] mean;
+    private double[] M2;
+    /* Incremented whenever the statistics change, so that values derived from them can be cached */
+    private long version;
 
-    public Enumeration<String> keyIterator() {
-        return calculators.keys();
+    public MeanVectorCalculator(int dimensions) {
+        n = 0;
+        mean = new double[dimensions];
+        M2 = new double[dimensions];
     }
 
-    public void encounter(String key, double doubleValue) {
-        if (!calculators.containsKey(key)) {
-            calculators.put(key, new MeanCalculator());
-        }
-        calculators.get(key).addValue(doubleValue);
+    public int dimensionCount() {
+        return mean.length;
     }
 
-    public double mean(String key) {
-        return calculators.get(key).mean();
+    public int count() {
+        return n;
     }
 
-    public double stddev(String key) {
-        return calculators.get(key).stddev();
+    public long version() {
+        return version;
     }
 
     /* Knuth on-line algorithm for standard deviation */
-    private class MeanCalculator {
-        private int n;
-        private double mean;
-        private double M2;
-
-        public MeanCalculator() {
-            n = 0;
-            mean = 0.0;
-            M2 = 0.0;
+    public void encounter(double[] features) {
+        n = n + 1;
+        version = version + 1;
+        for (int i = 0; i < mean.length; ++i) {
+            double x = features[i];
+            double delta = x - mean[i];
+            mean[i] = mean[i] + delta / n;
+            M2[i] = M2[i] + delta * (x - mean[i]);
         }
+    }
 
-        public void addValue(double x) {
-            n = n + 1;
-            double delta = x - mean;
-            mean = mean + delta / n;
-            M2 = M2 + delta * (x - mean);
+    /* Undoes encounter() of the given vector, which must have been encountered, so that the statistics are as if
+     * it never had been (to within rounding). Knuth's update run backwards: O(dimensions), not a recount.
+     */
+    public void forget(double[] features) {
+        n = n - 1;
+        version = version + 1;
+        if (n == 0) {
+            for (int i = 0; i < mean.length; ++i) {
+                mean[i] = 0.0;
+                M2[i] = 0.0;
+            }
+            return;
         }
-
-        public double mean() {
-            return mean;
+        for (int i = 0; i < mean.length; ++i) {
+            double x = features[i];
+            double meanWith = mean[i];
+            mean[i] = meanWith - (x - meanWith) / n;
+            M2[i] = M2[i] - (x - meanWith) * (x - mean[i]);
+            if (M2[i] < 0.0 || n == 1) {
+                M2[i] = 0.0; // only by rounding; one vector has no spread at all
+            }
         }
+    }
 
-        public double stddev() {
-            if (n > 1) {
-                return Math.sqrt(M2 / (n));
-            } else {
-                return 0.0;
-            }
+    public double mean(int dimension) {
+        return mean[dimension];
+    }
+
+    public double stddev(int dimension) {
+        if (n > 1) {
+            return Math.sqrt(M2[dimension] / (n));
+        } else {
+            return 0.0;
         }
     }
 
     public void encounter(MultiDimSubject subject) {
-        for (Enumeration<String> vit = subject.baselineCharacteristics.keys(); vit.hasMoreElements(); ) {
-            String key = vit.nextElement();
-            Double value = subject.baselineCharacteristics.get(key);
-            encounter(key, value.doubleValue());
-        }
+        encounter(subject.features);
+    }
+
+    public void forget(MultiDimSubject subject) {
+        forget(subject.features);
     }
 }
@@ -0,0 +1,248 @@
+package org.sleepandcognition.prosrand;
+
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.xml.sax.SAXException;
+
+/*
+ * Minimization in the manner of Pocock and Simon: each variable is a factor with a few levels (the levels of a
+ * categorical variable, or the bins between the cut points of a continuous one), and each subject, in order of
+ * arrival, goes to the group that would leave the least imbalance of the factors' margins: the sum, over the
+ * factors, of the range of the group counts at the subject's level. That group is chosen with the assignment
+ * probability (any tied with it equally likely), and one of the others otherwise, so that assignments cannot be
+ * foretold.
+ *
+ * The counts of subjects in each group at each level are kept up to date as subjects are assigned and removed,
+ * so an assignment takes time in proportion to groups times factors, however many subjects there are.
+ */
+public class MinimizationRandomizer extends Randomizer {
+    public static final double DEFAULT_ASSIGNMENT_PROBABILITY = 0.8;
+
+    /* For each factor: its first dimension in the feature vector, its number of levels, and (only if continuous)
+     * its cut points, in increasing order; and where its levels start in each group's row of counts.
+     */
+    private int[] factorDimension;
+    private int[] factorLevels;
+    private double[][] factorCuts;
+    private int[] factorOffset;
+    private int levelCount;
+    /* counts[g][factorOffset[f] + level]: subjects in the g'th group (in order of name) at that level of factor f.
+     * Built from the groups when first needed, as the subjects read from the database go straight into them.
+     */
+    int[][] counts;
+    private double assignmentProbability = DEFAULT_ASSIGNMENT_PROBABILITY;
+    private Random random = new SecureRandom();
+
+    public MinimizationRandomizer(
+            String groupListFile,
+            VariableSet variables,
+            SubjectDatabase db,
+            StillGoingFlag listening,
+            boolean allowRevision)
+            throws SAXException, IOException, ParserConfigurationException, InvalidDataException {
+        super(groupListFile, checked(variables), db, listening, allowRevision);
+        setUpFactors();
+    }
+
+    public MinimizationRandomizer(ProtocolSpec spec, SubjectDatabase db) throws IOException, InvalidDataException {
+        super(checked(spec), db);
+        setUpFactors();
+        if (spec.assignmentProbability != null) {
+            setAssignmentProbability(spec.assignmentProbability);
+        }
+    }
+
+    /*
+     * The variables, once checked that minimization can use them: before the database is read, so that a bad
+     * spec leaves nothing open.
+     */
+    private static VariableSet checked(VariableSet variables) throws InvalidDataException {
+        checkCutPoints(variables.getVariableSpecs());
+        return variables;
+    }
+
+    private static ProtocolSpec checked(ProtocolSpec spec) throws InvalidDataException {
+        checkCutPoints(spec.variableSpec);
+        if (spec.assignmentProbability != null) {
+            checkProbability(spec.assignmentProbability);
+        }
+        return spec;
+    }
+
+    private static void checkCutPoints(List<VariableSpec> specs) throws InvalidDataException {
+        for (VariableSpec spec : specs) {
+            if (spec.getType().equals("continuous")
+                    && (spec.getCutPoints() == null || spec.getCutPoints().isEmpty())) {
+                throw new InvalidDataException("Minimization needs cut points for variable " + spec.getName());
+            }
+        }
+    }
+
+    private static void checkProbability(double probability) throws InvalidDataException {
+        if (!(probability >= 0.0 && probability <= 1.0)) {
+            throw new InvalidDataException("Assignment probability must be from 0 to 1");
+        }
+    }
+
+    private void setUpFactors() {
+        List<VariableSpec> specs = variables.getVariableSpecs();
+        factorDimension = new int[specs.size()];
+        factorLevels = new int[specs.size()];
+        factorCuts = new double[specs.size()][];
+        factorOffset = new int[specs.size()];
+        for (int f = 0; f < specs.size(); ++f) {
+            VariableSpec spec = specs.get(f);
+            factorDimension[f] = variables.firstDimension(spec.getName());
+            if (spec.getType().equals("continuous")) {
+                // see checked()
+                double[] cuts = new double[spec.getCutPoints().size()];
+                for (int i = 0; i < cuts.length; ++i) {
+                    cuts[i] = spec.getCutPoints().get(i);
+                }
+                Arrays.sort(cuts);
+                factorCuts[f] = cuts;
+                factorLevels[f] = cuts.length + 1;
+            } else {
+                factorLevels[f] = spec.getLevels().size();
+            }
+            factorOffset[f] = levelCount;
+            levelCount += factorLevels[f];
+        }
+    }
+
+    /* The chance, from 0 to 1, of assigning a subject to the group that would leave the least imbalance */
+    public synchronized void setAssignmentProbability(double probability) throws InvalidDataException {
+        checkProbability(probability);
+        assignmentProbability = probability;
+    }
+
+    /* Makes the assignments repeatable, e.g. for simulations; by default they are as unpredictable as can be */
+    public synchronized void setRandomSeed(long seed) {
+        random = new Random(seed);
+    }
+
+    /* The subject's level of factor f: for a continuous variable, the number of cut points at or below its value */
+    int level(MultiDimSubject subject, int f) {
+        if (factorCuts[f] != null) {
+            double value = subject.features[factorDimension[f]];
+            int level = 0;
+            while (level < factorCuts[f].length && value >= factorCuts[f][level]) {
+                ++level;
+            }
+            return level;
+        }
+        for (int level = 0; level < factorLevels[f]; ++level) {
+            if (subject.features[factorDimension[f] + level] > 0.5) {
+                return level;
+            }
+        }
+        return 0;
+    }
+
+    private void count(int[] row, MultiDimSubject subject, int change) {
+        for (int f = 0; f < factorLevels.length; ++f) {
+            row[factorOffset[f] + level(subject, f)] += change;
+        }
+    }
+
+    /* The counts, worked out afresh from the subjects in each group */
+    int[][] countGroups() {
+        int[][] table = new int[groupNamesInOrder.size()][levelCount];
+        for (int g = 0; g < table.length; ++g) {
+            for (MultiDimSubject subject : groups.get(groupNamesInOrder.get(g)).getSubjects()) {
+                count(table[g], subject, 1);
+            }
+        }
+        return table;
+    }
+
+    synchronized int[][] counts() {
+        if (counts == null) {
+            counts = countGroups();
+        }
+        return counts;
+    }
+
+    @Override
+    public synchronized void assignSubjectToGroup(InterventionGroup aGroup, MultiDimSubject multiDimSubject) {
+        super.assignSubjectToGroup(aGroup, multiDimSubject);
+        if (counts != null) {
+            count(counts[groupNamesInOrder.indexOf(aGroup.name)], multiDimSubject, 1);
+        }
+    }
+
+    @Override
+    protected synchronized void forgetSubject(String subjectID) {
+        MultiDimSubject subject = subjectsByID.get(subjectID);
+        InterventionGroup group = subject.myGroup;
+        super.forgetSubject(subjectID);
+        if (counts != null && group != null) {
+            count(counts[groupNamesInOrder.indexOf(group.name)], subject, -1);
+        }
+    }
+
+    @Override
+    protected synchronized void assignAnySubjectAGroup() {
+        MultiDimSubject subject = unassignedSubjects.first();
+        int[][] table = counts();
+        int groupCount = table.length;
+        /* For each factor, the range of the counts at the subject's level if the subject were to join group g
+         * only depends on the count of g, the greatest count, and the least count of the other groups; the least
+         * (and next least) of all groups tell us the latter.
+         */
+        int[] imbalance = new int[groupCount];
+        for (int f = 0; f < factorLevels.length; ++f) {
+            int column = factorOffset[f] + level(subject, f);
+            int most = Integer.MIN_VALUE;
+            int least = Integer.MAX_VALUE;
+            int nextLeast = Integer.MAX_VALUE;
+            int leastCount = 0;
+            for (int g = 0; g < groupCount; ++g) {
+                int n = table[g][column];
+                most = Math.max(most, n);
+                if (n < least) {
+                    nextLeast = least;
+                    least = n;
+                    leastCount = 1;
+                } else if (n == least) {
+                    ++leastCount;
+                } else if (n < nextLeast) {
+                    nextLeast = n;
+                }
+            }
+            for (int g = 0; g < groupCount; ++g) {
+                int n = table[g][column];
+                int leastOfOthers = (n == least && leastCount == 1) ? nextLeast : least;
+                imbalance[g] += Math.max(most, n + 1) - Math.min(leastOfOthers, n + 1);
+            }
+        }
+
+        int minimum = Integer.MAX_VALUE;
+        for (int g = 0; g < groupCount; ++g) {
+            minimum = Math.min(minimum, imbalance[g]);
+        }
+        ArrayList<Integer> best = new ArrayList<Integer>();
+        ArrayList<Integer> others = new ArrayList<Integer>();
+        for (int g = 0; g < groupCount; ++g) {
+            (imbalance[g] == minimum ? best : others).add(g);
+        }
+        List<Integer> candidates = best;
+        if (!others.isEmpty() && random.nextDouble() >= assignmentProbability) {
+            candidates = others;
+        }
+        int chosen = candidates.get(random.nextInt(candidates.size()));
+        assignSubjectToGroup(groups.get(groupNamesInOrder.get(chosen)), subject);
+    }
+
+    @Override
+    public String getAlgorithm() {
+        return "Minimization";
+    }
+}
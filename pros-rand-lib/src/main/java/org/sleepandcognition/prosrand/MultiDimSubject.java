@@ -4,20 +4,36 @@ import java.util.Hashtable;
 
 public class MultiDimSubject {
     String identifier;
-    Hashtable<String, Double> baselineCharacteristics;
-    InterventionGroup myGroup;
-    boolean isCommitted;
-
-    public MultiDimSubject(String id) {
+    /* Baseline characteristics, laid out according to the dimension index of the VariableSet. */
+    double[] features;
+    VariableSet variables;
+    /* Features standardized against the statistics of all subjects, cached while the subject awaits assignment */
+    double[] standardized;
+    long standardizedVersion = -1;
+    /* Position in the randomizer's backlog of unassigned subjects, or -1 */
+    int backlogSlot = -1;
+    volatile InterventionGroup myGroup;
+    volatile boolean isCommitted;
+    /*
+     * What the database holds durably about this subject, for readers that do not take the randomizer's lock: set
+     * (in Randomizer.releaseChanges()) only once the corresponding change is durable, so that such a reader never
+     * reports anything that could yet be lost. replacing is the earlier version of a revised subject, visible
+     * instead until this one is durable.
+     */
+    volatile boolean saved;
+    volatile String savedGroupName;
+    volatile boolean savedCommitted;
+    volatile MultiDimSubject replacing;
+    /* Order in which the randomizer received this subject; see Randomizer.addSubject() */
+    long arrivalNumber;
+
+    public MultiDimSubject(String id, VariableSet variables, double[] features) {
         identifier = id;
-        baselineCharacteristics = new Hashtable<String, Double>();
+        this.variables = variables;
+        this.features = features;
         myGroup = null;
     }
 
-    public void addCharacteristics(Hashtable<String, Double> values) {
-        baselineCharacteristics.putAll(values);
-    }
-
     public void setGroup(InterventionGroup interventionGroup) {
         myGroup = interventionGroup;
     }
@@ -27,7 +43,7 @@ public class MultiDimSubject {
     }
 
     public Hashtable<String, Double> getFeatures() {
-        return baselineCharacteristics;
+        return variables.valuesFromVector(features);
     }
 
     public String getGroupName() {
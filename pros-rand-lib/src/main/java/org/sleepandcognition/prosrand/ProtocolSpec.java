@@ -7,6 +7,12 @@ public class ProtocolSpec {
     List<VariableSpec> variableSpec;
     boolean allowRevision;
     String algorithm;
+    String storage;
+    String syncPolicy;
+    long syncDelayMillis;
+    Long checkpointInterval;
+    Integer parallelScoringThreshold;
+    Double assignmentProbability;
 
     public void setGroupNames(List<String> g) {
         groupNames = g;
@@ -39,4 +45,65 @@ public class ProtocolSpec {
     public String getAlgorithm() {
         return algorithm;
     }
+
+    /* How subjects are saved: "file" (the default) rewrites subjects_<protocol>.txt for each change,
+     * "log" appends each change to subjects_<protocol>.log, "jdbc" saves each change to a SQL database table
+     */
+    public void setStorage(String name) {
+        storage = name;
+    }
+
+    public String getStorage() {
+        return storage;
+    }
+
+    /* Only relevant to "log" storage: "fsync" (the default), "group", or "async"; see SyncPolicy */
+    public void setSyncPolicy(String name) {
+        syncPolicy = name;
+    }
+
+    public String getSyncPolicy() {
+        return syncPolicy;
+    }
+
+    public void setSyncDelayMillis(long millis) {
+        syncDelayMillis = millis;
+    }
+
+    public long getSyncDelayMillis() {
+        return syncDelayMillis;
+    }
+
+    /* Only relevant to "log" storage: snapshot all subjects and empty the log every so many changes
+     * (0 for never); if not given, SubjectLogDatabase's default is used
+     */
+    public void setCheckpointInterval(Long changes) {
+        checkpointInterval = changes;
+    }
+
+    public Long getCheckpointInterval() {
+        return checkpointInterval;
+    }
+
+    /* Only relevant to the "Balanced" algorithm: score the waiting subjects on several threads when there are
+     * at least this many (0 for never); if not given, BalancingRandomizer's default is used
+     */
+    public void setParallelScoringThreshold(Integer subjects) {
+        parallelScoringThreshold = subjects;
+    }
+
+    public Integer getParallelScoringThreshold() {
+        return parallelScoringThreshold;
+    }
+
+    /* Only relevant to the "Minimization" algorithm: the chance of assigning each subject to the group that would
+     * leave the least imbalance; if not given, MinimizationRandomizer's default is used
+     */
+    public void setAssignmentProbability(Double probability) {
+        assignmentProbability = probability;
+    }
+
+    public Double getAssignmentProbability() {
+        return assignmentProbability;
+    }
 }
@@ -0,0 +1,61 @@
+package org.sleepandcognition.prosrand;
+
+import java.util.Map;
+
+/*
+ * A few numbers describing a randomizer as of the last change saved, for listing and polling protocols without
+ * going through (or waiting for) their subjects: which algorithm, how many subjects there are in all, in each group,
+ * committed and waiting for a group, and a version that increases with every save.
+ *
+ * Immutable; see Randomizer.summary().
+ */
+public class ProtocolSummary {
+    String algorithm;
+    long version;
+    int subjectCount;
+    int committedCount;
+    int unassignedCount;
+    Map<String, Integer> groupSizes;
+    /* Differs between randomizers, even of the same protocol loaded again; see etag() */
+    long instance;
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    /* Increases whenever anything about the subjects changes, i.e. whenever changes are saved */
+    public long getVersion() {
+        return version;
+    }
+
+    public int getSubjectCount() {
+        return subjectCount;
+    }
+
+    public int getCommittedCount() {
+        return committedCount;
+    }
+
+    public int getUnassignedCount() {
+        return unassignedCount;
+    }
+
+    /* By group name, in order of name */
+    public Map<String, Integer> getGroupSizes() {
+        return groupSizes;
+    }
+
+    /*
+     * An HTTP entity tag that changes whenever the subjects or groups do: i.e. with the version, and from one
+     * randomizer to another (so that a protocol stopped and started again, or unloaded and loaded again, is not
+     * mistaken for the one before at the same version).
+     */
+    public String etag() {
+        return String.format("\"%x-%d\"", instance, version);
+    }
+
+    /* An HTTP entity tag for what never changes while the randomizer lives, e.g. its variables */
+    public String instanceEtag() {
+        return String.format("\"%x\"", instance);
+    }
+}
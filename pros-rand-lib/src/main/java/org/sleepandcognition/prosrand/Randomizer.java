@@ -1,13 +1,18 @@
 package org.sleepandcognition.prosrand;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Hashtable;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.TreeMap;
 import javax.xml.parsers.ParserConfigurationException;
 import org.xml.sax.SAXException;
 
@@ -15,15 +20,44 @@ public abstract class Randomizer {
     VariableSet variables;
     Map<String, InterventionGroup> groups;
     protected ConcurrentHashMap<String, MultiDimSubject> subjectsByID;
-    protected ArrayList<MultiDimSubject> unassignedSubjects;
+    /* The same subjects by arrivalNumber, for paging through them in order without the lock; see subjectsAfter() */
+    protected ConcurrentSkipListMap<Long, MultiDimSubject> subjectsByArrival;
+    /*
+     * Subjects removed, by ID, until the removal is durable: gone from subjectsByID (and the groups) at once, but
+     * still seen by readers without the lock, here and in subjectsByArrival; see forgetSubject()
+     */
+    private final ConcurrentHashMap<String, MultiDimSubject> removing =
+            new ConcurrentHashMap<String, MultiDimSubject>();
+    protected SubjectBacklog unassignedSubjects;
     StillGoingFlag controllersOffSwitch;
     SubjectDatabase database;
-    int verbosity;
+    /* Counts and timings of operations; see RandomizerStats */
+    protected RandomizerStats stats = new RandomizerStats();
+    /* Diagnostics; see setVerbosity() */
+    protected EventLog events = new EventLog(null);
     boolean allowRevision;
     protected ArrayList<String> groupNamesInOrder;
+    /* Changes made since the database was last told about them */
+    protected ArrayList<SubjectChange> pendingChanges = new ArrayList<SubjectChange>();
+    /* Number of subjects received so far, including any since removed */
+    protected long subjectsArrived;
+    /* Returned by the database for the most recently saved changes; see makeDurably(). Guarded by the lock */
+    private long lastSaveTicket;
+    /* Distances between the groups, kept up to date on every save, and published for readers without the lock */
+    private GroupDistances groupDistances;
+    private volatile Imbalance imbalance;
+    /* Counted on every save, and published with the counts of subjects for readers without the lock */
+    private long version;
+    private int committedCount;
+    private final long instance = ThreadLocalRandom.current().nextLong();
+    private volatile ProtocolSummary summary;
+    /* If set, where each change is published once durable; see setChangeFeed() */
+    private volatile ChangeFeed changeFeed;
+    /* Saves not yet published to the change feed, in order of ticket; see releaseChanges() */
+    private final ArrayDeque<SavedChanges> unreleasedChanges = new ArrayDeque<SavedChanges>();
 
     public static int RandomizerCommVersion() {
-        return 5;
+        return 9;
     }
 
     public Randomizer(
@@ -37,6 +71,7 @@ public abstract class Randomizer {
         database = db;
         this.variables = variables;
         groups = InterventionGroup.ReadGroups(groupListFile);
+        useVariablesForGroups();
         controllersOffSwitch = listening;
         readSubjects();
         init();
@@ -51,6 +86,7 @@ public abstract class Randomizer {
             String groupName = it.next();
             groups.put(groupName, new InterventionGroup(groupName));
         }
+        useVariablesForGroups();
         readSubjects();
         init();
     }
@@ -61,14 +97,32 @@ public abstract class Randomizer {
         groupNamesInOrder = new ArrayList<>();
         groupNamesInOrder.addAll(groups.keySet());
         Collections.sort(groupNamesInOrder);
+        groupDistances = new GroupDistances(groupNamesInOrder, groups);
+        publishImbalance();
+        publishSummary();
+    }
+
+    private void useVariablesForGroups() {
+        for (InterventionGroup group : groups.values()) {
+            group.variables = variables;
+        }
     }
 
     private void readSubjects() throws IOException, InvalidDataException {
         ArrayList<MultiDimSubject> subjects = database.ReadSubjectsIntoGroups(variables, groups);
         subjectsByID = new ConcurrentHashMap<String, MultiDimSubject>();
-        unassignedSubjects = new ArrayList<MultiDimSubject>();
+        subjectsByArrival = new ConcurrentSkipListMap<Long, MultiDimSubject>();
+        unassignedSubjects = new SubjectBacklog();
         for (Iterator<MultiDimSubject> it = subjects.iterator(); it.hasNext(); ) {
-            addSubject(it.next());
+            MultiDimSubject subject = it.next();
+            addSubject(subject);
+            // already in the database
+            subject.savedGroupName = subject.getGroupName();
+            subject.savedCommitted = subject.isCommitted;
+            subject.saved = true;
+            if (subject.savedCommitted) {
+                ++committedCount;
+            }
         }
     }
 
@@ -78,26 +132,135 @@ public abstract class Randomizer {
         }
     }
 
-    public synchronized boolean checkID(String string) {
-        return subjectsByID.containsKey(string);
+    /*
+     * Questions about a single subject (does it exist, is it committed, which group is it in) are answered
+     * without taking this randomizer's lock, so that they never wait behind a change such as an assignment.
+     * They are answered from what the database reports durable (see releaseChanges()), which is all that a client
+     * could have been told about anyway; a change still being made, or on its way to the disk, is not visible until
+     * it is durable. Until a revised subject is durable, the version it replaces is still the one visible; until a
+     * removal is durable, the subject removed is.
+     */
+    public boolean checkID(String string) {
+        MultiDimSubject subject = visible(string);
+        return subject != null;
+    }
+
+    public boolean isCommitted(String sID) {
+        MultiDimSubject subject = visible(sID);
+        return subject != null && subject.savedCommitted;
+    }
+
+    /* The version of the given subject that is durable (the one it replaces, if it is not yet), if any */
+    private static MultiDimSubject visible(MultiDimSubject subject) {
+        if (subject == null || subject.saved) {
+            return subject;
+        }
+        return subject.replacing;
     }
 
-    public synchronized boolean isCommitted(String sID) {
-        return checkID(sID) && subjectsByID.get(sID).isCommitted;
+    /* The version of the subject with the given ID that is durable, if any, even if its removal is on its way */
+    private MultiDimSubject visible(String subjectID) {
+        MultiDimSubject subject = visible(subjectsByID.get(subjectID));
+        if (subject == null) {
+            subject = visible(removing.get(subjectID));
+        }
+        return subject;
     }
 
     public synchronized boolean isRemovable(String subjectID) {
-        return checkID(subjectID) && !(subjectsByID.get(subjectID).isCommitted);
+        return subjectsByID.containsKey(subjectID) && !(subjectsByID.get(subjectID).isCommitted);
+    }
+
+    /*
+     * The public methods that change subjects do their work (and hand the changes to the database) while holding
+     * this randomizer's lock, in the corresponding do...() method; then, having let go of the lock, wait until the
+     * database reports that the changes are durable (see makeDurably()), before returning an answer that could be
+     * passed on to a client.
+     * That way, under the group commit sync policy, other requests can proceed while this one waits for the disk.
+     */
+    public String putOrPlaceSubject(String subjectID, Map<String, String> values, boolean putFlag)
+            throws IOException, InvalidDataException {
+        long start = System.nanoTime();
+        try {
+            String groupID = makeDurably(() -> doPutOrPlaceSubject(subjectID, values, putFlag));
+            return groupID;
+        } finally {
+            stats.record(putFlag ? RandomizerStats.Operation.PUT : RandomizerStats.Operation.PLACE, start);
+        }
     }
 
-    public synchronized String putOrPlaceSubject(String subjectID, Map<String, String> values, boolean putFlag)
+    protected synchronized String doPutOrPlaceSubject(String subjectID, Map<String, String> values, boolean putFlag)
             throws IOException, InvalidDataException {
-        if (allowRevision) {
-            if (isRemovable(subjectID)) {
-                removeSubject(subjectID);
+        MultiDimSubject subject = subjectFromValues(subjectID, values);
+        addOrReviseSubject(subject);
+        if (putFlag) {
+            saveChanges();
+            return null;
+        } else {
+            // saves the new subject along with its assignment
+            return doGetGroup(subjectID);
+        }
+    }
+
+    /*
+     * Like putOrPlaceSubject() for each of the given subjects, but all under one acquisition of the lock and with
+     * one save of all the changes; and if placing, all the subjects are added before any is assigned.
+     * A subject that cannot be added (e.g. missing data) does not stop the others; see its result.
+     */
+    public List<BatchResult> putOrPlaceSubjects(
+            List<String> subjectIDs, List<? extends Map<String, String>> values, boolean putFlag) throws IOException {
+        long start = System.nanoTime();
+        try {
+            List<BatchResult> results = makeDurably(() -> doPutOrPlaceSubjects(subjectIDs, values, putFlag));
+            return results;
+        } finally {
+            stats.record(RandomizerStats.Operation.BATCH, start);
+        }
+    }
+
+    protected synchronized List<BatchResult> doPutOrPlaceSubjects(
+            List<String> subjectIDs, List<? extends Map<String, String>> values, boolean putFlag) throws IOException {
+        ArrayList<BatchResult> results = new ArrayList<BatchResult>();
+        ArrayList<MultiDimSubject> added = new ArrayList<MultiDimSubject>();
+        for (int i = 0; i < subjectIDs.size(); ++i) {
+            BatchResult result = new BatchResult(subjectIDs.get(i));
+            MultiDimSubject subject = null;
+            try {
+                subject = subjectFromValues(subjectIDs.get(i), values.get(i));
+                addOrReviseSubject(subject);
+            } catch (InvalidDataException e) {
+                result.error = e.getMessage();
+                subject = null;
             }
+            results.add(result);
+            added.add(subject);
         }
-        MultiDimSubject subject = new MultiDimSubject(subjectID);
+        for (int i = 0; i < added.size(); ++i) {
+            MultiDimSubject subject = added.get(i);
+            if (subject != null && subjectsByID.get(subject.identifier) != subject) {
+                results.get(i).error = "Revised by a later entry in the same batch";
+                added.set(i, null);
+            } else if (subject != null && !putFlag) {
+                while (subject.myGroup == null) {
+                    assignAnySubjectAGroup();
+                }
+            }
+        }
+        saveChanges();
+        if (!putFlag) {
+            for (int i = 0; i < added.size(); ++i) {
+                if (added.get(i) != null) {
+                    results.get(i).groupName = added.get(i).getGroupName();
+                }
+            }
+        }
+        return results;
+    }
+
+    /* Builds a subject from the variable values given by a client, checking that all the variables are there */
+    protected MultiDimSubject subjectFromValues(String subjectID, Map<String, String> values)
+            throws InvalidDataException {
+        Hashtable<String, Double> characteristics = new Hashtable<String, Double>();
         for (Iterator<String> e = values.keySet().iterator(); e.hasNext(); ) {
             String key = e.next();
             String value = values.get(key);
@@ -105,32 +268,45 @@ public abstract class Randomizer {
                 if (!variables.isMultiDimensional()) {
                     throw new InvalidDataException("no value for key");
                 }
-                subject.addCharacteristics(variables.valuesFromKeyValuePair(null, key));
+                characteristics.putAll(variables.valuesFromKeyValuePair(null, key));
             } else {
-                subject.addCharacteristics(variables.valuesFromKeyValuePair(key, value));
+                try {
+                    characteristics.putAll(variables.valuesFromKeyValuePair(key, value));
+                } catch (NumberFormatException notANumber) {
+                    throw new InvalidDataException("Not a number: " + key + "=" + value);
+                }
             }
         }
-        if (!variables.hasAllVariablesSet(subject.baselineCharacteristics)) {
+        if (!variables.hasAllVariablesSet(characteristics)) {
             throw new InvalidDataException("Missing data");
         }
-        if (addNewSubject(subject)) {
-            if (putFlag) {
-                return null;
-            } else {
-                String groupID = getGroup(subjectID);
-                return groupID;
-            }
-        } else {
-            throw new InvalidDataException("duplicate subject?");
+        return new MultiDimSubject(subjectID, variables, variables.vectorFromValues(characteristics));
+    }
+
+    /* Adds a subject given by a client, replacing any earlier version if revision is allowed; does not save */
+    protected synchronized void addOrReviseSubject(MultiDimSubject subject)
+            throws IOException, InvalidDataException {
+        if (allowRevision && isRemovable(subject.identifier)) {
+            subject.replacing = visible(subject.identifier);
+            // a new arrival, in line before the version it replaces is gone, so that a reader going through
+            // subjectsByArrival without the lock never misses the subject (though it may see it twice)
+            subject.arrivalNumber = ++subjectsArrived;
+            subjectsByArrival.put(subject.arrivalNumber, subject);
+            MultiDimSubject old = subjectsByID.get(subject.identifier);
+            forgetSubject(subject.identifier);
+            // seen from now on as the revision, so not twice
+            subjectsByArrival.remove(old.arrivalNumber, old);
         }
+        addSubject(subject);
+        pendingChanges.add(new SubjectChange(SubjectChange.Kind.PUT, subject));
     }
 
-    public synchronized void putSubject(String subjectID, Map<String, String> values)
+    public void putSubject(String subjectID, Map<String, String> values)
             throws IOException, InvalidDataException {
         putOrPlaceSubject(subjectID, values, true);
     }
 
-    public synchronized void placeSubject(String subjectID, Map<String, String> values)
+    public void placeSubject(String subjectID, Map<String, String> values)
             throws IOException, InvalidDataException {
         putOrPlaceSubject(subjectID, values, false);
     }
@@ -139,20 +315,46 @@ public abstract class Randomizer {
         if (subjectsByID.containsKey(subject.identifier)) {
             throw new InvalidDataException("Attempt to add duplicate subject ID ");
         }
+        if (subject.arrivalNumber == 0) {
+            subject.arrivalNumber = ++subjectsArrived;
+        }
         subjectsByID.put(subject.identifier, subject);
+        subjectsByArrival.put(subject.arrivalNumber, subject);
         if (subject.myGroup == null) {
             unassignedSubjects.add(subject);
         }
         return true;
     }
 
-    public synchronized boolean addNewSubject(MultiDimSubject subject) throws IOException, InvalidDataException {
+    public boolean addNewSubject(MultiDimSubject subject) throws IOException, InvalidDataException {
+        boolean result = makeDurably(() -> doAddNewSubject(subject));
+        return result;
+    }
+
+    protected synchronized boolean doAddNewSubject(MultiDimSubject subject) throws IOException, InvalidDataException {
         boolean result = addSubject(subject);
-        database.WriteOutSubjects(subjectsByID, variables);
+        pendingChanges.add(new SubjectChange(SubjectChange.Kind.PUT, subject));
+        saveChanges();
         return result;
     }
 
-    public synchronized String getGroup(String subjectID) throws IOException {
+    public String getGroup(String subjectID) throws IOException {
+        long start = System.nanoTime();
+        try {
+            MultiDimSubject subject = visible(subjectID);
+            String savedGroupName = (subject == null) ? null : subject.savedGroupName;
+            if (savedGroupName != null) {
+                // Already assigned, and durable, so no need for the lock
+                return savedGroupName;
+            }
+            String groupID = makeDurably(() -> doGetGroup(subjectID));
+            return groupID;
+        } finally {
+            stats.record(RandomizerStats.Operation.GET, start);
+        }
+    }
+
+    protected synchronized String doGetGroup(String subjectID) throws IOException {
         if (subjectsByID.containsKey(subjectID)) {
             MultiDimSubject subject = subjectsByID.get(subjectID);
             boolean didAnyAssignments = false;
@@ -161,15 +363,14 @@ public abstract class Randomizer {
                 didAnyAssignments = true;
             }
             if (didAnyAssignments) {
-                database.WriteOutSubjects(subjectsByID, variables);
-                if (verbosity >= 0) {
-                    System.out.println("Current group means:");
+                saveChanges();
+                if (events.isEnabled(EventLog.Level.INFO)) {
+                    LinkedHashMap<String, Map<String, Double>> means = new LinkedHashMap<String, Map<String, Double>>();
                     for (Iterator<String> it = groups.keySet().iterator(); it.hasNext(); ) {
                         String key = it.next();
-                        System.out.print(String.format("%s: ", key));
-                        InterventionGroup group = groups.get(key);
-                        System.out.println(group.getMeanVector());
+                        means.put(key, groups.get(key).getMeanVector());
                     }
+                    events.log(EventLog.Level.INFO, "groupMeans", "Current group means:%s", EventLog.lines(means));
                 }
             }
             return subject.myGroup.name;
@@ -183,93 +384,325 @@ public abstract class Randomizer {
     public synchronized void assignSubjectToGroup(InterventionGroup aGroup, MultiDimSubject multiDimSubject) {
         aGroup.addSubject(multiDimSubject);
         unassignedSubjects.remove(multiDimSubject);
-        if (verbosity >= 0) {
-            System.out.println(String.format("Assigned %s to %s", multiDimSubject.identifier, aGroup.name));
-            if (verbosity > 1) {
-                printGroups();
-            }
+        pendingChanges.add(new SubjectChange(SubjectChange.Kind.ASSIGN, multiDimSubject));
+        stats.assignments.increment();
+        events.log(EventLog.Level.INFO, "assigned", "Assigned %s to %s", multiDimSubject.identifier, aGroup.name);
+        if (events.isEnabled(EventLog.Level.TRACE)) {
+            printGroups();
         }
     }
 
     protected synchronized void printGroups() {
         for (Iterator<String> it = groups.keySet().iterator(); it.hasNext(); ) {
             String key = it.next();
-            if (verbosity > 1) {
-                System.out.println(String.format("Composition of group %s:", key));
-            }
             InterventionGroup group = groups.get(key);
-            group.printSubjectReport();
-        }
-    }
-
-    public synchronized double maxDistanceBetweenGroups() {
-        double max = 0.0;
-        for (Iterator<String> it1 = groups.keySet().iterator(); it1.hasNext(); ) {
-            String key1 = it1.next();
-            Map<String, Double> meanVector1 = groups.get(key1).getMeanVector();
-            for (Iterator<String> it2 = groups.keySet().iterator(); it2.hasNext(); ) {
-                String key2 = it2.next();
-                if (key1 != key2) {
-                    Map<String, Double> meanVector2 = groups.get(key2).getMeanVector();
-                    double sum = 0.0;
-                    for (Iterator<String> e = meanVector2.keySet().iterator(); e.hasNext(); ) {
-                        String dimKey = e.next();
-                        double diff = meanVector1.get(dimKey).doubleValue()
-                                - meanVector2.get(dimKey).doubleValue();
-                        sum += diff * diff;
-                    } // END for each dimension
-                    double dist = Math.sqrt(sum);
-                    if (dist > max) {
-                        max = dist;
-                    }
-                }
-            }
+            events.log(
+                    EventLog.Level.TRACE,
+                    "groupComposition",
+                    "Composition of group %s:%s",
+                    key,
+                    group.subjectReport());
         }
-        return max;
     }
 
-    public synchronized boolean commitSubject(String subjectID) throws IOException {
+    /* Greatest distance between the mean feature vectors of any two groups, as of the last save; see imbalance() */
+    public double maxDistanceBetweenGroups() {
+        return imbalance.maxDistance;
+    }
+
+    public boolean commitSubject(String subjectID) throws IOException {
+        long start = System.nanoTime();
+        try {
+            boolean result = makeDurably(() -> doCommitSubject(subjectID));
+            return result;
+        } finally {
+            stats.record(RandomizerStats.Operation.COMMIT, start);
+        }
+    }
+
+    protected synchronized boolean doCommitSubject(String subjectID) throws IOException {
         if (subjectsByID.containsKey(subjectID)) {
-            subjectsByID.get(subjectID).isCommitted = true;
-            database.WriteOutSubjects(subjectsByID, variables);
+            MultiDimSubject subject = subjectsByID.get(subjectID);
+            if (!subject.isCommitted) {
+                ++committedCount;
+            }
+            subject.isCommitted = true;
+            pendingChanges.add(new SubjectChange(SubjectChange.Kind.COMMIT, subject));
+            saveChanges();
             return true;
         } else {
             return false;
         }
     }
 
-    public synchronized void removeSubject(String subjectID) throws IOException {
+    public void removeSubject(String subjectID) throws IOException {
+        long start = System.nanoTime();
+        try {
+            makeDurably(() -> {
+                doRemoveSubject(subjectID);
+                return null;
+            });
+        } finally {
+            stats.record(RandomizerStats.Operation.REMOVE, start);
+        }
+    }
+
+    protected synchronized void doRemoveSubject(String subjectID) throws IOException {
+        forgetSubject(subjectID);
+        saveChanges();
+    }
+
+    /*
+     * Removes the subject; does not save. Readers without the lock go on seeing it (in removing, and in
+     * subjectsByArrival) until the removal is durable; see publishDurable().
+     */
+    protected synchronized void forgetSubject(String subjectID) {
         MultiDimSubject subj = subjectsByID.get(subjectID);
+        removing.put(subjectID, subj);
         subjectsByID.remove(subjectID);
+        if (subj.isCommitted) {
+            --committedCount;
+        }
         if (subj.myGroup != null) {
             subj.myGroup.remove(subj);
         }
         else {
             unassignedSubjects.remove(subj);
         }
-        database.WriteOutSubjects(subjectsByID, variables);
+        pendingChanges.add(new SubjectChange(SubjectChange.Kind.REMOVE, subj));
+    }
+
+    public void assignAllSubjects() throws IOException {
+        long start = System.nanoTime();
+        try {
+            makeDurably(() -> {
+                doAssignAllSubjects();
+                return null;
+            });
+        } finally {
+            stats.record(RandomizerStats.Operation.ASSIGN_ALL, start);
+        }
     }
 
-    public synchronized void assignAllSubjects() throws IOException {
+    protected synchronized void doAssignAllSubjects() throws IOException {
         boolean didAnyAssignments = false;
         while (unassignedSubjects.size() > 0) {
             assignAnySubjectAGroup();
             didAnyAssignments = true;
         }
         if (didAnyAssignments) {
-            database.WriteOutSubjects(subjectsByID, variables);
+            saveChanges();
+        }
+    }
+
+    /* Hands all changes made since last time to the database. */
+    protected synchronized void saveChanges() throws IOException {
+        if (pendingChanges.size() > 0) {
+            // the subjects have changed whether or not saving succeeds
+            ++version;
+            try {
+                long start = System.nanoTime();
+                lastSaveTicket = database.RecordChanges(pendingChanges, subjectsByID, variables);
+                stats.record(RandomizerStats.Operation.SAVE, start);
+                // visible to readers without the lock, and to subscribers, once durable
+                synchronized (unreleasedChanges) {
+                    unreleasedChanges.add(new SavedChanges(lastSaveTicket, pendingChanges));
+                }
+                publishImbalance();
+                // Only forget about the changes once they have been saved; if saving failed, try again next time
+                pendingChanges = new ArrayList<SubjectChange>();
+            } finally {
+                publishSummary();
+            }
+        }
+    }
+
+    /* Lets readers that do not take the lock see this change, now that it is durable; see checkID() */
+    private void publishDurable(SubjectChange change) {
+        switch (change.kind) {
+            case PUT -> {
+                change.subject.saved = true;
+                change.subject.replacing = null;
+            }
+            case ASSIGN -> change.subject.savedGroupName = change.groupName;
+            case COMMIT -> change.subject.savedCommitted = true;
+            case REMOVE -> {
+                // already gone from subjectsByID; only this subject, as the same ID may since have been put back
+                // and be on its way out again
+                removing.remove(change.subject.identifier, change.subject);
+                subjectsByArrival.remove(change.subject.arrivalNumber, change.subject);
+            }
         }
     }
 
-    public synchronized void setVerbosity(int verbosity) {
-        this.verbosity = verbosity;
+    private synchronized void publishImbalance() {
+        imbalance = groupDistances.update(allSubjectStatistics(), variables);
+    }
+
+    private synchronized void publishSummary() {
+        ProtocolSummary newSummary = new ProtocolSummary();
+        newSummary.algorithm = getAlgorithm();
+        newSummary.version = version;
+        newSummary.instance = instance;
+        newSummary.subjectCount = subjectsByID.size();
+        newSummary.committedCount = committedCount;
+        newSummary.unassignedCount = unassignedSubjects.size();
+        newSummary.groupSizes = Collections.unmodifiableMap(groupSizes());
+        summary = newSummary;
+    }
+
+    /* Statistics of all subjects, which the standardized distances between groups are relative to; if any */
+    protected MeanVectorCalculator allSubjectStatistics() {
+        return null;
+    }
+
+    /* How different the groups are, as of the last save; does not wait for the lock */
+    public Imbalance imbalance() {
+        return imbalance;
+    }
+
+    /* The counts of subjects, and the version, as of the last save; does not wait for the lock */
+    public ProtocolSummary summary() {
+        return summary;
+    }
+
+    /*
+     * From now on, publishes every change to the subjects, once durable, to the given feed, for clients following
+     * along. The feed belongs to the caller, who closes it when done with it; it may outlive this randomizer, and
+     * be given to the next one to load the same subjects, so that its subscribers see one stream of events.
+     */
+    public void setChangeFeed(ChangeFeed feed) {
+        changeFeed = feed;
+    }
+
+    /* The feed set by setChangeFeed(), or null */
+    public ChangeFeed changeFeed() {
+        return changeFeed;
+    }
+
+    /* Must NOT be called while holding this randomizer's lock. */
+    protected void waitUntilSaved(long ticket) throws IOException {
+        long start = System.nanoTime();
+        database.AwaitDurable(ticket);
+        stats.record(RandomizerStats.Operation.AWAIT_DURABLE, start);
+        releaseChanges(ticket);
+    }
+
+    /* The changes handed to the database in one save, and the ticket it returned */
+    private static class SavedChanges {
+        long ticket;
+        List<SubjectChange> changes;
+
+        SavedChanges(long ticket, List<SubjectChange> changes) {
+            this.ticket = ticket;
+            this.changes = changes;
+        }
+    }
+
+    /*
+     * Publishes the saves with the given ticket and before, now that the database reports them durable, to readers
+     * that do not take the lock (see checkID()) and to the change feed, so that nobody is ever told of a change that
+     * could yet be lost; nor told of it before the client that made it (under the async sync policy, that is as
+     * soon as it is saved). Whoever waits first publishes the saves of any others covered by the same flush, in
+     * order.
+     */
+    private void releaseChanges(long ticket) {
+        ChangeFeed feed = changeFeed;
+        synchronized (unreleasedChanges) {
+            while (!unreleasedChanges.isEmpty() && unreleasedChanges.peek().ticket <= ticket) {
+                for (SubjectChange change : unreleasedChanges.poll().changes) {
+                    publishDurable(change);
+                    if (feed != null) {
+                        feed.publish(change);
+                    }
+                }
+            }
+        }
+    }
+
+    /*
+     * Makes the change under the lock, then, without the lock, waits until the database reports it durable. The time
+     * spent waiting for the lock, behind other changes, is recorded (as the QUEUE operation). The ticket waited for is
+     * taken while still holding the lock: that of the change's own save, or if it saved nothing, of the last save
+     * before it (e.g. of the assignment it reports); never that of a later save by someone else, so that under the
+     * group commit sync policy nobody waits for flushes that are not theirs.
+     */
+    protected <T, E extends Exception> T makeDurably(Change<T, E> change) throws E, IOException {
+        T result;
+        long ticket;
+        long queued = System.nanoTime();
+        synchronized (this) {
+            stats.record(RandomizerStats.Operation.QUEUE, queued);
+            result = change.make();
+            ticket = lastSaveTicket;
+        }
+        waitUntilSaved(ticket);
+        return result;
+    }
+
+    /* Saves anything not yet saved, and closes the database. */
+    public void close() throws IOException {
+        synchronized (this) {
+            saveChanges();
+        }
+        database.Close();
+        // everything saved is on disk now
+        releaseChanges(Long.MAX_VALUE);
+        events.flush();
+    }
+
+    /* A change, which may fail for want of the disk, or with an exception of its own (e.g. InvalidDataException) */
+    protected interface Change<T, E extends Exception> {
+        T make() throws IOException, E;
+    }
+
+    /* Writes out all subjects in the database's full (non-incremental) format, e.g. the subject file */
+    public synchronized void exportSubjects() throws IOException {
+        database.WriteOutSubjects(subjectsByID, variables);
+    }
+
+    /*
+     * Below 0, only warnings; 0, each assignment and the group means; 1, more on how groups are chosen;
+     * more, every group's composition after each assignment
+     */
+    public void setVerbosity(int verbosity) {
+        events.setLevel(EventLog.levelForVerbosity(verbosity));
+    }
+
+    /* Counts and timings of what this randomizer has done */
+    public RandomizerStats stats() {
+        return stats;
+    }
+
+    public int subjectCount() {
+        return subjectsByID.size();
+    }
+
+    /* Number of subjects waiting to be assigned to a group */
+    public synchronized int backlogSize() {
+        return unassignedSubjects.size();
+    }
+
+    /* Number of subjects in each group, by group name, in order of name */
+    public synchronized Map<String, Integer> groupSizes() {
+        TreeMap<String, Integer> sizes = new TreeMap<String, Integer>();
+        for (Iterator<InterventionGroup> it = groups.values().iterator(); it.hasNext(); ) {
+            InterventionGroup group = it.next();
+            sizes.put(group.name, group.currentGroupSize());
+        }
+        return sizes;
+    }
+
+    /* Where this randomizer's diagnostics go; e.g. to name the protocol in them, or to wait for them (flush()) */
+    public EventLog eventLog() {
+        return events;
     }
 
     public synchronized List<InterventionGroup> getGroups() {
         return new ArrayList<>(groups.values());
     }
 
-    public synchronized List<VariableSpec> getVariables() {
+    public List<VariableSpec> getVariables() {
         return variables.getVariableSpecs();
     }
 
@@ -277,7 +710,59 @@ public abstract class Randomizer {
         return new ArrayList<>(subjectsByID.values());
     }
 
-    public synchronized boolean matchesSpecs(ProtocolSpec spec) {
+    /*
+     * Every subject durable, as it is durable (a revised subject as it was, until the revision is), in order of
+     * arrival. Does not wait for the lock, so that copying, formatting and sending them (however slowly) never holds
+     * up changes; each subject is as it was when it was copied, so a subject changed meanwhile may be as it was
+     * before or after, and one revised meanwhile may be there twice (see subjectsAfter()).
+     */
+    public List<SubjectRecord> snapshotSubjects() {
+        ArrayList<SubjectRecord> records = new ArrayList<SubjectRecord>(subjectsByArrival.size());
+        for (Iterator<Map.Entry<Long, MultiDimSubject>> it = subjectsByArrival.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Long, MultiDimSubject> entry = it.next();
+            MultiDimSubject subject = visible(entry.getValue());
+            if (subject != null) {
+                records.add(new SubjectRecord(subject, entry.getKey()));
+            }
+        }
+        return records;
+    }
+
+    /*
+     * Up to limit of the subjects durable, in order of arrival, starting after the given arrival number (0 for the
+     * first page); the page gives the number to start the next one after, or null if there are no more. Does not
+     * wait for the lock: each subject is as durable when the page is made, and a subject that arrives while paging
+     * appears on a later page, since arrival numbers only increase. A page ends early at a new subject not yet
+     * durable, so that it is not skipped; the next page starts with it.
+     * A revised subject arrives again: it takes a new arrival number, at the end of the line (as it does in the
+     * backlog of subjects waiting for a group), so a pager already past it sees it again on a later page, as it was
+     * until the revision is durable, and as revised after. A pager that wants each subject once keeps the last it
+     * got of each id; to follow changes to subjects already seen, see ChangeFeed.
+     * Arrival numbers are only good for the life of this randomizer: they are given out afresh, from 1, to the
+     * subjects loaded from the database (without gaps for subjects since removed), so a cursor kept across a
+     * restart, or the protocol being unloaded and loaded again, may skip or repeat subjects.
+     */
+    public SubjectPage subjectsAfter(long after, int limit) {
+        ArrayList<SubjectRecord> records = new ArrayList<SubjectRecord>(Math.min(limit, 1024));
+        long last = after;
+        boolean more = false;
+        for (Iterator<Map.Entry<Long, MultiDimSubject>> it =
+                        subjectsByArrival.tailMap(after, false).entrySet().iterator();
+                it.hasNext(); ) {
+            Map.Entry<Long, MultiDimSubject> entry = it.next();
+            MultiDimSubject subject = visible(entry.getValue());
+            if (records.size() >= limit || subject == null) {
+                more = true;
+                break;
+            }
+            records.add(new SubjectRecord(subject, entry.getKey()));
+            last = entry.getKey();
+        }
+        return new SubjectPage(records, more ? last : null);
+    }
+
+    /* The variables and groups never change, so no need for the lock */
+    public boolean matchesSpecs(ProtocolSpec spec) {
         if (!variables.matchesSpec(spec.variableSpec)) {
             return false;
         }
@@ -7,6 +7,7 @@ import java.io.PrintWriter;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.util.Iterator;
 import java.util.List;
 
 import javax.xml.parsers.ParserConfigurationException;
@@ -23,11 +24,23 @@ public class RandomizerServer {
      *   -c run interactively on the command line
      *   -n accept requests over the network using a TCP/IP socket
      *   -p NUM   use NUM for the port for internet communication, instead of the default port number 1996
+     *   -w NUM   with -n, serve all network connections from one thread, with NUM worker threads to carry out
+     *            requests, instead of starting a thread for each connection (see SelectorServer)
      *   -r PATH  use the file at PATH as the configuration file for variables (defaults to ./variables.xml)
      *   -g PATH  use the file at PATH to read in the groups (defaults to ./groups.txt)
      *   -s PATH  use the file at PATH as the subjects database (defaults to ./subjects.txt)
+     *   -l save subjects as an append-only log of changes (e.g. subjects.log) rather than rewriting the subjects
+     *      database file for each change; the subjects file is imported if there is no log yet
+     *   -f POLICY  with -l, how to get changes to disk: fsync (the default), group, or async (see SyncPolicy)
+     *   -d NUM   with -f group or -f async, wait up to NUM milliseconds to gather changes into one disk flush
+     *   -k NUM   with -l, write a snapshot of all subjects and empty the log every NUM changes (0 for never)
+     *   -t NUM   score the subjects waiting for assignment on all cores when NUM or more are waiting (0 for never;
+     *            defaults to 4096); the assignments are the same either way (see BalancingRandomizer)
      *   -x allow a subject's scores to be revised and group re-assigned until commit received for that subject
      *   -a alternate assignment of subjects to groups, rather than trying to do any matching
+     *   -m P     Pocock-Simon minimization: put each subject in the group that leaves the least imbalance of
+     *            variable levels between the groups, with probability P (0 to 1), otherwise in another group at
+     *            random; continuous variables need cut points in the variables file (see MinimizationRandomizer)
      *
      *   The -c and -n options may be used simultaneously. If neither -c nor -n is specified, both modes used (equivalent of -c -n).
      */
@@ -46,12 +59,19 @@ public class RandomizerServer {
         boolean commandLineMode = false;
         boolean networkMode = false;
         int portNumber = 1996;
+        int workerThreads = 0;
         String variablesSpecFilePath = "variables.xml";
         String groupListFile = "groups.txt";
         String subjectFile = "subjects.txt";
         int verbosity = 0;
         boolean allowRevision = false;
         boolean balancing = true;
+        Double minimizationProbability = null; // not minimizing
+        boolean logStorage = false;
+        SyncPolicy syncPolicy = SyncPolicy.EVERY_WRITE;
+        long syncDelayMillis = 0;
+        long checkpointInterval = -1;
+        int parallelScoringThreshold = BalancingRandomizer.DEFAULT_PARALLEL_SCORING_THRESHOLD;
 
         try {
             int argNum = 0;
@@ -90,6 +110,10 @@ public class RandomizerServer {
                             groupListFile = args[argNum + 1];
                             ++argNum;
                             break;
+                        case 'w':
+                            workerThreads = Integer.parseInt(args[argNum + 1]);
+                            ++argNum;
+                            break;
                         case 's':
                             subjectFile = args[argNum + 1];
                             ++argNum;
@@ -100,6 +124,33 @@ public class RandomizerServer {
                         case 'a':
                             balancing = false;
                             break;
+                        case 'm':
+                            minimizationProbability = Double.parseDouble(args[argNum + 1]);
+                            if (!(minimizationProbability >= 0.0 && minimizationProbability <= 1.0)) {
+                                printUsageSummary();
+                                return;
+                            }
+                            ++argNum;
+                            break;
+                        case 'l':
+                            logStorage = true;
+                            break;
+                        case 'f':
+                            syncPolicy = SyncPolicy.fromName(args[argNum + 1]);
+                            ++argNum;
+                            break;
+                        case 'd':
+                            syncDelayMillis = Long.parseLong(args[argNum + 1]);
+                            ++argNum;
+                            break;
+                        case 'k':
+                            checkpointInterval = Long.parseLong(args[argNum + 1]);
+                            ++argNum;
+                            break;
+                        case 't':
+                            parallelScoringThreshold = Integer.parseInt(args[argNum + 1]);
+                            ++argNum;
+                            break;
                         default:
                             printUsageSummary();
                             return;
@@ -125,26 +176,53 @@ public class RandomizerServer {
         }
 
         StillGoingFlag listening = new StillGoingFlag();
-        SubjectFileDatabase database = new SubjectFileDatabase(subjectFile);
+        SubjectFileDatabase database;
+        if (logStorage) {
+            SubjectLogDatabase logDatabase =
+                    new SubjectLogDatabase(SubjectLogDatabase.logFileFor(subjectFile), subjectFile);
+            logDatabase.setSyncPolicy(syncPolicy, syncDelayMillis);
+            if (checkpointInterval >= 0) {
+                logDatabase.setCheckpointInterval(checkpointInterval);
+            }
+            database = logDatabase;
+        } else {
+            database = new SubjectFileDatabase(subjectFile);
+        }
         List<VariableSpec> variableSpecs = VariableSpec.getSpecsFromXML(variablesSpecFilePath);
         VariableSet variables = new VariableSet(variableSpecs);
         Randomizer randomizer;
         CommandInterface commander;
-        if (balancing) {
-            randomizer = new BalancingRandomizer(groupListFile, variables, database, listening, allowRevision);
+        if (minimizationProbability != null) {
+            MinimizationRandomizer minimizationRandomizer =
+                    new MinimizationRandomizer(groupListFile, variables, database, listening, allowRevision);
+            minimizationRandomizer.setAssignmentProbability(minimizationProbability);
+            randomizer = minimizationRandomizer;
+        } else if (balancing) {
+            BalancingRandomizer balancingRandomizer =
+                    new BalancingRandomizer(groupListFile, variables, database, listening, allowRevision);
+            balancingRandomizer.setParallelScoringThreshold(parallelScoringThreshold);
+            randomizer = balancingRandomizer;
         } else {
             randomizer = new AlternatingRandomizer(groupListFile, variables, database, listening, allowRevision);
         }
         randomizer.setVerbosity(verbosity);
+        // for SUBSCRIBE
+        randomizer.setChangeFeed(new ChangeFeed(ChangeFeed.DEFAULT_CAPACITY));
         commander = new CommandInterface(randomizer);
 
         ServerSocket serverSocket = null;
+        SelectorServer selectorServer = null;
         if (networkMode) {
             if (verbosity >= 0) {
                 System.out.println("Just before creating listener socket...");
             }
             try {
-                serverSocket = new ServerSocket(portNumber);
+                if (workerThreads > 0) {
+                    selectorServer = new SelectorServer(
+                            portNumber, commander, listening, commandLineMode, verbosity, workerThreads);
+                } else {
+                    serverSocket = new ServerSocket(portNumber);
+                }
             } catch (IOException e) {
                 e.printStackTrace();
                 System.err.println("Could not listen on port " + portNumber);
@@ -163,19 +241,30 @@ public class RandomizerServer {
             if (verbosity >= 0) {
                 System.out.println("Created listener socket.");
             }
-            ServerThread thread = new ServerThread(serverSocket, commander, listening, commandLineMode, verbosity);
-            thread.start();
+            if (selectorServer != null) {
+                selectorServer.start();
+            } else {
+                ServerThread thread =
+                        new ServerThread(serverSocket, commander, listening, commandLineMode, verbosity);
+                thread.start();
+            }
         }
         if (commandLineMode) {
             BufferedReader br = new BufferedReader(new InputStreamReader(System.in));
             while (listening.getFlagValue()) {
                 String input = br.readLine();
                 String reply = commander.parseCommand(input);
+                // the command's diagnostics are printed in the background; let them come before the reply
+                randomizer.eventLog().flush();
                 System.out.println(reply);
             }
             if (serverSocket != null) {
                 serverSocket.close();
             }
+            if (selectorServer != null) {
+                selectorServer.close();
+            }
+            commander.close();
         }
     }
 
@@ -190,15 +279,22 @@ public class RandomizerServer {
         System.out.println("-c Command-line mode: accept commands typed in terminal");
         System.out.println("-n Network mode: accept command over a TCP/IP socket");
         System.out.println("-p [int] Specify port to use for TCP/IP socket");
+        System.out.println("-w [int] Serve network clients from one thread plus [int] worker threads");
         System.out.println("-r [path] Specify path of variables-definition file");
         System.out.println("-g [path] Specify path of group-definition file");
         System.out.println("-s [path] Specify path of subject database file (tsv format)");
         System.out.println("-x Allow correction of erroneous subject data until committed");
         System.out.println("-a Do NOT balance groups by feature values, just do alternating assignment");
+        System.out.println("-m [p] Minimize imbalance of variable levels, picking the best group with chance [p], 0-1");
+        System.out.println("-l Save subjects as an append-only log of changes instead of rewriting the subjects file");
+        System.out.println("-f [policy] With -l, how to get changes to disk: fsync (default), group, or async");
+        System.out.println("-d [int] With -f group or async, milliseconds to wait to gather changes into one flush");
+        System.out.println("-k [int] With -l, snapshot all subjects and empty the log every [int] changes (0: never)");
+        System.out.println("-t [int] Score waiting subjects on all cores when [int] or more wait (0: never)");
         System.exit(0);
     }
 
-    private class ServerThread extends Thread {
+    class ServerThread extends Thread {
         StillGoingFlag listening;
         CommandInterface commander;
         ServerSocket serverSocket;
@@ -237,6 +333,13 @@ public class RandomizerServer {
             if (verbosity >= 0) {
                 System.out.println("Done with listening on socket.");
             }
+            if (!isCommandLinePresent) {
+                try {
+                    commander.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
             if (!socketWasClosed && isCommandLinePresent) { // if the request to close DIDN'T come from command line...
                 System.out.println("Please enter QUIT on command line (here) to exit cleanly.");
                 try {
@@ -264,34 +367,78 @@ public class RandomizerServer {
             PrintWriter out = null;
             BufferedReader in = null;
             try {
-                out = new PrintWriter(socket.getOutputStream(), true);
+                out = new PrintWriter(socket.getOutputStream(), false);
                 in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                String inputLine = in.readLine();
-                if (inputLine != null) {
+                // Carry on with requests until the client says BYE or closes the connection
+                boolean anyInput = false;
+                String inputLine;
+                while ((inputLine = in.readLine()) != null) {
+                    anyInput = true;
                     inputLine = inputLine.trim();
                     if (verbosity >= 0) {
                         System.out.println("Server received: " + inputLine);
                     }
+                    String subscribedAfter = commander.subscribeAfter(inputLine);
+                    if (subscribedAfter != null) {
+                        follow(out, subscribedAfter);
+                        break;
+                    }
                     String reply = commander.parseCommand(inputLine);
                     out.println(reply);
+                    // If the client has sent more requests already, send their replies together
+                    if (!in.ready()) {
+                        out.flush();
+                    }
                     if (verbosity >= 0) {
                         System.out.println("dealt with one message");
                         System.out.println();
                     }
-                } else {
+                    if (inputLine.equalsIgnoreCase("BYE")) {
+                        break;
+                    }
+                }
+                if (!anyInput) {
                     System.out.println("Null input from that client.");
                 }
             } catch (IOException ex) {
                 ex.printStackTrace();
             } finally {
+                // flush before closing in, as closing in closes the socket
+                out.flush();
                 try {
                     in.close();
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
-                out.flush();
                 out.close();
             }
         }
+
+        /* Sends the changes after the given one until the client goes away, or the feed is closed; see SUBSCRIBE */
+        private void follow(PrintWriter out, String after) {
+            ChangeFeed feed = commander.randomizer.changeFeed();
+            out.println("OK " + after);
+            out.flush();
+            try {
+                while (!out.checkError()) {
+                    List<ChangeEvent> events =
+                            feed.eventsAfter(after, CommandInterface.MAX_EVENTS, CommandInterface.HEARTBEAT_MILLIS);
+                    if (events == null) {
+                        break;
+                    }
+                    if (events.isEmpty()) {
+                        out.println("#");
+                    }
+                    for (Iterator<ChangeEvent> it = events.iterator(); it.hasNext(); ) {
+                        ChangeEvent event = it.next();
+                        out.println(CommandInterface.eventLine(event));
+                        after = event.cursor();
+                    }
+                    out.flush();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
     }
 }
@@ -0,0 +1,146 @@
+package org.sleepandcognition.prosrand;
+
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Operational statistics of one randomizer: how many of each operation, and how long they took (as clients see
+ * it, i.e. including any wait for the lock and for the disk), and how many of each line protocol command.
+ * Recording is a few LongAdder increments, so it does not contend between threads; the numbers are added up
+ * only when read (by the STATS command, or by the Spring Boot server's metrics).
+ */
+public class RandomizerStats {
+    public enum Operation {
+        PUT,
+        PLACE,
+        BATCH,
+        GET,
+        ASSIGN_ALL,
+        COMMIT,
+        REMOVE,
+        SAVE, // handing changes to the database, while holding the lock
+        AWAIT_DURABLE, // waiting, without the lock, for the database to make them durable
+        QUEUE; // waiting for the lock, behind other changes; see Randomizer.makeDurably()
+
+        /* As shown by STATS, and in metric tags: e.g. "assign_all" */
+        public String tag() {
+            return name().toLowerCase();
+        }
+    }
+
+    /*
+     * Count, total and maximum of the times taken, and a histogram with a bucket for each power of two
+     * nanoseconds, from which percentiles are estimated (to within a factor of two).
+     */
+    public static class Timer {
+        static final int BUCKETS = 64;
+
+        LongAdder count = new LongAdder();
+        LongAdder totalNanos = new LongAdder();
+        LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+        LongAdder[] buckets = new LongAdder[BUCKETS];
+
+        Timer() {
+            for (int i = 0; i < BUCKETS; ++i) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        public void record(long nanos) {
+            if (nanos < 0) {
+                nanos = 0;
+            }
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulate(nanos);
+            buckets[BUCKETS - Long.numberOfLeadingZeros(nanos)].increment();
+        }
+
+        public long count() {
+            return count.sum();
+        }
+
+        public long totalNanos() {
+            return totalNanos.sum();
+        }
+
+        public long maxNanos() {
+            return maxNanos.get();
+        }
+
+        public double meanNanos() {
+            long n = count();
+            return n > 0 ? (double) totalNanos() / n : 0.0;
+        }
+
+        /* The upper bound of the bucket that the given fraction (e.g. 0.99) of times fall in or below; 0 if none */
+        public long percentileNanos(double fraction) {
+            long[] counts = new long[BUCKETS];
+            long n = 0;
+            for (int i = 0; i < BUCKETS; ++i) {
+                counts[i] = buckets[i].sum();
+                n += counts[i];
+            }
+            if (n == 0) {
+                return 0;
+            }
+            long wanted = (long) Math.ceil(fraction * n);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; ++i) {
+                seen += counts[i];
+                if (seen >= wanted) {
+                    if (i == 0) {
+                        return 0;
+                    } else if (i >= 63) {
+                        return maxNanos();
+                    }
+                    return Math.min(maxNanos(), (1L << i) - 1);
+                }
+            }
+            return maxNanos();
+        }
+    }
+
+    EnumMap<Operation, Timer> timers = new EnumMap<Operation, Timer>(Operation.class);
+    LongAdder assignments = new LongAdder();
+    ConcurrentHashMap<String, LongAdder> commands = new ConcurrentHashMap<String, LongAdder>();
+
+    public RandomizerStats() {
+        for (Operation operation : Operation.values()) {
+            timers.put(operation, new Timer());
+        }
+    }
+
+    public Timer timer(Operation operation) {
+        return timers.get(operation);
+    }
+
+    /* Records the time since start (from System.nanoTime()) as taken by the given operation */
+    public void record(Operation operation, long start) {
+        timers.get(operation).record(System.nanoTime() - start);
+    }
+
+    /* Subjects assigned to groups, by whatever operation */
+    public long assignments() {
+        return assignments.sum();
+    }
+
+    public void countCommand(String command) {
+        commands.computeIfAbsent(command, c -> new LongAdder()).increment();
+    }
+
+    /* Line protocol commands received, by command word (upper case), in alphabetical order */
+    public Map<String, Long> commandCounts() {
+        TreeMap<String, Long> counts = new TreeMap<String, Long>();
+        for (Iterator<Map.Entry<String, LongAdder>> it = commands.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, LongAdder> entry = it.next();
+            counts.put(entry.getKey(), entry.getValue().sum());
+        }
+        return counts;
+    }
+}
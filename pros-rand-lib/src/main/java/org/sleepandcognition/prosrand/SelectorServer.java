@@ -0,0 +1,396 @@
+package org.sleepandcognition.prosrand;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Network mode (-n) with -w: rather than a thread for each client connection, one thread watches all the
+ * connections with a Selector, reading requests and writing replies as the sockets become ready, and hands
+ * each complete request line to a fixed pool of worker threads to be carried out. So a burst of connections
+ * (e.g. every testing station at the start of a session) costs a little buffer space each, not a thread each.
+ *
+ * A client may keep its connection open for as many requests as it likes, and may send several before reading
+ * any replies; each connection's requests are carried out one at a time, in order, and the replies sent back in
+ * that order. The connection is closed after BYE, or when the client closes it.
+ *
+ * A connection that SUBSCRIBEs to changes gets a thread of its own, which waits for the changes and puts them in
+ * the connection's replies for the selector thread to send; these are meant for a few dashboards and the like.
+ */
+class SelectorServer extends Thread {
+    /* A request line longer than this is not a request we know; drop the connection */
+    static final int MAX_LINE_LENGTH = 65536;
+    /* Stop reading from a client that has this many requests waiting to be carried out */
+    static final int MAX_PENDING_REQUESTS = 64;
+    /* Stop sending changes to a subscriber that has this many bytes of them waiting; it can resume later */
+    static final int MAX_SUBSCRIBER_BACKLOG = 1 << 20;
+
+    StillGoingFlag listening;
+    CommandInterface commander;
+    boolean isCommandLinePresent;
+    int verbosity;
+    Selector selector;
+    ServerSocketChannel serverChannel;
+    ExecutorService workers;
+    /* A thread for each subscribed connection; see follow() */
+    ExecutorService followers = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "randomizer change subscriber");
+        thread.setDaemon(true);
+        return thread;
+    });
+    /* Only the selector thread reads, so all connections can share one buffer */
+    ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+    /* Connections that workers have replies ready for, or are done with, for the selector thread to look at */
+    ConcurrentLinkedQueue<Connection> needAttention = new ConcurrentLinkedQueue<Connection>();
+
+    public SelectorServer(
+            int portNumber,
+            CommandInterface commander,
+            StillGoingFlag flag,
+            boolean isCommandLinePresent,
+            int verbosity,
+            int workerThreads)
+            throws IOException {
+        super("randomizer selector");
+        this.commander = commander;
+        this.listening = flag;
+        this.isCommandLinePresent = isCommandLinePresent;
+        this.verbosity = verbosity;
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.bind(new InetSocketAddress(portNumber));
+        } catch (IOException e) {
+            serverChannel.close();
+            selector.close();
+            throw e;
+        }
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        workers = Executors.newFixedThreadPool(workerThreads);
+    }
+
+    /* Stops accepting connections; called from the command line on QUIT */
+    public void close() throws IOException {
+        serverChannel.close();
+        selector.wakeup();
+    }
+
+    private class Connection {
+        SocketChannel channel;
+        SelectionKey key;
+        // Used only by the selector thread
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        boolean anyRequests;
+        ByteBuffer output;
+        // Shared between the selector thread and the worker serving this connection; synchronize on the connection
+        ArrayDeque<String> requests = new ArrayDeque<String>();
+        boolean busy; // a worker is carrying out this connection's requests
+        ByteArrayOutputStream replies = new ByteArrayOutputStream();
+        boolean noMoreRequests; // the client has sent BYE, or closed its end
+        boolean subscribed; // a follower is sending it changes; see follow()
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    public void run() {
+        if (verbosity >= 0) {
+            System.out.println("Waiting for connections...");
+        }
+        try {
+            while (listening.getFlagValue() && serverChannel.isOpen()) {
+                // wake up now and then to notice QUIT
+                selector.select(500);
+                Connection updated;
+                while ((updated = needAttention.poll()) != null) {
+                    updateInterest(updated);
+                }
+                for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext(); ) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    try {
+                        if (key.isValid() && key.isAcceptable()) {
+                            accept();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            read((Connection) key.attachment());
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            write((Connection) key.attachment());
+                        }
+                    } catch (IOException e) {
+                        if (key.attachment() != null) {
+                            // that client went away; carry on with the others
+                            closeConnection((Connection) key.attachment());
+                        } else {
+                            e.printStackTrace();
+                        }
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            e.printStackTrace();
+        }
+        if (verbosity >= 0) {
+            System.out.println("Done with listening on socket.");
+        }
+        shutDown();
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        Connection connection = new Connection(channel);
+        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+    }
+
+    private void read(Connection connection) throws IOException {
+        readBuffer.clear();
+        int count = connection.channel.read(readBuffer);
+        if (count < 0 && connection.subscribed) {
+            // the subscriber went away; its follower notices
+            closeConnection(connection);
+            return;
+        }
+        if (count < 0) {
+            // end of input without a newline; take what there is as a request, as readLine() would
+            if (connection.line.size() > 0) {
+                addRequest(connection);
+            } else if (!connection.anyRequests) {
+                System.out.println("Null input from that client.");
+            }
+            synchronized (connection) {
+                connection.noMoreRequests = true;
+            }
+            updateInterest(connection);
+            return;
+        }
+        byte[] bytes = readBuffer.array();
+        for (int i = 0; i < count; i++) {
+            if (bytes[i] == '\n') {
+                addRequest(connection);
+            } else {
+                connection.line.write(bytes[i]);
+            }
+        }
+        if (connection.line.size() > MAX_LINE_LENGTH) {
+            System.out.println("Request too long from that client; dropping it.");
+            closeConnection(connection);
+            return;
+        }
+        updateInterest(connection);
+    }
+
+    /* Queues up the request line just read; starts a worker on this connection's requests if none is on it */
+    private void addRequest(Connection connection) {
+        String inputLine = new String(connection.line.toByteArray(), StandardCharsets.UTF_8).trim();
+        connection.line.reset();
+        connection.anyRequests = true;
+        synchronized (connection) {
+            if (connection.noMoreRequests) {
+                return;
+            }
+            connection.requests.add(inputLine);
+            if (connection.busy) {
+                return;
+            }
+            connection.busy = true;
+        }
+        workers.execute(() -> serve(connection));
+    }
+
+    /*
+     * Carries out the connection's requests one after another, in the order received, so that the replies go back
+     * in the same order, and e.g. a PUT is done before a GET of the same subject sent right after it.
+     */
+    private void serve(Connection connection) {
+        while (true) {
+            String inputLine;
+            synchronized (connection) {
+                inputLine = connection.requests.poll();
+                if (inputLine == null) {
+                    connection.busy = false;
+                    break;
+                }
+            }
+            if (verbosity >= 0) {
+                System.out.println("Server received: " + inputLine);
+            }
+            String subscribedAfter = commander.subscribeAfter(inputLine);
+            if (subscribedAfter != null) {
+                synchronized (connection) {
+                    byte[] bytes = ("OK " + subscribedAfter + "\n").getBytes(StandardCharsets.UTF_8);
+                    connection.replies.write(bytes, 0, bytes.length);
+                    connection.subscribed = true;
+                    connection.noMoreRequests = true;
+                    connection.requests.clear();
+                }
+                followers.execute(() -> follow(connection, subscribedAfter));
+                continue;
+            }
+            String reply = null;
+            try {
+                reply = commander.parseCommand(inputLine);
+                if (verbosity >= 0) {
+                    System.out.println("dealt with one message");
+                    System.out.println();
+                }
+            } catch (IOException | RuntimeException e) {
+                // no reply; the connection is closed once earlier replies are sent
+                e.printStackTrace();
+            }
+            synchronized (connection) {
+                if (reply != null) {
+                    byte[] bytes = (reply + "\n").getBytes(StandardCharsets.UTF_8);
+                    connection.replies.write(bytes, 0, bytes.length);
+                }
+                if (reply == null || inputLine.equalsIgnoreCase("BYE")) {
+                    connection.noMoreRequests = true;
+                    connection.requests.clear();
+                }
+            }
+            needAttention.add(connection);
+            selector.wakeup();
+        }
+        // so that the selector can go back to reading, or close the connection if it is done with
+        needAttention.add(connection);
+        selector.wakeup();
+    }
+
+    /*
+     * Puts the changes after the given one in the connection's replies, as they come, until the connection is
+     * closed or the feed is; or until the client falls too far behind in reading them, when the connection is
+     * closed once what it has been sent so far is written.
+     */
+    private void follow(Connection connection, String after) {
+        ChangeFeed feed = commander.randomizer.changeFeed();
+        try {
+            while (connection.channel.isOpen()) {
+                List<ChangeEvent> events =
+                        feed.eventsAfter(after, CommandInterface.MAX_EVENTS, CommandInterface.HEARTBEAT_MILLIS);
+                if (events == null) {
+                    break;
+                }
+                StringBuilder lines = new StringBuilder();
+                if (events.isEmpty()) {
+                    lines.append("#\n");
+                }
+                for (Iterator<ChangeEvent> it = events.iterator(); it.hasNext(); ) {
+                    ChangeEvent event = it.next();
+                    lines.append(CommandInterface.eventLine(event)).append('\n');
+                    after = event.cursor();
+                }
+                byte[] bytes = lines.toString().getBytes(StandardCharsets.UTF_8);
+                synchronized (connection) {
+                    connection.replies.write(bytes, 0, bytes.length);
+                    if (connection.replies.size() > MAX_SUBSCRIBER_BACKLOG) {
+                        break;
+                    }
+                }
+                needAttention.add(connection);
+                selector.wakeup();
+            }
+        } catch (InterruptedException e) {
+            // shutting down
+        }
+        synchronized (connection) {
+            connection.subscribed = false;
+        }
+        needAttention.add(connection);
+        selector.wakeup();
+    }
+
+    /* Decides what the selector should wait for on this connection, now; or closes it, if it is done with */
+    private void updateInterest(Connection connection) {
+        if (!connection.key.isValid()) {
+            return;
+        }
+        synchronized (connection) {
+            if ((connection.output == null || !connection.output.hasRemaining()) && connection.replies.size() > 0) {
+                connection.output = ByteBuffer.wrap(connection.replies.toByteArray());
+                connection.replies.reset();
+            }
+            boolean writing = connection.output != null && connection.output.hasRemaining();
+            if (!writing
+                    && connection.noMoreRequests
+                    && !connection.busy
+                    && !connection.subscribed
+                    && connection.requests.isEmpty()) {
+                closeConnection(connection);
+                return;
+            }
+            int ops = 0;
+            if (writing) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            // stop reading from a client that is far ahead of us, until we catch up
+            // and keep reading from a subscriber, to notice when it goes away
+            if (connection.subscribed
+                    || (!connection.noMoreRequests && connection.requests.size() < MAX_PENDING_REQUESTS)) {
+                ops |= SelectionKey.OP_READ;
+            }
+            connection.key.interestOps(ops);
+        }
+    }
+
+    private void write(Connection connection) throws IOException {
+        connection.channel.write(connection.output);
+        updateInterest(connection);
+    }
+
+    private void closeConnection(Connection connection) {
+        connection.key.cancel();
+        try {
+            connection.channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void shutDown() {
+        boolean closedFromCommandLine = !serverChannel.isOpen();
+        workers.shutdown();
+        followers.shutdownNow();
+        try {
+            workers.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        try {
+            for (Iterator<SelectionKey> it = selector.keys().iterator(); it.hasNext(); ) {
+                it.next().channel().close();
+            }
+            selector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (!isCommandLinePresent) {
+            try {
+                commander.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        } else if (!closedFromCommandLine) {
+            System.out.println("Please enter QUIT on command line (here) to exit cleanly.");
+        }
+    }
+}
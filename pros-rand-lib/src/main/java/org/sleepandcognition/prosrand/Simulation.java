@@ -0,0 +1,533 @@
+package org.sleepandcognition.prosrand;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/*
+ * Evaluates the randomization algorithms in process, as simulation.py does over HTTP: for each replicate, each
+ * simulated protocol and each place interval, makes up a cohort of subjects, enrolls them with every algorithm
+ * (PUT each subject, and GET the group of the subject put so many subjects earlier), assigns the rest, and
+ * measures how much the groups differ on each variable. The randomizers use the null SubjectDatabase, so nothing
+ * is saved, and the experiments run in parallel, one per thread.
+ *
+ * Every experiment has its own random number generator, seeded from the seed and its number, so the results are
+ * the same however many threads run them; they are written in order of experiment number.
+ *
+ * The output is a CSV file with a row for each experiment, algorithm and variable, with the columns that
+ * analyze.py expects of simulation.py's results.csv, but the test statistics in place of their p-values:
+ *   for a continuous variable, the one-way ANOVA F statistic of the variable between the groups (df1, df2), and
+ *   the difference between the greatest and least group means;
+ *   for a categorical variable, Pearson's chi-square statistic of the levels by groups table (df1), leaving out
+ *   levels no subject has and with Yates' correction when df1 is 1, as scipy's chi2_contingency does; and the
+ *   table itself, as counts by group separated by "/", for each level (in order) separated by ";".
+ */
+public class Simulation {
+    public static final String[] COLUMNS = {
+        "algorithm",
+        "n",
+        "place_interval",
+        "n_vars",
+        "n_groups",
+        "exp",
+        "var_name",
+        "is_used",
+        "var_type",
+        "statistic",
+        "df1",
+        "df2",
+        "max_mean_difference",
+        "counts"
+    };
+
+    /* A simulated protocol: its groups and the variables given to the randomizer, and the variables measured */
+    public static class Scenario {
+        List<String> groupNames;
+        List<VariableSpec> usedVariables;
+        List<VariableSpec> measuredVariables;
+
+        public Scenario(
+                List<String> groupNames, List<VariableSpec> usedVariables, List<VariableSpec> measuredVariables) {
+            this.groupNames = groupNames;
+            this.usedVariables = usedVariables;
+            this.measuredVariables = measuredVariables;
+        }
+    }
+
+    List<Scenario> scenarios;
+    List<String> algorithms = Arrays.asList("Alternating", "Balanced");
+    int subjectCount = 20;
+    int placeIntervals = 10;
+    int replicates = 100;
+    long seed = 42;
+
+    public Simulation(List<Scenario> scenarios) {
+        this.scenarios = scenarios;
+    }
+
+    public void setAlgorithms(List<String> algorithms) {
+        this.algorithms = algorithms;
+    }
+
+    public void setSubjectCount(int subjects) {
+        subjectCount = subjects;
+    }
+
+    /* Runs each protocol with each place interval from 0 to one less than this */
+    public void setPlaceIntervals(int count) {
+        placeIntervals = count;
+    }
+
+    public void setReplicates(int count) {
+        replicates = count;
+    }
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    public long experimentCount() {
+        return (long) replicates * scenarios.size() * placeIntervals;
+    }
+
+    /*
+     * The protocols of simulation.py: 2, 3 or 4 groups; 1 to 4 continuous variables, 1 to 4 categorical, or 2 to 4
+     * of both, alternating; with all four of the same kind of variables measured.
+     */
+    public static List<Scenario> standardScenarios() {
+        List<String> allGroupNames = Arrays.asList("W", "X", "Y", "Z");
+        List<VariableSpec> continuous = Arrays.asList(
+                variable("score", null), variable("age", null), variable("shoesize", null), variable("iq", null));
+        List<VariableSpec> categorical = Arrays.asList(
+                variable("state", Arrays.asList("Iowa", "Ohio", "Illinois", "Pennsylvania")),
+                variable("fruit", Arrays.asList("apple", "banana", "cherry", "durian")),
+                variable("mouse", Arrays.asList("micky", "minnie")),
+                variable("student", Arrays.asList("BS", "MS", "PhD")));
+        ArrayList<VariableSpec> both = new ArrayList<VariableSpec>();
+        for (int i = 0; i < continuous.size(); ++i) {
+            both.add(continuous.get(i));
+            both.add(categorical.get(i));
+        }
+        ArrayList<Scenario> scenarios = new ArrayList<Scenario>();
+        for (int groupCount = 2; groupCount <= 4; ++groupCount) {
+            List<String> groupNames = allGroupNames.subList(0, groupCount);
+            for (int variableCount = 1; variableCount <= 4; ++variableCount) {
+                scenarios.add(new Scenario(groupNames, continuous.subList(0, variableCount), continuous));
+                scenarios.add(new Scenario(groupNames, categorical.subList(0, variableCount), categorical));
+                if (variableCount > 1) {
+                    scenarios.add(new Scenario(groupNames, both.subList(0, variableCount), both.subList(0, 4)));
+                }
+            }
+        }
+        return scenarios;
+    }
+
+    private static VariableSpec variable(String name, List<String> levels) {
+        VariableSpec spec = new VariableSpec();
+        spec.setName(name);
+        spec.setType(levels == null ? "continuous" : "categorical");
+        spec.setLevels(levels);
+        if (levels == null) {
+            // for the minimization algorithm: above or below the mean of the values made up
+            spec.setCutPoints(Arrays.asList(50.0));
+        }
+        return spec;
+    }
+
+    /*
+     * Runs all the experiments on the given number of threads, writing the results as they come in. Only so many
+     * experiments are queued up at a time, so that thousands of replicates do not need memory for all of them.
+     */
+    public void run(Writer out, int threads) throws IOException, InvalidDataException {
+        out.write(String.join(",", COLUMNS));
+        out.write("\n");
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        ArrayDeque<Future<String>> running = new ArrayDeque<Future<String>>();
+        try {
+            long count = experimentCount();
+            for (long exp = 1; exp <= count || !running.isEmpty(); ) {
+                while (exp <= count && running.size() < threads * 16) {
+                    final long number = exp++;
+                    running.add(workers.submit(() -> runExperiment(number)));
+                }
+                out.write(result(running.poll()));
+            }
+        } finally {
+            workers.shutdownNow();
+        }
+        out.flush();
+    }
+
+    private static String result(Future<String> future) throws IOException, InvalidDataException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof InvalidDataException) {
+                throw (InvalidDataException) e.getCause();
+            } else if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /* Experiments are numbered from 1, by replicate, then protocol, then place interval, as in simulation.py */
+    String runExperiment(long exp) throws IOException, InvalidDataException {
+        long index = exp - 1;
+        int placeInterval = (int) (index % placeIntervals);
+        Scenario scenario = scenarios.get((int) (index / placeIntervals % scenarios.size()));
+        Random random = new Random(seed * 0x9E3779B97F4A7C15L + exp);
+
+        ArrayList<String> subjectIDs = new ArrayList<String>();
+        ArrayList<Map<String, String>> measured = new ArrayList<Map<String, String>>();
+        for (int i = 0; i < subjectCount; ++i) {
+            subjectIDs.add(String.format("S%03d", i + 1));
+            HashMap<String, String> values = new HashMap<String, String>();
+            for (Iterator<VariableSpec> it = scenario.measuredVariables.iterator(); it.hasNext(); ) {
+                VariableSpec variable = it.next();
+                if (variable.type.equalsIgnoreCase("categorical")) {
+                    values.put(variable.name, variable.levels.get(random.nextInt(variable.levels.size())));
+                } else {
+                    values.put(variable.name, Double.toString(50.0 + 20.0 * random.nextGaussian()));
+                }
+            }
+            measured.add(values);
+        }
+
+        // for algorithms that make random choices
+        long assignmentSeed = random.nextLong();
+        StringBuilder rows = new StringBuilder();
+        for (Iterator<String> it = algorithms.iterator(); it.hasNext(); ) {
+            String algorithm = it.next();
+            Map<String, String> groupOfSubject =
+                    enroll(algorithm, scenario, subjectIDs, measured, placeInterval, assignmentSeed);
+            for (Iterator<VariableSpec> vt = scenario.measuredVariables.iterator(); vt.hasNext(); ) {
+                VariableSpec variable = vt.next();
+                rows.append(
+                        row(algorithm, placeInterval, scenario, exp, variable, subjectIDs, measured, groupOfSubject));
+            }
+        }
+        return rows.toString();
+    }
+
+    /* Enrolls the subjects in a new protocol with the given algorithm; returns the group of each subject */
+    private Map<String, String> enroll(
+            String algorithm,
+            Scenario scenario,
+            List<String> subjectIDs,
+            List<Map<String, String>> measured,
+            int placeInterval,
+            long assignmentSeed)
+            throws IOException, InvalidDataException {
+        ProtocolSpec spec = new ProtocolSpec();
+        spec.setGroupNames(scenario.groupNames);
+        spec.setVariableSpec(scenario.usedVariables);
+        spec.setAlgorithm(algorithm);
+        Randomizer randomizer;
+        if (algorithm.equals("Alternating")) {
+            randomizer = new AlternatingRandomizer(spec, new SubjectDatabase());
+        } else if (algorithm.equals("Balanced")) {
+            BalancingRandomizer balancingRandomizer = new BalancingRandomizer(spec, new SubjectDatabase());
+            // the experiments already keep every core busy
+            balancingRandomizer.setParallelScoringThreshold(0);
+            randomizer = balancingRandomizer;
+        } else if (algorithm.equals("Minimization")) {
+            MinimizationRandomizer minimizationRandomizer = new MinimizationRandomizer(spec, new SubjectDatabase());
+            minimizationRandomizer.setRandomSeed(assignmentSeed);
+            randomizer = minimizationRandomizer;
+        } else {
+            throw new InvalidDataException("Unknown algorithm " + algorithm);
+        }
+        randomizer.setVerbosity(-1);
+
+        ArrayDeque<String> waiting = new ArrayDeque<String>();
+        for (int i = 0; i < subjectIDs.size(); ++i) {
+            HashMap<String, String> values = new HashMap<String, String>();
+            for (Iterator<VariableSpec> it = scenario.usedVariables.iterator(); it.hasNext(); ) {
+                String name = it.next().name;
+                values.put(name, measured.get(i).get(name));
+            }
+            randomizer.putSubject(subjectIDs.get(i), values);
+            waiting.add(subjectIDs.get(i));
+            if (i >= placeInterval) {
+                randomizer.getGroup(waiting.poll());
+            }
+        }
+        randomizer.assignAllSubjects();
+
+        HashMap<String, String> groupOfSubject = new HashMap<String, String>();
+        for (Iterator<String> it = subjectIDs.iterator(); it.hasNext(); ) {
+            String id = it.next();
+            groupOfSubject.put(id, randomizer.subjectsByID.get(id).getGroupName());
+        }
+        randomizer.close();
+        return groupOfSubject;
+    }
+
+    private String row(
+            String algorithm,
+            int placeInterval,
+            Scenario scenario,
+            long exp,
+            VariableSpec variable,
+            List<String> subjectIDs,
+            List<Map<String, String>> measured,
+            Map<String, String> groupOfSubject) {
+        int groupCount = scenario.groupNames.size();
+        int[] groupOf = new int[subjectIDs.size()];
+        for (int i = 0; i < groupOf.length; ++i) {
+            groupOf[i] = scenario.groupNames.indexOf(groupOfSubject.get(subjectIDs.get(i)));
+        }
+        boolean isUsed = false;
+        for (Iterator<VariableSpec> it = scenario.usedVariables.iterator(); it.hasNext(); ) {
+            isUsed |= it.next().name.equals(variable.name);
+        }
+        String statistics;
+        if (variable.type.equalsIgnoreCase("categorical")) {
+            int[][] table = new int[variable.levels.size()][groupCount];
+            for (int i = 0; i < groupOf.length; ++i) {
+                table[variable.levels.indexOf(measured.get(i).get(variable.name))][groupOf[i]]++;
+            }
+            statistics = chiSquare(table);
+        } else {
+            double[] values = new double[groupOf.length];
+            for (int i = 0; i < values.length; ++i) {
+                values[i] = Double.parseDouble(measured.get(i).get(variable.name));
+            }
+            statistics = analysisOfVariance(values, groupOf, groupCount);
+        }
+        return String.format(
+                "%s,%d,%d,%d,%d,%d,%s,%s,%s,%s\n",
+                algorithm,
+                subjectIDs.size(),
+                placeInterval,
+                scenario.usedVariables.size(),
+                groupCount,
+                exp,
+                variable.name,
+                isUsed ? "True" : "False",
+                variable.type.toLowerCase(),
+                statistics);
+    }
+
+    /* "F,df1,df2,max_mean_difference," */
+    static String analysisOfVariance(double[] values, int[] groupOf, int groupCount) {
+        double[] sums = new double[groupCount];
+        int[] counts = new int[groupCount];
+        double total = 0.0;
+        for (int i = 0; i < values.length; ++i) {
+            sums[groupOf[i]] += values[i];
+            counts[groupOf[i]]++;
+            total += values[i];
+        }
+        double grandMean = total / values.length;
+        double[] means = new double[groupCount];
+        double between = 0.0;
+        double largest = Double.NEGATIVE_INFINITY;
+        double smallest = Double.POSITIVE_INFINITY;
+        int nonEmptyGroups = 0;
+        for (int g = 0; g < groupCount; ++g) {
+            if (counts[g] > 0) {
+                means[g] = sums[g] / counts[g];
+                between += counts[g] * (means[g] - grandMean) * (means[g] - grandMean);
+                largest = Math.max(largest, means[g]);
+                smallest = Math.min(smallest, means[g]);
+                ++nonEmptyGroups;
+            }
+        }
+        double within = 0.0;
+        for (int i = 0; i < values.length; ++i) {
+            double deviation = values[i] - means[groupOf[i]];
+            within += deviation * deviation;
+        }
+        int df1 = nonEmptyGroups - 1;
+        int df2 = values.length - nonEmptyGroups;
+        double f = (between / df1) / (within / df2);
+        return String.format("%s,%d,%d,%s,", f, df1, df2, largest - smallest);
+    }
+
+    /* "chi-square,df1,,,counts" */
+    static String chiSquare(int[][] table) {
+        ArrayList<int[]> rows = new ArrayList<int[]>();
+        StringBuilder counts = new StringBuilder();
+        for (int level = 0; level < table.length; ++level) {
+            int rowTotal = 0;
+            for (int g = 0; g < table[level].length; ++g) {
+                rowTotal += table[level][g];
+                counts.append(g == 0 ? (level == 0 ? "" : ";") : "/").append(table[level][g]);
+            }
+            if (rowTotal > 0) {
+                rows.add(table[level]);
+            }
+        }
+        int groupCount = table[0].length;
+        int[] rowTotals = new int[rows.size()];
+        int[] columnTotals = new int[groupCount];
+        int total = 0;
+        for (int r = 0; r < rows.size(); ++r) {
+            for (int g = 0; g < groupCount; ++g) {
+                rowTotals[r] += rows.get(r)[g];
+                columnTotals[g] += rows.get(r)[g];
+                total += rows.get(r)[g];
+            }
+        }
+        int df = (rows.size() - 1) * (groupCount - 1);
+        double chiSquare = 0.0;
+        if (df > 0) {
+            for (int r = 0; r < rows.size(); ++r) {
+                for (int g = 0; g < groupCount; ++g) {
+                    double expected = (double) rowTotals[r] * columnTotals[g] / total;
+                    double difference = Math.abs(rows.get(r)[g] - expected);
+                    if (df == 1) {
+                        difference -= Math.min(0.5, difference);
+                    }
+                    chiSquare += difference * difference / expected;
+                }
+            }
+        }
+        return String.format("%s,%d,,,%s", chiSquare, df, counts);
+    }
+
+    public static void main(String[] args) throws Exception {
+        String variablesSpecFilePath = null;
+        String groupListFile = null;
+        String outputFile = "results.csv";
+        List<String> algorithms = null;
+        int subjects = 20;
+        int placeIntervals = 10;
+        int replicates = 100;
+        long seed = 42;
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean quiet = false;
+
+        try {
+            int argNum = 0;
+            while (argNum < args.length) {
+                String currArg = args[argNum];
+                if (currArg.length() == 2 && currArg.charAt(0) == '-') {
+                    switch (currArg.charAt(1)) {
+                        case 'r':
+                            variablesSpecFilePath = args[argNum + 1];
+                            ++argNum;
+                            break;
+                        case 'g':
+                            groupListFile = args[argNum + 1];
+                            ++argNum;
+                            break;
+                        case 'a':
+                            algorithms = Arrays.asList(args[argNum + 1].split(","));
+                            ++argNum;
+                            break;
+                        case 'n':
+                            subjects = Integer.parseInt(args[argNum + 1]);
+                            ++argNum;
+                            break;
+                        case 'i':
+                            placeIntervals = Integer.parseInt(args[argNum + 1]);
+                            ++argNum;
+                            break;
+                        case 'e':
+                            replicates = Integer.parseInt(args[argNum + 1]);
+                            ++argNum;
+                            break;
+                        case 's':
+                            seed = Long.parseLong(args[argNum + 1]);
+                            ++argNum;
+                            break;
+                        case 'w':
+                            threads = Integer.parseInt(args[argNum + 1]);
+                            ++argNum;
+                            break;
+                        case 'o':
+                            outputFile = args[argNum + 1];
+                            ++argNum;
+                            break;
+                        case 'q':
+                            quiet = true;
+                            break;
+                        default:
+                            printUsageSummary();
+                            System.exit(2);
+                    } // END switch
+                } // END if well-formed flag
+                else {
+                    printUsageSummary();
+                    System.exit(2);
+                }
+                ++argNum;
+            } // END while
+        } catch (Exception ex) {
+            printUsageSummary();
+            System.exit(2);
+        }
+
+        List<Scenario> scenarios;
+        if (variablesSpecFilePath != null || groupListFile != null) {
+            List<VariableSpec> variables = VariableSpec.getSpecsFromXML(
+                    variablesSpecFilePath != null ? variablesSpecFilePath : "variables.xml");
+            ArrayList<String> groupNames = new ArrayList<String>(
+                    InterventionGroup.ReadGroups(groupListFile != null ? groupListFile : "groups.txt")
+                            .keySet());
+            Collections.sort(groupNames);
+            scenarios = Collections.singletonList(new Scenario(groupNames, variables, variables));
+        } else {
+            scenarios = standardScenarios();
+        }
+        Simulation simulation = new Simulation(scenarios);
+        if (algorithms != null) {
+            simulation.setAlgorithms(algorithms);
+        }
+        simulation.setSubjectCount(subjects);
+        simulation.setPlaceIntervals(placeIntervals);
+        simulation.setReplicates(replicates);
+        simulation.setSeed(seed);
+
+        long start = System.nanoTime();
+        try (Writer out = new BufferedWriter(new FileWriter(outputFile))) {
+            simulation.run(out, threads);
+        }
+        if (!quiet) {
+            System.out.println(String.format(
+                    "%d experiments on %d threads in %.1f seconds; results in %s",
+                    simulation.experimentCount(),
+                    threads,
+                    (System.nanoTime() - start) / 1e9,
+                    outputFile));
+        }
+    }
+
+    private static void printUsageSummary() {
+        System.out.println("Usage:");
+        System.out.println("java -cp [JAR FILE PATH] org.sleepandcognition.prosrand.Simulation [ARGUMENTS]");
+        System.out.println("Command-line arguments:");
+        System.out.println("-r [path] Simulate one protocol, with the variables in this file (default variables.xml)");
+        System.out.println("-g [path] Simulate one protocol, with the groups in this file (default groups.txt)");
+        System.out.println("  (without -r or -g, simulate the protocols of simulation.py)");
+        System.out.println("-a [names] Algorithms to compare, separated by commas (default Alternating,Balanced)");
+        System.out.println("  (or Minimization: with -r, continuous variables need <Cut value=\"...\"/> elements)");
+        System.out.println("-n [int] Subjects in each simulated protocol (default 20)");
+        System.out.println("-i [int] Place intervals to try, from 0 to one less than [int] (default 10)");
+        System.out.println("-e [int] Replicates of each protocol and place interval (default 100)");
+        System.out.println("-s [int] Seed of the random number generators (default 42)");
+        System.out.println("-w [int] Threads to run experiments on (default: one per core)");
+        System.out.println("-o [path] Where to write the results (default results.csv)");
+        System.out.println("-q Do not print a summary at the end");
+    }
+}
@@ -0,0 +1,133 @@
+package org.sleepandcognition.prosrand;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/* The subjects that are known to the randomizer but not yet assigned to a group, in the order in which
+ * they arrived. Order matters: it breaks ties between equally good candidates.
+ *
+ * Each subject sits in a numbered slot and remembers its slot number, so removal is O(1): the slot is
+ * simply emptied. Empty slots are skipped over, and squeezed out (renumbering the remaining slots) once
+ * they make up most of the array. Anything that caches information by slot number should check
+ * layoutVersion() to find out whether that has happened.
+ */
+public class SubjectBacklog implements Iterable<MultiDimSubject> {
+    private MultiDimSubject[] slots;
+    private int end; // one past the last slot used
+    private int head; // no subjects in any slot before this one
+    private int size;
+    private long layoutVersion;
+
+    public SubjectBacklog() {
+        slots = new MultiDimSubject[16];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size < 1;
+    }
+
+    public void add(MultiDimSubject subject) {
+        if (end == slots.length) {
+            if (size < end / 2) {
+                compact();
+            } else {
+                MultiDimSubject[] bigger = new MultiDimSubject[slots.length * 2];
+                System.arraycopy(slots, 0, bigger, 0, end);
+                slots = bigger;
+            }
+        }
+        subject.backlogSlot = end;
+        slots[end] = subject;
+        ++end;
+        ++size;
+    }
+
+    public boolean remove(MultiDimSubject subject) {
+        int slot = subject.backlogSlot;
+        if (slot < 0 || slot >= end || slots[slot] != subject) {
+            return false;
+        }
+        slots[slot] = null;
+        subject.backlogSlot = -1;
+        --size;
+        if (size == 0) {
+            end = 0;
+            head = 0;
+            ++layoutVersion;
+        } else {
+            while (slots[head] == null) {
+                ++head;
+            }
+        }
+        return true;
+    }
+
+    public boolean contains(MultiDimSubject subject) {
+        int slot = subject.backlogSlot;
+        return slot >= 0 && slot < end && slots[slot] == subject;
+    }
+
+    /* The subject that has been waiting longest */
+    public MultiDimSubject first() {
+        if (size < 1) {
+            throw new NoSuchElementException();
+        }
+        return slots[head];
+    }
+
+    /* One past the highest slot number in use; slots below this may be empty */
+    int slotCount() {
+        return end;
+    }
+
+    /* The subject in the given slot, or null if that slot has been emptied */
+    MultiDimSubject subjectInSlot(int slot) {
+        return slots[slot];
+    }
+
+    long layoutVersion() {
+        return layoutVersion;
+    }
+
+    private void compact() {
+        int to = 0;
+        for (int from = head; from < end; ++from) {
+            MultiDimSubject subject = slots[from];
+            if (subject != null) {
+                subject.backlogSlot = to;
+                slots[to] = subject;
+                ++to;
+            }
+        }
+        for (int i = to; i < end; ++i) {
+            slots[i] = null;
+        }
+        end = to;
+        head = 0;
+        ++layoutVersion;
+    }
+
+    public Iterator<MultiDimSubject> iterator() {
+        return new Iterator<MultiDimSubject>() {
+            int next = head;
+
+            public boolean hasNext() {
+                while (next < end && slots[next] == null) {
+                    ++next;
+                }
+                return next < end;
+            }
+
+            public MultiDimSubject next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return slots[next++];
+            }
+        };
+    }
+}
@@ -0,0 +1,38 @@
+package org.sleepandcognition.prosrand;
+
+/* One change to a randomizer's set of subjects, as handed to the SubjectDatabase to be saved.
+ * The group name of an assignment is captured when the change is made, since the subject's
+ * group could change again (under the allowRevision option) before the change is saved.
+ */
+public class SubjectChange {
+    public enum Kind {
+        PUT,
+        ASSIGN,
+        COMMIT,
+        REMOVE
+    }
+
+    Kind kind;
+    MultiDimSubject subject;
+    String groupName;
+
+    public SubjectChange(Kind kind, MultiDimSubject subject) {
+        this.kind = kind;
+        this.subject = subject;
+        if (subject.myGroup != null) {
+            groupName = subject.myGroup.name;
+        }
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public MultiDimSubject getSubject() {
+        return subject;
+    }
+
+    public String getGroupName() {
+        return groupName;
+    }
+}
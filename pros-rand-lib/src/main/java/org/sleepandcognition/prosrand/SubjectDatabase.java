@@ -2,8 +2,9 @@ package org.sleepandcognition.prosrand;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Map;
 import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
 
 /*
  * A null implementation which defines the interface.
@@ -19,4 +20,64 @@ public class SubjectDatabase {
 
     public void WriteOutSubjects(Map<String, MultiDimSubject> subjectsByID, VariableSet variables)
             throws IOException {}
+
+    /*
+     * Called after every change (or batch of changes, such as an ASSIGN) to the randomizer's subjects.
+     * By default, simply writes out all the subjects; a database that can save individual changes
+     * should override this to do so.
+     * Returns a ticket that can be passed to AwaitDurable(). This is called while the randomizer is locked,
+     * so a database that defers writing (see SyncPolicy) should not wait for the disk here.
+     */
+    public long RecordChanges(
+            List<SubjectChange> changes, Map<String, MultiDimSubject> subjectsByID, VariableSet variables)
+            throws IOException {
+        WriteOutSubjects(subjectsByID, variables);
+        return 0;
+    }
+
+    /*
+     * Waits until the changes recorded with the given ticket (and all before them) are saved.
+     * Called without the randomizer locked, so that other requests can proceed meanwhile.
+     */
+    public void AwaitDurable(long ticket) throws IOException {}
+
+    /* Saves anything not yet saved, and lets go of any files or threads. */
+    public void Close() throws IOException {}
+
+    /* Builds a subject from the fields of one line of a subject file (or subject log, or
+     * the features column of a subject table):
+     * variable=value pairs, and optionally the word "committed", starting at fields[firstField].
+     */
+    protected MultiDimSubject subjectFromFields(
+            String id, String[] fields, int firstField, VariableSet variables, String oneLine)
+            throws IOException, InvalidDataException {
+        Hashtable<String, Double> characteristics = new Hashtable<String, Double>();
+        boolean isCommitted = false;
+        for (int i = firstField; i < fields.length; ++i) {
+            String field = fields[i];
+            if (!field.isEmpty()) {
+                if (field.equalsIgnoreCase("committed")) {
+                    isCommitted = true;
+                } else {
+                    String[] tokens = field.split("=");
+                    if (tokens.length != 2) {
+                        if (tokens.length == 1 && !variables.isMultiDimensional()) {
+                            characteristics.putAll(variables.valuesFromKeyValuePair(null, tokens[0]));
+                        } else {
+                            System.out.println("Corrupt subject line? " + oneLine);
+                            throw new IOException("Unexpected data in subject file");
+                        }
+                    } else {
+                        characteristics.putAll(variables.valuesFromKeyValuePair(tokens[0], tokens[1]));
+                    }
+                } // END it's not the "committed" token
+            } // END non-empty field
+        } // END for each field of info on this subject
+        if (!variables.hasAllVariablesSet(characteristics)) {
+            System.out.println("Warning! Data missing from this subject record: " + oneLine);
+        }
+        MultiDimSubject subject = new MultiDimSubject(id, variables, variables.vectorFromValues(characteristics));
+        subject.isCommitted = isCommitted;
+        return subject;
+    }
 }
@@ -11,7 +11,6 @@ import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Map;
-import java.util.Hashtable;
 import java.util.Iterator;
 
 public class SubjectFileDatabase extends SubjectDatabase {
@@ -43,33 +42,7 @@ public class SubjectFileDatabase extends SubjectDatabase {
                     if (wordsOnLine.length > 2) {
                         String group = wordsOnLine[0];
                         String id = wordsOnLine[1];
-                        MultiDimSubject subject = new MultiDimSubject(id);
-                        for (int i = 2; i < wordsOnLine.length; ++i) {
-                            String field = wordsOnLine[i];
-                            if (!field.isEmpty()) {
-                                if (field.equalsIgnoreCase("committed")) {
-                                    subject.isCommitted = true;
-                                } else {
-                                    String[] tokens = field.split("=");
-                                    if (tokens.length != 2) {
-                                        if (tokens.length == 1 && !variables.isMultiDimensional()) {
-                                            subject.addCharacteristics(
-                                                    variables.valuesFromKeyValuePair(null, tokens[0]));
-                                        } else {
-                                            System.out.println("Corrupt subject line? " + oneLine);
-                                            throw new IOException("Unexpected data in subject file");
-                                        }
-                                    } else {
-                                        Hashtable<String, Double> characteristics =
-                                                variables.valuesFromKeyValuePair(tokens[0], tokens[1]);
-                                        subject.addCharacteristics(characteristics);
-                                    }
-                                } // END it's not the "committed" token
-                            } // END non-empty field
-                        } // END for each field of info on this subject
-                        if (!variables.hasAllVariablesSet(subject.baselineCharacteristics)) {
-                            System.out.println("Warning! Data missing from this subject record: " + oneLine);
-                        }
+                        MultiDimSubject subject = subjectFromFields(id, wordsOnLine, 2, variables, oneLine);
                         if (!group.equals("-")) {
                             groups.get(group).addSubject(subject);
                         }
@@ -114,7 +87,7 @@ public class SubjectFileDatabase extends SubjectDatabase {
             } else {
                 out.print(String.format("%s\t%s\t", aSubject.myGroup.name, aSubject.identifier));
             }
-            out.print(variables.keyValueEncodingFromValues(aSubject.baselineCharacteristics));
+            out.print(variables.keyValueEncodingFromValues(aSubject.features));
             if (aSubject.isCommitted) {
                 out.print("committed");
             }
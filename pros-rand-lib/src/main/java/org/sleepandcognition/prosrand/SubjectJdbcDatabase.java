@@ -0,0 +1,233 @@
+package org.sleepandcognition.prosrand;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.sql.DataSource;
+
+/*
+ * Saves subjects in a table of a SQL database, one row per subject, so that several protocols (and
+ * several servers) can share one database server. Each change is saved as a single-row statement:
+ *
+ *   PUT     INSERT a row, with the subject's features in the same variable=value encoding as the subject log
+ *           (every digit of continuous values, so that they read back exactly)
+ *   ASSIGN  UPDATE the group_name of the row (consecutive assignments are sent as one batch)
+ *   COMMIT  UPDATE the committed flag of the row
+ *   REMOVE  DELETE the row
+ *
+ * and all the changes handed over by one call to RecordChanges are saved in one transaction.
+ * The features are kept as text of any length (TEXT, or CLOB where there is no TEXT), as a protocol may have
+ * any number of variables.
+ * Rows are found by (protocol, subject_id), the primary key of the table.
+ *
+ * Connections come from the given DataSource, which should be a pooling one (such as the one Spring Boot
+ * sets up), as a connection is asked for on every change.
+ */
+public class SubjectJdbcDatabase extends SubjectDatabase {
+    static final String TABLE_NAME = "prosrand_subjects";
+
+    DataSource dataSource;
+    String protocolName;
+    /* Orders the rows: arrival gives the order in which subjects were PUT, assigned_seq the order of ASSIGNs */
+    long lastSequenceNumber;
+
+    public SubjectJdbcDatabase(DataSource dataSource, String protocolName) {
+        this.dataSource = dataSource;
+        this.protocolName = protocolName;
+    }
+
+    protected void createTableIfNeeded(Connection connection) throws SQLException {
+        Statement statement = connection.createStatement();
+        try {
+            statement.execute("CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " ("
+                    + "protocol VARCHAR(255) NOT NULL, "
+                    + "subject_id VARCHAR(255) NOT NULL, "
+                    + "arrival BIGINT NOT NULL, "
+                    + "group_name VARCHAR(255), "
+                    + "assigned_seq BIGINT, "
+                    + "committed BOOLEAN NOT NULL, "
+                    + "features " + largeTextType(connection) + " NOT NULL, "
+                    + "PRIMARY KEY (protocol, subject_id))");
+        } finally {
+            statement.close();
+        }
+    }
+
+    /* A column type for text of any length, e.g. the features of a protocol with very many variables */
+    static String largeTextType(Connection connection) throws SQLException {
+        String product = connection.getMetaData().getDatabaseProductName().toLowerCase();
+        if (product.contains("oracle") || product.contains("derby") || product.contains("db2")) {
+            return "CLOB";
+        }
+        // H2, PostgreSQL, MySQL, SQLite, SQL Server, ...
+        return "TEXT";
+    }
+
+    @Override
+    public ArrayList<MultiDimSubject> ReadSubjectsIntoGroups(
+            VariableSet variables, Map<String, InterventionGroup> groups) throws IOException {
+        LinkedHashMap<String, MultiDimSubject> subjectsByID = new LinkedHashMap<String, MultiDimSubject>();
+        try (Connection connection = dataSource.getConnection()) {
+            createTableIfNeeded(connection);
+            PreparedStatement query = connection.prepareStatement("SELECT subject_id, arrival, committed, features"
+                    + " FROM " + TABLE_NAME + " WHERE protocol = ? ORDER BY arrival");
+            try {
+                query.setString(1, protocolName);
+                ResultSet rows = query.executeQuery();
+                while (rows.next()) {
+                    String id = rows.getString(1);
+                    String features = rows.getString(4);
+                    MultiDimSubject subject =
+                            subjectFromFields(id, features.split("\t"), 0, variables, id + "\t" + features);
+                    subject.isCommitted = rows.getBoolean(3);
+                    subjectsByID.put(id, subject);
+                    lastSequenceNumber = Math.max(lastSequenceNumber, rows.getLong(2));
+                }
+                rows.close();
+            } finally {
+                query.close();
+            }
+            // in order of assignment, so that each group gets its subjects back in the same order
+            query = connection.prepareStatement("SELECT subject_id, group_name, assigned_seq FROM " + TABLE_NAME
+                    + " WHERE protocol = ? AND group_name IS NOT NULL ORDER BY assigned_seq");
+            try {
+                query.setString(1, protocolName);
+                ResultSet rows = query.executeQuery();
+                while (rows.next()) {
+                    String groupName = rows.getString(2);
+                    InterventionGroup group = groups.get(groupName);
+                    if (group == null) {
+                        throw new IOException("Subject table refers to unknown group " + groupName);
+                    }
+                    group.addSubject(subjectsByID.get(rows.getString(1)));
+                    lastSequenceNumber = Math.max(lastSequenceNumber, rows.getLong(3));
+                }
+                rows.close();
+            } finally {
+                query.close();
+            }
+        } catch (SQLException e) {
+            throw new IOException("Could not read subjects of protocol " + protocolName, e);
+        } catch (InvalidDataException e) {
+            e.printStackTrace();
+            System.out.println("Uh-oh... Subject table contains invalid data for protocol " + protocolName);
+            throw new IOException("Invalid data in subject table");
+        }
+        return new ArrayList<MultiDimSubject>(subjectsByID.values());
+    }
+
+    @Override
+    public long RecordChanges(
+            List<SubjectChange> changes, Map<String, MultiDimSubject> subjectsByID, VariableSet variables)
+            throws IOException {
+        try (Connection connection = dataSource.getConnection()) {
+            boolean wasAutoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try {
+                applyChanges(connection, changes, variables);
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(wasAutoCommit);
+            }
+        } catch (SQLException e) {
+            throw new IOException("Could not save subjects of protocol " + protocolName, e);
+        }
+        return 0;
+    }
+
+    private void applyChanges(Connection connection, List<SubjectChange> changes, VariableSet variables)
+            throws SQLException {
+        PreparedStatement insert = null;
+        PreparedStatement assign = null;
+        PreparedStatement commit = null;
+        PreparedStatement delete = null;
+        int assignmentsBatched = 0;
+        long sequenceNumber = lastSequenceNumber;
+        try {
+            for (Iterator<SubjectChange> it = changes.iterator(); it.hasNext(); ) {
+                SubjectChange change = it.next();
+                // Changes must be applied in order (e.g. a REMOVE and a PUT of a revised subject),
+                // so send any batched assignments before anything else
+                if (change.kind != SubjectChange.Kind.ASSIGN && assignmentsBatched > 0) {
+                    assign.executeBatch();
+                    assignmentsBatched = 0;
+                }
+                switch (change.kind) {
+                    case PUT -> {
+                        if (insert == null) {
+                            insert = connection.prepareStatement("INSERT INTO " + TABLE_NAME
+                                    + " (protocol, subject_id, arrival, committed, features) VALUES (?, ?, ?, ?, ?)");
+                        }
+                        insert.setString(1, protocolName);
+                        insert.setString(2, change.subject.identifier);
+                        insert.setLong(3, ++sequenceNumber);
+                        insert.setBoolean(4, change.subject.isCommitted);
+                        insert.setString(5, variables.exactKeyValueEncodingFromValues(change.subject.features));
+                        insert.executeUpdate();
+                    }
+                    case ASSIGN -> {
+                        if (assign == null) {
+                            assign = connection.prepareStatement("UPDATE " + TABLE_NAME
+                                    + " SET group_name = ?, assigned_seq = ? WHERE protocol = ? AND subject_id = ?");
+                        }
+                        assign.setString(1, change.groupName);
+                        assign.setLong(2, ++sequenceNumber);
+                        assign.setString(3, protocolName);
+                        assign.setString(4, change.subject.identifier);
+                        assign.addBatch();
+                        ++assignmentsBatched;
+                    }
+                    case COMMIT -> {
+                        if (commit == null) {
+                            commit = connection.prepareStatement("UPDATE " + TABLE_NAME
+                                    + " SET committed = TRUE WHERE protocol = ? AND subject_id = ?");
+                        }
+                        commit.setString(1, protocolName);
+                        commit.setString(2, change.subject.identifier);
+                        commit.executeUpdate();
+                    }
+                    case REMOVE -> {
+                        if (delete == null) {
+                            delete = connection.prepareStatement(
+                                    "DELETE FROM " + TABLE_NAME + " WHERE protocol = ? AND subject_id = ?");
+                        }
+                        delete.setString(1, protocolName);
+                        delete.setString(2, change.subject.identifier);
+                        delete.executeUpdate();
+                    }
+                }
+            }
+            if (assignmentsBatched > 0) {
+                assign.executeBatch();
+            }
+        } finally {
+            closeQuietly(insert);
+            closeQuietly(assign);
+            closeQuietly(commit);
+            closeQuietly(delete);
+        }
+        // Only once all went well; if the transaction is rolled back, these numbers will be used again
+        lastSequenceNumber = sequenceNumber;
+    }
+
+    private static void closeQuietly(Statement statement) {
+        if (statement != null) {
+            try {
+                statement.close();
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
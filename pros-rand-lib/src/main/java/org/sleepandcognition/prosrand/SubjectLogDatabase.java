@@ -0,0 +1,745 @@
+package org.sleepandcognition.prosrand;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/*
+ * Saves subjects as an append-only log of changes, rather than rewriting the whole subject file
+ * every time anything changes. Each change is one tab-separated line, starting with a sequence number:
+ *
+ *   17  PUT     s1  score=4.500000  sex=F
+ *   18  ASSIGN  s1  A
+ *   19  COMMIT  s1
+ *   20  REMOVE  s1
+ *
+ * and each batch of changes is forced to disk before RecordChanges returns.
+ * On start-up, the log is replayed. If there is no log yet, but there is a subject file in the
+ * usual tab-separated format, the subjects are imported from that file; and WriteOutSubjects still
+ * writes that format, so it is available for export.
+ *
+ * A partial line at the end of the log (i.e. the program died while writing it) is ignored and
+ * truncated away, as the change it describes was never reported as saved.
+ *
+ * Under the GROUP_COMMIT and ASYNC sync policies, lines are handed to a background thread, which
+ * writes and forces to disk everything that has accumulated since its previous flush.
+ *
+ * So that the log does not grow forever (and take ever longer to replay), every so many changes the
+ * state of all subjects is written to a binary snapshot (e.g. subjects.snapshot), and the changes it covers
+ * are dropped from the log. Only copying the state holds up other changes; a background thread writes it.
+ * The snapshot holds the sequence number of the last change it covers; on start-up it is loaded first,
+ * and only the changes after it are replayed from the log. The snapshot holds each subject's features as
+ * raw numbers, in the order of the dimension index of the VariableSet, so nothing needs to be parsed;
+ * group statistics are not saved, as they are rebuilt anyway as the subjects are added back to the groups.
+ */
+public class SubjectLogDatabase extends SubjectFileDatabase {
+    static final int SNAPSHOT_MAGIC = 0x50525353; // "PRSS"
+    static final int SNAPSHOT_VERSION = 1;
+
+    File logFile;
+    File snapshotFile;
+    FileOutputStream logStream;
+    FileChannel logChannel;
+    long lastSequenceNumber;
+    /* Take a snapshot and empty the log once it holds this many changes; 0 means never */
+    long checkpointInterval = 10000;
+    long recordsSinceCheckpoint;
+    SyncPolicy syncPolicy = SyncPolicy.EVERY_WRITE;
+    long maxDelayMillis;
+
+    /* Used by the background flusher thread under the GROUP_COMMIT and ASYNC policies. */
+    private final Object flushLock = new Object();
+    private ByteArrayOutputStream unflushed = new ByteArrayOutputStream();
+    private long unflushedThrough; // sequence number of last change in unflushed
+    private long durableThrough; // sequence number of last change known to be on disk
+    private IOException flushFailure;
+    private Thread flusher;
+    private boolean closing;
+
+    /* Held while writing to the log, and while the checkpointer thread swaps in a shorter one */
+    private final Object logLock = new Object();
+
+    /* Used by the background checkpointer thread, which writes the latest snapshot taken. */
+    private final Object checkpointLock = new Object();
+    private SnapshotContents pendingSnapshot;
+    private boolean checkpointing; // writing a snapshot now
+    private Thread checkpointer;
+    private boolean closingCheckpointer;
+
+    public SubjectLogDatabase(String logFile, String subjectFile) {
+        super(subjectFile);
+        this.logFile = new File(logFile);
+        this.snapshotFile = new File(snapshotFileFor(logFile));
+    }
+
+    public void setCheckpointInterval(long changes) {
+        checkpointInterval = changes;
+    }
+
+    /* Under GROUP_COMMIT, the flusher waits up to maxDelayMillis after the first change of a batch for
+     * more changes to come along; under ASYNC, it flushes this often. Set this before reading subjects.
+     */
+    public void setSyncPolicy(SyncPolicy policy, long maxDelayMillis) {
+        syncPolicy = policy;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    /* The name of the log file to go with the given subject file, i.e. subjects.txt -> subjects.log */
+    public static String logFileFor(String subjectFile) {
+        if (subjectFile.endsWith(".txt")) {
+            return subjectFile.substring(0, subjectFile.length() - 4) + ".log";
+        }
+        return subjectFile + ".log";
+    }
+
+    /* The name of the snapshot file to go with the given log file, i.e. subjects.log -> subjects.snapshot */
+    public static String snapshotFileFor(String logFile) {
+        if (logFile.endsWith(".log")) {
+            return logFile.substring(0, logFile.length() - 4) + ".snapshot";
+        }
+        return logFile + ".snapshot";
+    }
+
+    @Override
+    public ArrayList<MultiDimSubject> ReadSubjectsIntoGroups(
+            VariableSet variables, Map<String, InterventionGroup> groups) throws IOException {
+        if (!logFile.exists() && !snapshotFile.exists() && subjectDatabaseFile.exists()) {
+            ArrayList<MultiDimSubject> subjects = super.ReadSubjectsIntoGroups(variables, groups);
+            openLog(0);
+            ArrayList<SubjectChange> changes = new ArrayList<SubjectChange>();
+            for (Iterator<MultiDimSubject> it = subjects.iterator(); it.hasNext(); ) {
+                MultiDimSubject subject = it.next();
+                changes.add(new SubjectChange(SubjectChange.Kind.PUT, subject));
+                if (subject.myGroup != null) {
+                    changes.add(new SubjectChange(SubjectChange.Kind.ASSIGN, subject));
+                }
+                if (subject.isCommitted) {
+                    changes.add(new SubjectChange(SubjectChange.Kind.COMMIT, subject));
+                }
+            }
+            appendChanges(changes, variables);
+            checkpointIfDue(subjects, variables);
+            return subjects;
+        }
+        LinkedHashMap<String, MultiDimSubject> subjectsByID = new LinkedHashMap<String, MultiDimSubject>();
+        // in order of assignment, so that each group gets its subjects back in the same order
+        LinkedHashMap<String, String> groupByID = new LinkedHashMap<String, String>();
+        long snapshotThrough = 0;
+        if (snapshotFile.exists()) {
+            snapshotThrough = readSnapshot(variables, subjectsByID, groupByID);
+            lastSequenceNumber = snapshotThrough;
+        }
+        long validLength = 0;
+        if (logFile.exists()) {
+            validLength = replay(variables, subjectsByID, groupByID, snapshotThrough);
+        }
+        for (Iterator<Map.Entry<String, String>> it = groupByID.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, String> entry = it.next();
+            InterventionGroup group = groups.get(entry.getValue());
+            if (group == null) {
+                throw new IOException("Subject log refers to unknown group " + entry.getValue());
+            }
+            group.addSubject(subjectsByID.get(entry.getKey()));
+        }
+        openLog(validLength);
+        ArrayList<MultiDimSubject> subjects = new ArrayList<MultiDimSubject>(subjectsByID.values());
+        checkpointIfDue(subjects, variables);
+        return subjects;
+    }
+
+    /* Applies each complete line of the log that comes after the snapshot (if any);
+     * returns the length in bytes of the complete lines.
+     */
+    private long replay(
+            VariableSet variables,
+            LinkedHashMap<String, MultiDimSubject> subjectsByID,
+            LinkedHashMap<String, String> groupByID,
+            long snapshotThrough)
+            throws IOException {
+        long validLength = 0;
+        long position = 0;
+        ByteArrayOutputStream lineBytes = new ByteArrayOutputStream();
+        InputStream in = new BufferedInputStream(new FileInputStream(logFile), 1 << 16);
+        try {
+            int b;
+            while ((b = in.read()) >= 0) {
+                ++position;
+                if (b != '\n') {
+                    lineBytes.write(b);
+                    continue;
+                }
+                String oneLine = new String(lineBytes.toByteArray(), StandardCharsets.UTF_8);
+                lineBytes.reset();
+                validLength = position;
+                applyRecord(oneLine, variables, subjectsByID, groupByID, snapshotThrough);
+            }
+        } catch (InvalidDataException ex) {
+            ex.printStackTrace();
+            System.out.println("Uh-oh... Subject log appears to exist, but contains invalid data");
+            throw new IOException("Invalid data in subject log");
+        } finally {
+            in.close();
+        }
+        if (lineBytes.size() > 0) {
+            System.out.println("Warning! Ignoring incomplete record at end of subject log");
+        }
+        return validLength;
+    }
+
+    private void applyRecord(
+            String oneLine,
+            VariableSet variables,
+            LinkedHashMap<String, MultiDimSubject> subjectsByID,
+            LinkedHashMap<String, String> groupByID,
+            long snapshotThrough)
+            throws IOException, InvalidDataException {
+        String[] fields = oneLine.split("\t");
+        if (fields.length < 3) {
+            if (oneLine.trim().length() > 0) {
+                System.out.println("Corrupt subject log line? " + oneLine);
+                throw new IOException("Unexpected data in subject log");
+            }
+            return;
+        }
+        long sequenceNumber = Long.parseLong(fields[0]);
+        if (sequenceNumber <= snapshotThrough) {
+            return; // already in the snapshot; the log was not emptied before the program stopped
+        }
+        ++recordsSinceCheckpoint;
+        String id = fields[2];
+        SubjectChange.Kind kind = SubjectChange.Kind.valueOf(fields[1]);
+        switch (kind) {
+            case PUT -> {
+                subjectsByID.put(id, subjectFromFields(id, fields, 3, variables, oneLine));
+                groupByID.remove(id);
+            }
+            case ASSIGN -> {
+                groupByID.remove(id);
+                groupByID.put(id, fields[3]);
+            }
+            case COMMIT -> {
+                MultiDimSubject subject = subjectsByID.get(id);
+                if (subject == null) {
+                    System.out.println("Corrupt subject log line? " + oneLine);
+                    throw new IOException("Commit of unknown subject in subject log");
+                }
+                subject.isCommitted = true;
+            }
+            case REMOVE -> {
+                subjectsByID.remove(id);
+                groupByID.remove(id);
+            }
+        }
+        lastSequenceNumber = Math.max(lastSequenceNumber, sequenceNumber);
+    }
+
+    private void openLog(long validLength) throws IOException {
+        logStream = new FileOutputStream(logFile, true);
+        logChannel = logStream.getChannel();
+        if (logChannel.size() > validLength) {
+            logChannel.truncate(validLength);
+        }
+    }
+
+    @Override
+    public long RecordChanges(
+            List<SubjectChange> changes, Map<String, MultiDimSubject> subjectsByID, VariableSet variables)
+            throws IOException {
+        long ticket = appendChanges(changes, variables);
+        checkpointIfDue(subjectsByID.values(), variables);
+        return ticket;
+    }
+
+    /* Returns the sequence number of the last change, which serves as the ticket for AwaitDurable(). */
+    protected long appendChanges(List<SubjectChange> changes, VariableSet variables) throws IOException {
+        StringBuilder records = new StringBuilder();
+        for (Iterator<SubjectChange> it = changes.iterator(); it.hasNext(); ) {
+            SubjectChange change = it.next();
+            records.append(encodeChange(++lastSequenceNumber, change, variables));
+        }
+        recordsSinceCheckpoint += changes.size();
+        byte[] bytes = records.toString().getBytes(StandardCharsets.UTF_8);
+        if (syncPolicy == SyncPolicy.EVERY_WRITE) {
+            writeAndForce(bytes);
+            durableThrough = lastSequenceNumber;
+        } else {
+            synchronized (flushLock) {
+                if (flushFailure != null) {
+                    throw new IOException("Could not write to subject log", flushFailure);
+                }
+                unflushed.write(bytes);
+                unflushedThrough = lastSequenceNumber;
+                if (flusher == null) {
+                    flusher = new FlusherThread();
+                    flusher.start();
+                }
+                flushLock.notifyAll();
+            }
+        }
+        return lastSequenceNumber;
+    }
+
+    /* Takes a copy of what the next snapshot is to hold, and hands it to the checkpointer thread to write out.
+     * Must be called with no other changes being recorded (i.e. while holding the randomizer's lock).
+     */
+    private void checkpointIfDue(Collection<MultiDimSubject> subjects, VariableSet variables) {
+        if (checkpointInterval > 0 && recordsSinceCheckpoint >= checkpointInterval) {
+            SnapshotContents contents = new SnapshotContents(lastSequenceNumber, subjects, variables);
+            recordsSinceCheckpoint = 0;
+            synchronized (checkpointLock) {
+                // a snapshot still waiting to be written is out of date now, so only this one is written
+                pendingSnapshot = contents;
+                if (checkpointer == null) {
+                    checkpointer = new CheckpointerThread();
+                    checkpointer.start();
+                }
+                checkpointLock.notifyAll();
+            }
+        }
+    }
+
+    /* Waits until the checkpointer thread (if any) has written every snapshot handed to it so far. */
+    void awaitCheckpoint() throws IOException {
+        synchronized (checkpointLock) {
+            while (pendingSnapshot != null || checkpointing) {
+                try {
+                    checkpointLock.wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+    }
+
+    /*
+     * What a snapshot holds, copied while no changes are being recorded, so that it can be written out while
+     * they carry on. A subject's features are never changed in place (a revision is a new subject), so the
+     * arrays are shared rather than copied.
+     */
+    static class SnapshotContents {
+        final long through;
+        final String[] dimensionKeys;
+        final String[] ids;
+        final boolean[] committed;
+        final double[][] features;
+        final ArrayList<String> groupNames = new ArrayList<String>();
+        final ArrayList<String[]> groupMembers = new ArrayList<String[]>();
+
+        SnapshotContents(long through, Collection<MultiDimSubject> subjects, VariableSet variables) {
+            this.through = through;
+            dimensionKeys = new String[variables.dimensionCount()];
+            for (int d = 0; d < dimensionKeys.length; d++) {
+                dimensionKeys[d] = variables.dimensionKey(d);
+            }
+            // in the order the subjects arrived, so that unassigned subjects keep their place in line
+            ArrayList<MultiDimSubject> ordered = new ArrayList<MultiDimSubject>(subjects);
+            ordered.sort(Comparator.comparingLong(subject -> subject.arrivalNumber));
+            ids = new String[ordered.size()];
+            committed = new boolean[ordered.size()];
+            features = new double[ordered.size()][];
+            LinkedHashSet<InterventionGroup> groups = new LinkedHashSet<InterventionGroup>();
+            for (int i = 0; i < ordered.size(); i++) {
+                MultiDimSubject subject = ordered.get(i);
+                ids[i] = subject.identifier;
+                committed[i] = subject.isCommitted;
+                features[i] = subject.features;
+                if (subject.myGroup != null) {
+                    groups.add(subject.myGroup);
+                }
+            }
+            // each group's subjects, in the order they were assigned
+            for (Iterator<InterventionGroup> it = groups.iterator(); it.hasNext(); ) {
+                InterventionGroup group = it.next();
+                String[] members = new String[group.subjects.size()];
+                int i = 0;
+                for (Iterator<MultiDimSubject> inGroup = group.subjects.iterator(); inGroup.hasNext(); ) {
+                    members[i++] = inGroup.next().identifier;
+                }
+                groupNames.add(group.name);
+                groupMembers.add(members);
+            }
+        }
+    }
+
+    /*
+     * Writes the snapshot, then drops the changes it covers from the log. The new snapshot only replaces the
+     * old one once it is completely on disk, and the log is only cut down after that; if the program stops in
+     * between, the changes left in the log are skipped on replay, as the snapshot already covers them.
+     */
+    protected void checkpoint(SnapshotContents contents) throws IOException {
+        writeSnapshot(contents);
+        dropLogThrough(contents.through);
+    }
+
+    protected void writeSnapshot(SnapshotContents contents) throws IOException {
+        File tempFile = new File(snapshotFile.getPath() + ".tmp");
+        FileOutputStream fileStream = new FileOutputStream(tempFile);
+        try {
+            CheckedOutputStream checked =
+                    new CheckedOutputStream(new BufferedOutputStream(fileStream, 1 << 16), new CRC32());
+            DataOutputStream out = new DataOutputStream(checked);
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeLong(contents.through);
+            int dimensions = contents.dimensionKeys.length;
+            out.writeInt(dimensions);
+            for (int d = 0; d < dimensions; d++) {
+                out.writeUTF(contents.dimensionKeys[d]);
+            }
+            out.writeInt(contents.ids.length);
+            for (int i = 0; i < contents.ids.length; i++) {
+                out.writeUTF(contents.ids[i]);
+                out.writeBoolean(contents.committed[i]);
+                for (int d = 0; d < dimensions; d++) {
+                    out.writeDouble(contents.features[i][d]);
+                }
+            }
+            out.writeInt(contents.groupNames.size());
+            for (int g = 0; g < contents.groupNames.size(); g++) {
+                String[] members = contents.groupMembers.get(g);
+                out.writeUTF(contents.groupNames.get(g));
+                out.writeInt(members.length);
+                for (int i = 0; i < members.length; i++) {
+                    out.writeUTF(members[i]);
+                }
+            }
+            out.writeLong(checked.getChecksum().getValue());
+            out.flush();
+            fileStream.getChannel().force(true);
+        } finally {
+            fileStream.close();
+        }
+        Files.move(
+                tempFile.toPath(),
+                snapshotFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        forceDirectory(snapshotFile);
+    }
+
+    /*
+     * Replaces the log with a copy of the changes in it after the given sequence number. Changes go on being
+     * written to the log meanwhile, so the copy of those written before the log lock is taken is made first,
+     * without holding anything up; only what has been written since is copied while holding the lock.
+     * The replacement only takes the place of the log once it is completely on disk.
+     */
+    private void dropLogThrough(long through) throws IOException {
+        long start = endOfRecordsThrough(through);
+        File tempFile = new File(logFile.getPath() + ".tmp");
+        FileOutputStream tempStream = new FileOutputStream(tempFile);
+        try {
+            FileChannel tempChannel = tempStream.getChannel();
+            FileChannel in = FileChannel.open(logFile.toPath(), StandardOpenOption.READ);
+            try {
+                long copied = copy(in, start, in.size(), tempChannel);
+                synchronized (logLock) {
+                    copy(in, copied, in.size(), tempChannel);
+                    tempChannel.force(true);
+                    Files.move(
+                            tempFile.toPath(),
+                            logFile.toPath(),
+                            StandardCopyOption.REPLACE_EXISTING,
+                            StandardCopyOption.ATOMIC_MOVE);
+                    forceDirectory(logFile);
+                    logStream.close();
+                    logStream = new FileOutputStream(logFile, true);
+                    logChannel = logStream.getChannel();
+                }
+            } finally {
+                in.close();
+            }
+        } finally {
+            tempStream.close();
+        }
+    }
+
+    /* Copies the bytes from..to of one file to the end of another; returns where it stopped */
+    private static long copy(FileChannel in, long from, long to, FileChannel out) throws IOException {
+        while (from < to) {
+            from += in.transferTo(from, to - from, out);
+        }
+        return to;
+    }
+
+    /* The length in bytes of the complete lines at the start of the log with sequence numbers up to the given one */
+    private long endOfRecordsThrough(long through) throws IOException {
+        long end = 0;
+        long position = 0;
+        long sequenceNumber = 0;
+        boolean atStartOfLine = true;
+        InputStream in = new BufferedInputStream(new FileInputStream(logFile), 1 << 16);
+        try {
+            int b;
+            while ((b = in.read()) >= 0) {
+                ++position;
+                if (b == '\n') {
+                    end = position;
+                    sequenceNumber = 0;
+                    atStartOfLine = true;
+                } else if (atStartOfLine && b >= '0' && b <= '9') {
+                    sequenceNumber = sequenceNumber * 10 + (b - '0');
+                } else if (atStartOfLine) {
+                    if (sequenceNumber > through) {
+                        break;
+                    }
+                    atStartOfLine = false;
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return end;
+    }
+
+    /* So that a file moved into the directory stays there if the machine goes down; some platforms (e.g.
+     * Windows) cannot open a directory to do this, but there the move is on disk once it returns anyway.
+     */
+    private static void forceDirectory(File file) {
+        File directory = file.getAbsoluteFile().getParentFile();
+        try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // nothing more can be done
+        }
+    }
+
+    /* Loads the subjects in the snapshot; returns the sequence number of the last change it covers. */
+    private long readSnapshot(
+            VariableSet variables,
+            LinkedHashMap<String, MultiDimSubject> subjectsByID,
+            LinkedHashMap<String, String> groupByID)
+            throws IOException {
+        CheckedInputStream checked = new CheckedInputStream(
+                new BufferedInputStream(new FileInputStream(snapshotFile), 1 << 16), new CRC32());
+        DataInputStream in = new DataInputStream(checked);
+        try {
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+                throw new IOException("Not a subject snapshot, or an unknown version: " + snapshotFile);
+            }
+            long snapshotThrough = in.readLong();
+            int dimensions = in.readInt();
+            if (dimensions != variables.dimensionCount()) {
+                throw new IOException("Subject snapshot does not match the variables: " + snapshotFile);
+            }
+            for (int d = 0; d < dimensions; d++) {
+                if (!in.readUTF().equals(variables.dimensionKey(d))) {
+                    throw new IOException("Subject snapshot does not match the variables: " + snapshotFile);
+                }
+            }
+            int subjectCount = in.readInt();
+            for (int i = 0; i < subjectCount; i++) {
+                String id = in.readUTF();
+                boolean committed = in.readBoolean();
+                double[] features = new double[dimensions];
+                for (int d = 0; d < dimensions; d++) {
+                    features[d] = in.readDouble();
+                }
+                MultiDimSubject subject = new MultiDimSubject(id, variables, features);
+                subject.isCommitted = committed;
+                subjectsByID.put(id, subject);
+            }
+            int groupCount = in.readInt();
+            for (int g = 0; g < groupCount; g++) {
+                String groupName = in.readUTF();
+                int memberCount = in.readInt();
+                for (int i = 0; i < memberCount; i++) {
+                    groupByID.put(in.readUTF(), groupName);
+                }
+            }
+            long expectedChecksum = checked.getChecksum().getValue();
+            if (in.readLong() != expectedChecksum) {
+                throw new IOException("Subject snapshot is corrupt (checksum mismatch): " + snapshotFile);
+            }
+            return snapshotThrough;
+        } finally {
+            in.close();
+        }
+    }
+
+    /* Appends the records to the log and forces them to disk; all the writing to the log goes through here */
+    protected void writeAndForce(byte[] records) throws IOException {
+        synchronized (logLock) {
+            logStream.write(records);
+            logChannel.force(false);
+        }
+    }
+
+    @Override
+    public void AwaitDurable(long ticket) throws IOException {
+        if (syncPolicy != SyncPolicy.GROUP_COMMIT) {
+            return;
+        }
+        synchronized (flushLock) {
+            while (durableThrough < ticket) {
+                if (flushFailure != null) {
+                    throw new IOException("Could not write to subject log", flushFailure);
+                }
+                try {
+                    flushLock.wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+    }
+
+    @Override
+    public void Close() throws IOException {
+        Thread stopping;
+        // first, so that the last snapshot taken is written, and any changes it missed are left in the log
+        synchronized (checkpointLock) {
+            closingCheckpointer = true;
+            checkpointLock.notifyAll();
+            stopping = checkpointer;
+        }
+        if (stopping != null) {
+            try {
+                stopping.join();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+        synchronized (flushLock) {
+            closing = true;
+            flushLock.notifyAll();
+            stopping = flusher;
+        }
+        if (stopping != null) {
+            try {
+                stopping.join();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+        if (logStream != null) {
+            logStream.close();
+        }
+        if (flushFailure != null) {
+            throw new IOException("Could not write to subject log", flushFailure);
+        }
+    }
+
+    private class FlusherThread extends Thread {
+        FlusherThread() {
+            super("subject log flusher: " + logFile.getName());
+            setDaemon(true);
+        }
+
+        public void run() {
+            while (true) {
+                byte[] batch;
+                long batchThrough;
+                try {
+                    synchronized (flushLock) {
+                        while (unflushed.size() == 0 && !closing) {
+                            flushLock.wait();
+                        }
+                        if (unflushed.size() == 0) {
+                            return; // closing, and nothing left to write
+                        }
+                        // give other changes a chance to join this batch
+                        long deadline = System.currentTimeMillis() + maxDelayMillis;
+                        long remaining;
+                        while (!closing && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                            flushLock.wait(remaining);
+                        }
+                        batch = unflushed.toByteArray();
+                        batchThrough = unflushedThrough;
+                        unflushed.reset();
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                try {
+                    writeAndForce(batch);
+                    synchronized (flushLock) {
+                        durableThrough = batchThrough;
+                        flushLock.notifyAll();
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    synchronized (flushLock) {
+                        flushFailure = e;
+                        flushLock.notifyAll();
+                    }
+                    return;
+                }
+            }
+        }
+    }
+
+    private class CheckpointerThread extends Thread {
+        CheckpointerThread() {
+            super("subject log checkpointer: " + logFile.getName());
+            setDaemon(true);
+        }
+
+        public void run() {
+            while (true) {
+                SnapshotContents contents;
+                synchronized (checkpointLock) {
+                    while (pendingSnapshot == null && !closingCheckpointer) {
+                        try {
+                            checkpointLock.wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    if (pendingSnapshot == null) {
+                        return; // closing, and nothing left to write
+                    }
+                    contents = pendingSnapshot;
+                    pendingSnapshot = null;
+                    checkpointing = true;
+                }
+                try {
+                    checkpoint(contents);
+                } catch (IOException e) {
+                    // Nothing is lost: the log still holds every change, and the next checkpoint will try again
+                    e.printStackTrace();
+                    System.out.println("Warning! Could not write subject snapshot " + snapshotFile);
+                } finally {
+                    synchronized (checkpointLock) {
+                        checkpointing = false;
+                        checkpointLock.notifyAll();
+                    }
+                }
+            }
+        }
+    }
+
+    protected String encodeChange(long sequenceNumber, SubjectChange change, VariableSet variables) {
+        String record = String.format("%d\t%s\t%s", sequenceNumber, change.kind, change.subject.identifier);
+        switch (change.kind) {
+            // exactly, as the snapshot has them, so that replaying gives the same features as a checkpoint
+            case PUT -> record = record + "\t" + variables.exactKeyValueEncodingFromValues(change.subject.features);
+            case ASSIGN -> record = record + "\t" + change.groupName;
+            default -> {}
+        }
+        return record + "\n";
+    }
+}
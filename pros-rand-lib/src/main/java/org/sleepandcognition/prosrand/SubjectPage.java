@@ -0,0 +1,23 @@
+package org.sleepandcognition.prosrand;
+
+import java.util.List;
+
+/* A page of a randomizer's subjects, in order of arrival; see Randomizer.subjectsAfter() */
+public class SubjectPage {
+    List<SubjectRecord> subjects;
+    Long next;
+
+    SubjectPage(List<SubjectRecord> subjects, Long next) {
+        this.subjects = subjects;
+        this.next = next;
+    }
+
+    public List<SubjectRecord> getSubjects() {
+        return subjects;
+    }
+
+    /* The cursor to ask for the next page with (the arrival number of the last subject here); null at the end */
+    public Long getNext() {
+        return next;
+    }
+}
@@ -0,0 +1,56 @@
+package org.sleepandcognition.prosrand;
+
+import java.util.Hashtable;
+import java.util.Map;
+
+/*
+ * One subject as it was saved at some moment: for listing and exporting subjects outside the randomizer's lock,
+ * while it goes on changing them. The feature vector is shared with the subject (it never changes once the
+ * subject exists); the group and whether committed are copied. See Randomizer.snapshotSubjects() and
+ * Randomizer.subjectsAfter().
+ */
+public class SubjectRecord {
+    String id;
+    long arrivalNumber;
+    double[] features;
+    VariableSet variables;
+    String groupName;
+    boolean committed;
+
+    /* The arrival number is that of the place in line: a revision's, even while the subject is as it was before */
+    SubjectRecord(MultiDimSubject subject, long arrivalNumber) {
+        id = subject.identifier;
+        this.arrivalNumber = arrivalNumber;
+        features = subject.features;
+        variables = subject.variables;
+        groupName = subject.savedGroupName;
+        committed = subject.savedCommitted;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /* Increases with the order in which subjects arrived; see Randomizer.subjectsAfter() */
+    public long getArrivalNumber() {
+        return arrivalNumber;
+    }
+
+    /* As in MultiDimSubject.getFeatures(): by dimension, e.g. "sex_isF" */
+    public Hashtable<String, Double> getFeatures() {
+        return variables.valuesFromVector(features);
+    }
+
+    public String getGroupName() {
+        return groupName;
+    }
+
+    public boolean isCommitted() {
+        return committed;
+    }
+
+    /* By variable, as a client would give them, e.g. "sex" = "F" */
+    public Map<String, String> variableValues() {
+        return variables.stringsFromValues(features);
+    }
+}
@@ -0,0 +1,36 @@
+package org.sleepandcognition.prosrand;
+
+/* How hard a SubjectDatabase works to get each change onto the disk before a reply goes out.
+ *
+ * EVERY_WRITE ("fsync"): each batch of changes is written and forced to disk before the randomizer carries on.
+ * GROUP_COMMIT ("group"): changes are written and forced to disk by a background thread, which gathers up
+ *      all changes made in the meantime (waiting at most the configured delay for more to arrive), so that
+ *      concurrent requests share one disk flush. Each request still waits for its changes to be durable
+ *      before replying, but it does not hold the randomizer's lock while waiting.
+ * ASYNC ("async"): changes are written and forced to disk by the background thread, and nobody waits for
+ *      that; a crash may lose changes from the last few milliseconds.
+ */
+public enum SyncPolicy {
+    EVERY_WRITE("fsync"),
+    GROUP_COMMIT("group"),
+    ASYNC("async");
+
+    private final String policyName;
+
+    SyncPolicy(String policyName) {
+        this.policyName = policyName;
+    }
+
+    public String getPolicyName() {
+        return policyName;
+    }
+
+    public static SyncPolicy fromName(String name) {
+        for (SyncPolicy policy : values()) {
+            if (policy.policyName.equalsIgnoreCase(name) || policy.name().equalsIgnoreCase(name)) {
+                return policy;
+            }
+        }
+        throw new IllegalArgumentException(name);
+    }
+}
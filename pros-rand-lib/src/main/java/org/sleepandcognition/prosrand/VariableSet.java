@@ -14,42 +14,98 @@ import java.util.Map;
  * Variables are either numeric or categorical ("factors" with levels, in R terminology).
  * For the purpose of calculating feature vectors, all features must be numeric; for categorical variables, this
  * is handled with one-hot encoding.
+ *
+ * The variable specs are compiled into a fixed dimension index: each continuous variable occupies one dimension,
+ * and each level of a categorical variable occupies one dimension. Subjects and group means are stored as
+ * double[] vectors laid out according to this index. The string-keyed Hashtable form (with keys such as
+ * "sex_isF") is only used at the edges, i.e. when parsing input and when reporting values back out.
  */
 
 public class VariableSet {
     List<VariableSpec> specs;
     Hashtable<String, VariableSetterGetter> variables;
-    Hashtable<String, String> variableFromDimension;
+    ArrayList<String> dimensionKeys;
+    Hashtable<String, Integer> dimensionIndex;
+    double[] dimensionWeights;
     boolean multiDimensional;
 
     public VariableSet(List<VariableSpec> specs) {
         this.specs = specs;
         variables = new Hashtable<String, VariableSetterGetter>();
-        variableFromDimension = new Hashtable<String, String>();
+        dimensionKeys = new ArrayList<String>();
+        dimensionIndex = new Hashtable<String, Integer>();
+        ArrayList<VariableSetterGetter> getterForDimension = new ArrayList<VariableSetterGetter>();
         for (Iterator<VariableSpec> it = specs.iterator(); it.hasNext(); ) {
             VariableSpec spec = it.next();
             String name = spec.getName();
             VariableSetterGetter getter;
             if (spec.getType().equals("continuous")) {
-                getter = new ContinuousVariableSetterGetter(name);
-                variableFromDimension.put(name, name);
+                getter = new ContinuousVariableSetterGetter(name, dimensionKeys.size());
+                addDimension(name);
+                getterForDimension.add(getter);
             }
             else {
-                CategoricalVariableSetterGetter catGetter = new CategoricalVariableSetterGetter(name);
+                CategoricalVariableSetterGetter catGetter =
+                        new CategoricalVariableSetterGetter(name, dimensionKeys.size());
                 for (Iterator<String> opts = spec.getLevels().iterator(); opts.hasNext(); ) {
                     String optionName = opts.next();
                     catGetter.addOption(optionName);
-                    variableFromDimension.put(catGetter.optionKey(optionName), name);
+                    addDimension(catGetter.optionKey(optionName));
+                    getterForDimension.add(catGetter);
                 }
                 getter = catGetter;
             }
             variables.put(name, getter);
         }
+        dimensionWeights = new double[dimensionKeys.size()];
+        for (int i = 0; i < dimensionWeights.length; ++i) {
+            dimensionWeights[i] = getterForDimension.get(i).weight();
+        }
         if (specs.size() > 1) {
             multiDimensional = true;
         }
     }
 
+    private void addDimension(String key) {
+        dimensionIndex.put(key, dimensionKeys.size());
+        dimensionKeys.add(key);
+    }
+
+    public int dimensionCount() {
+        return dimensionKeys.size();
+    }
+
+    /* Where the named variable's dimensions start: its only one if continuous, that of its first level if not */
+    int firstDimension(String variableName) {
+        return variables.get(variableName).firstDimension;
+    }
+
+    public String dimensionKey(int dimension) {
+        return dimensionKeys.get(dimension);
+    }
+
+    /* Converts the string-keyed form of a subject's features to a vector laid out by our dimension index.
+     * Any dimension that has no value is left at 0.0; callers check hasAllVariablesSet() first.
+     */
+    public double[] vectorFromValues(Hashtable<String, Double> values) {
+        double[] vector = new double[dimensionKeys.size()];
+        for (int i = 0; i < vector.length; ++i) {
+            Double value = values.get(dimensionKeys.get(i));
+            if (value != null) {
+                vector[i] = value.doubleValue();
+            }
+        }
+        return vector;
+    }
+
+    public Hashtable<String, Double> valuesFromVector(double[] vector) {
+        Hashtable<String, Double> values = new Hashtable<String, Double>();
+        for (int i = 0; i < vector.length; ++i) {
+            values.put(dimensionKeys.get(i), Double.valueOf(vector[i]));
+        }
+        return values;
+    }
+
     public Hashtable<String, Double> valuesFromKeyValuePair(String key, String value) throws InvalidDataException {
         VariableSetterGetter getter;
         if (key == null) {
@@ -71,14 +127,25 @@ public class VariableSet {
         return specs;
     }
 
-    public String keyValueEncodingFromValues(Hashtable<String, Double> values) {
-        String result = "";
+    public String keyValueEncodingFromValues(double[] vector) {
+        StringBuilder result = new StringBuilder();
         for (Enumeration<String> e = variables.keys(); e.hasMoreElements(); ) {
             String key = e.nextElement();
             VariableSetterGetter getter = variables.get(key);
-            result = result + getter.keyValuePairFromValues(values) + "\t";
+            result.append(getter.keyValuePairFromVector(vector)).append("\t");
         }
-        return result;
+        return result.toString();
+    }
+
+    /* As keyValueEncodingFromValues(), but with every digit of continuous values, so that they read back exactly */
+    public String exactKeyValueEncodingFromValues(double[] vector) {
+        StringBuilder result = new StringBuilder();
+        for (Enumeration<String> e = variables.keys(); e.hasMoreElements(); ) {
+            String key = e.nextElement();
+            VariableSetterGetter getter = variables.get(key);
+            result.append(key).append("=").append(getter.exactStrValueFromVector(vector)).append("\t");
+        }
+        return result.toString();
     }
 
     public boolean hasAllVariablesSet(Hashtable<String, Double> values) {
@@ -99,9 +166,11 @@ public class VariableSet {
 
     private abstract class VariableSetterGetter {
         String key;
+        int firstDimension;
 
-        public VariableSetterGetter(String name) {
+        public VariableSetterGetter(String name, int firstDimension) {
             key = name;
+            this.firstDimension = firstDimension;
         }
 
         public double weight() {
@@ -120,27 +189,22 @@ public class VariableSet {
             return (values.containsKey(key));
         }
 
-        public Double valueFromValues(Hashtable<String, Double> values) {
-            Double value = values.get(key);
-            if (value == null) {
-                // should never happen
-                throw new RuntimeException("How could we not have a value?");
-            }
-            return value;
+        public String strValueFromVector(double[] vector) {
+            return String.format("%f", vector[firstDimension]);
         }
 
-        public String strValueFromValues(Hashtable<String, Double> values) {
-            return String.format("%f", valueFromValues(values).doubleValue());
+        public String exactStrValueFromVector(double[] vector) {
+            return Double.toString(vector[firstDimension]);
         }
 
-        public String keyValuePairFromValues(Hashtable<String, Double> values) {
-            return String.format("%s=%s", key, strValueFromValues(values));
+        public String keyValuePairFromVector(double[] vector) {
+            return String.format("%s=%s", key, strValueFromVector(vector));
         }
     }
 
     private class ContinuousVariableSetterGetter extends VariableSetterGetter {
-        public ContinuousVariableSetterGetter(String name) {
-            super(name);
+        public ContinuousVariableSetterGetter(String name, int firstDimension) {
+            super(name, firstDimension);
         }
 
         public String getTypeName() {
@@ -151,8 +215,8 @@ public class VariableSet {
     private class CategoricalVariableSetterGetter extends VariableSetterGetter {
         ArrayList<String> options;
 
-        public CategoricalVariableSetterGetter(String name) {
-            super(name);
+        public CategoricalVariableSetterGetter(String name, int firstDimension) {
+            super(name, firstDimension);
             options = new ArrayList<String>();
         }
 
@@ -195,16 +259,19 @@ public class VariableSet {
             return String.format("%s_is%s", key, option);
         }
 
-        public String strValueFromValues(Hashtable<String, Double> values) {
-            for (Iterator<String> it = options.iterator(); it.hasNext(); ) {
-                String option = it.next();
-                if (values.get(optionKey(option)).doubleValue() > 0) {
-                    return option;
+        public String strValueFromVector(double[] vector) {
+            for (int i = 0; i < options.size(); ++i) {
+                if (vector[firstDimension + i] > 0) {
+                    return options.get(i);
                 }
             }
             // One should be valued, so we should never get here:
             throw new RuntimeException("How could we not have a value? (categorical)");
         }
+
+        public String exactStrValueFromVector(double[] vector) {
+            return strValueFromVector(vector);
+        }
     } // END class CategoricalVariableSetterGetter
 
     public boolean matchesSpec(List<VariableSpec> specs) {
@@ -239,18 +306,18 @@ public class VariableSet {
         return true;
     }
 
-    public Map<String, String> stringsFromValues(Hashtable<String, Double> baselineCharacteristics) {
+    public Map<String, String> stringsFromValues(double[] vector) {
         HashMap<String, String> map = new HashMap<>();
         for (Enumeration<String> e = variables.keys(); e.hasMoreElements(); ) {
             String key = e.nextElement();
             VariableSetterGetter getter = variables.get(key);
-            String val = getter.strValueFromValues(baselineCharacteristics);
+            String val = getter.strValueFromVector(vector);
             map.put(key, val);
         }
         return map;
     }
 
-    public double weightForKey(String key) {
-        return variables.get(variableFromDimension.get(key)).weight();
+    public double weightForDimension(int dimension) {
+        return dimensionWeights[dimension];
     }
 }
@@ -16,8 +16,10 @@ public class VariableSpec {
     String name;
     String type;
     List<String> levels; // only relevant for categorical 
+    List<Double> cutPoints; // only relevant for continuous, and only to the "Minimization" algorithm
 
-    static List<VariableSpec> getSpecsFromXML(String fileNameOrPath) throws SAXException, IOException, ParserConfigurationException {
+    static List<VariableSpec> getSpecsFromXML(String fileNameOrPath)
+            throws SAXException, IOException, ParserConfigurationException, InvalidDataException {
         List<VariableSpec> specs = new ArrayList<>();
         File xmlFileName = new File(fileNameOrPath);
         Document document =
@@ -34,6 +36,7 @@ public class VariableSpec {
                 attrNode = attrs.getNamedItem("type");
                 String type = attrNode.getNodeValue();
                 ArrayList<String> options = null;
+                ArrayList<Double> cuts = null;
                 if (type.equalsIgnoreCase("categorical")) {
                     options = new ArrayList<>();
                     attrs = node.getAttributes();
@@ -48,17 +51,45 @@ public class VariableSpec {
                             options.add(optionName);
                         }
                     }
+                } else {
+                    // e.g. <Cut value="50" />, for the minimization algorithm
+                    NodeList childCuts = node.getChildNodes();
+                    for (int j = 0; j < childCuts.getLength(); ++j) {
+                        org.w3c.dom.Node child = childCuts.item(j);
+                        if (child.getNodeType() == org.w3c.dom.Node.ELEMENT_NODE
+                                && child.getNodeName().equals("Cut")) {
+                            if (cuts == null) {
+                                cuts = new ArrayList<>();
+                            }
+                            attrNode = child.getAttributes().getNamedItem("value");
+                            cuts.add(cutPoint(name, attrNode));
+                        }
+                    }
                 }
                 VariableSpec spec = new VariableSpec();
                 spec.setName(name);
                 spec.setType(type);
                 spec.setLevels(options);
+                spec.setCutPoints(cuts);
                 specs.add(spec);
             }
         }
         return specs;
     }
 
+    /* The value of a <Cut value="..."/> element of the named variable */
+    private static double cutPoint(String name, org.w3c.dom.Node valueAttribute) throws InvalidDataException {
+        if (valueAttribute == null) {
+            throw new InvalidDataException("Cut without a value for variable " + name);
+        }
+        try {
+            return Double.parseDouble(valueAttribute.getNodeValue());
+        } catch (NumberFormatException e) {
+            throw new InvalidDataException(
+                    "Cut value " + valueAttribute.getNodeValue() + " is not a number, for variable " + name);
+        }
+    }
+
     public String getName() {
         return name;
     }
@@ -71,6 +102,13 @@ public class VariableSpec {
         return levels;
     }
 
+    /* Values dividing a continuous variable into bins, in increasing order: a value equal to a cut point goes in
+     * the bin above it. The "Minimization" algorithm balances the number of subjects in each bin; null if not given.
+     */
+    public List<Double> getCutPoints() {
+        return cutPoints;
+    }
+
     // TODO do these need to be public?
     public void setName(String n) {
         name = n;
@@ -91,4 +129,8 @@ public class VariableSpec {
     public void setLevels(List<String> options) {
         levels = options;
     }
+
+    public void setCutPoints(List<Double> cuts) {
+        cutPoints = cuts;
+    }
 }
@@ -0,0 +1,201 @@
+package org.sleepandcognition.prosrand;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+public class BalancingRandomizerTest {
+    /*
+     * The greedy scan as it was before the candidate rankings: every least-filled group against every
+     * unassigned subject, with the statistics and z-scores worked out afresh for each assignment.
+     */
+    static class BaselineRandomizer extends BalancingRandomizer {
+        BaselineRandomizer(ProtocolSpec spec) throws Exception {
+            super(spec, new SubjectDatabase());
+        }
+
+        private double[] standardized(MultiDimSubject subject, double[] mean, double[] stddev) {
+            double[] z = new double[mean.length];
+            for (int i = 0; i < z.length; ++i) {
+                if (stddev[i] > 0.0) {
+                    z[i] = (subject.features[i] - mean[i]) / stddev[i];
+                }
+            }
+            return z;
+        }
+
+        @Override
+        protected synchronized void assignAnySubjectAGroup() {
+            MeanVectorCalculator m = getMeans();
+            double[] mean = new double[m.dimensionCount()];
+            double[] stddev = new double[m.dimensionCount()];
+            for (int i = 0; i < mean.length; ++i) {
+                mean[i] = m.mean(i);
+                stddev[i] = m.stddev(i);
+            }
+            int minimumScaledGroupSize = Integer.MAX_VALUE;
+            for (Iterator<String> it = groupNamesInOrder.iterator(); it.hasNext(); ) {
+                InterventionGroup aGroup = groups.get(it.next());
+                if (aGroup.isEmpty()) {
+                    double shortestVector = Double.MAX_VALUE;
+                    MultiDimSubject winningSubject = null;
+                    for (MultiDimSubject subject : unassignedSubjects) {
+                        double length = nomalizedLength(standardized(subject, mean, stddev));
+                        if (length < shortestVector) {
+                            shortestVector = length;
+                            winningSubject = subject;
+                        }
+                    }
+                    assignSubjectToGroup(aGroup, winningSubject);
+                    return;
+                }
+                minimumScaledGroupSize = Math.min(minimumScaledGroupSize, aGroup.currentGroupSize());
+            }
+            double mostNegativeDotProduct = Double.MAX_VALUE;
+            InterventionGroup winningGroup = null;
+            MultiDimSubject winningSubject = null;
+            for (Iterator<String> it = groupNamesInOrder.iterator(); it.hasNext(); ) {
+                InterventionGroup aGroup = groups.get(it.next());
+                if (aGroup.currentGroupSize() == minimumScaledGroupSize) {
+                    double[] vector = new double[mean.length];
+                    double n = aGroup.subjects.size();
+                    for (int i = 0; i < vector.length; ++i) {
+                        double v = 0.0;
+                        if (stddev[i] > 0.0) {
+                            v = (aGroup.featureSums[i] / n - mean[i]) / stddev[i];
+                        }
+                        vector[i] = variables.weightForDimension(i) * v;
+                    }
+                    for (MultiDimSubject subject : unassignedSubjects) {
+                        double[] z = standardized(subject, mean, stddev);
+                        double dotProduct = 0.0;
+                        for (int i = 0; i < z.length; ++i) {
+                            dotProduct += vector[i] * z[i];
+                        }
+                        if (dotProduct < mostNegativeDotProduct) {
+                            mostNegativeDotProduct = dotProduct;
+                            winningGroup = aGroup;
+                            winningSubject = subject;
+                        }
+                    }
+                }
+            }
+            assignSubjectToGroup(winningGroup, winningSubject);
+        }
+    }
+
+    static ProtocolSpec spec() {
+        VariableSpec score = new VariableSpec();
+        score.setName("score");
+        score.setType("continuous");
+        VariableSpec sex = new VariableSpec();
+        sex.setName("sex");
+        sex.setType("categorical");
+        sex.setLevels(Arrays.asList("F", "M"));
+        VariableSpec site = new VariableSpec();
+        site.setName("site");
+        site.setType("categorical");
+        site.setLevels(Arrays.asList("north", "south", "west"));
+        ProtocolSpec spec = new ProtocolSpec();
+        spec.setGroupNames(Arrays.asList("A", "B", "C"));
+        spec.setVariableSpec(Arrays.asList(score, sex, site));
+        spec.setAlgorithm("Balanced");
+        return spec;
+    }
+
+    /* Few distinct values, so that many candidates score the same and the tie-breaking is exercised */
+    static Map<String, String> values(Random draws) {
+        Hashtable<String, String> values = new Hashtable<String, String>();
+        values.put("score", Integer.toString(draws.nextInt(3)));
+        values.put("sex", draws.nextBoolean() ? "F" : "M");
+        values.put("site", Arrays.asList("north", "south", "west").get(draws.nextInt(3)));
+        return values;
+    }
+
+    static List<List<String>> members(Randomizer randomizer) {
+        List<List<String>> members = new ArrayList<List<String>>();
+        for (String groupName : randomizer.groupNamesInOrder) {
+            ArrayList<String> ids = new ArrayList<String>();
+            for (MultiDimSubject subject : randomizer.groups.get(groupName).getSubjects()) {
+                ids.add(subject.getId());
+            }
+            members.add(ids);
+        }
+        return members;
+    }
+
+    /*
+     * Makes the same seeded mix of changes to each randomizer: subjects put in the backlog and then all
+     * assigned at once, subjects placed one at a time, and subjects removed (assigned or not).
+     */
+    static List<List<List<String>>> run(Randomizer randomizer, long seed) throws Exception {
+        randomizer.setVerbosity(-1);
+        Random draws = new Random(seed);
+        ArrayList<String> ids = new ArrayList<String>();
+        List<List<List<String>>> states = new ArrayList<List<List<String>>>();
+        for (int step = 0; step < 60; step++) {
+            int what = draws.nextInt(10);
+            if (what < 5) {
+                int count = 1 + draws.nextInt(12);
+                for (int i = 0; i < count; i++) {
+                    String id = "s" + step + "_" + i;
+                    randomizer.putSubject(id, values(draws));
+                    ids.add(id);
+                }
+                randomizer.assignAllSubjects();
+            } else if (what < 8) {
+                String id = "p" + step;
+                randomizer.placeSubject(id, values(draws));
+                ids.add(id);
+            } else if (ids.size() > 0) {
+                randomizer.removeSubject(ids.remove(draws.nextInt(ids.size())));
+            }
+            states.add(members(randomizer));
+        }
+        randomizer.close();
+        return states;
+    }
+
+    @Test
+    public void ranksCandidatesJustAsTheGreedyScanDid() throws Exception {
+        for (long seed = 1; seed <= 20; seed++) {
+            BalancingRandomizer ranked = new BalancingRandomizer(spec(), new SubjectDatabase());
+            ranked.setParallelScoringThreshold(0);
+            assertEquals(run(new BaselineRandomizer(spec()), seed), run(ranked, seed), "seed " + seed);
+        }
+    }
+
+    /* A large backlog, all assigned at once, then more subjects placed one at a time */
+    static List<List<String>> assignCohort(int parallelScoringThreshold) throws Exception {
+        BalancingRandomizer randomizer = new BalancingRandomizer(spec(), new SubjectDatabase());
+        randomizer.setVerbosity(-1);
+        randomizer.setParallelScoringThreshold(parallelScoringThreshold);
+        Random draws = new Random(11);
+        for (int i = 0; i < 1500; i++) {
+            Map<String, String> values = values(draws);
+            values.put("score", Double.toString(draws.nextGaussian() * 10 + 50));
+            randomizer.putSubject("s" + i, values);
+        }
+        randomizer.assignAllSubjects();
+        for (int i = 0; i < 50; i++) {
+            randomizer.placeSubject("p" + i, values(draws));
+        }
+        randomizer.close();
+        return members(randomizer);
+    }
+
+    @Test
+    public void assignsTheSameWhetherScoringOnOneThreadOrOnAllCores() throws Exception {
+        List<List<String>> oneThread = assignCohort(0);
+        assertEquals(oneThread, assignCohort(Integer.MAX_VALUE));
+        // 0 means never, so it takes 1 to score on all cores however few subjects are waiting
+        assertEquals(oneThread, assignCohort(1));
+    }
+}
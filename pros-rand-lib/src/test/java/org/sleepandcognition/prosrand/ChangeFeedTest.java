@@ -0,0 +1,66 @@
+package org.sleepandcognition.prosrand;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+public class ChangeFeedTest {
+    private static void put(ChangeFeed feed, String id) {
+        VariableSpec score = new VariableSpec();
+        score.setName("score");
+        score.setType("continuous");
+        VariableSet variables = new VariableSet(Arrays.asList(score));
+        feed.publish(new SubjectChange(SubjectChange.Kind.PUT, new MultiDimSubject(id, variables, new double[] {1.0})));
+    }
+
+    @Test
+    public void resumesAfterACursorOfTheSameFeed() throws Exception {
+        ChangeFeed feed = new ChangeFeed(10);
+        String start = feed.latest();
+        for (int i = 1; i <= 3; i++) {
+            put(feed, "s" + i);
+        }
+        List<ChangeEvent> events = feed.eventsAfter(start, 10, 0);
+        assertEquals(3, events.size());
+        List<ChangeEvent> rest = feed.eventsAfter(events.get(0).cursor(), 10, 0);
+        assertEquals(Arrays.asList("s2", "s3"), Arrays.asList(rest.get(0).id, rest.get(1).id));
+        assertTrue(feed.eventsAfter(feed.latest(), 10, 0).isEmpty());
+    }
+
+    @Test
+    public void resetsACursorOfAnotherFeedWhateverItsNumber() throws Exception {
+        ChangeFeed before = new ChangeFeed(10);
+        for (int i = 1; i <= 5; i++) {
+            put(before, "s" + i);
+        }
+        // as if the program were restarted, with fewer changes since than the subscriber had seen
+        ChangeFeed after = new ChangeFeed(10);
+        put(after, "t1");
+        put(after, "t2");
+        assertNotEquals(before.epoch, after.epoch);
+        for (String cursor : Arrays.asList(before.latest(), before.epoch + "-1", "2", "nonsense")) {
+            List<ChangeEvent> events = after.eventsAfter(cursor, 10, 0);
+            assertEquals(1, events.size());
+            assertEquals(ChangeEvent.RESET, events.get(0).kind);
+            assertEquals(after.latest(), events.get(0).cursor());
+        }
+    }
+
+    @Test
+    public void resetsACursorWhoseEventsAreNoLongerKept() throws Exception {
+        ChangeFeed feed = new ChangeFeed(4);
+        String start = feed.latest();
+        for (int i = 1; i <= 6; i++) {
+            put(feed, "s" + i);
+        }
+        assertEquals(ChangeEvent.RESET, feed.eventsAfter(start, 10, 0).get(0).kind);
+        assertEquals(ChangeEvent.RESET, feed.eventsAfter(feed.epoch + "-7", 10, 0).get(0).kind);
+        feed.close();
+        assertNull(feed.eventsAfter(start, 10, 0));
+    }
+}
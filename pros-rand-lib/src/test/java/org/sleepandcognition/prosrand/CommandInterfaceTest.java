@@ -0,0 +1,221 @@
+package org.sleepandcognition.prosrand;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.sleepandcognition.prosrand.TestProtocols.values;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class CommandInterfaceTest {
+    @TempDir
+    File directory;
+
+    /* Keeps every batch of changes it is given to save */
+    static class RecordingDatabase extends SubjectDatabase {
+        List<List<SubjectChange>> saves = new ArrayList<List<SubjectChange>>();
+
+        @Override
+        public long RecordChanges(
+                List<SubjectChange> changes, Map<String, MultiDimSubject> subjectsByID, VariableSet variables)
+                throws IOException {
+            saves.add(new ArrayList<SubjectChange>(changes));
+            return 0;
+        }
+    }
+
+    /* With two groups, A and B */
+    private static Randomizer start(boolean allowRevision, SubjectDatabase database) throws Exception {
+        ProtocolSpec spec = TestProtocols.spec("Balanced", allowRevision);
+        spec.setGroupNames(Arrays.asList("A", "B"));
+        return TestProtocols.start(spec, database);
+    }
+
+    private static List<SubjectChange.Kind> kinds(List<SubjectChange> changes) {
+        ArrayList<SubjectChange.Kind> kinds = new ArrayList<SubjectChange.Kind>();
+        for (SubjectChange change : changes) {
+            kinds.add(change.kind);
+        }
+        return kinds;
+    }
+
+    @Test
+    public void placesTheValidSubjectsOfAMixedBatch() throws Exception {
+        Randomizer randomizer = start(false, new SubjectDatabase());
+        CommandInterface commands = new CommandInterface(randomizer);
+        commands.parseCommand("PUT old score=1 sex=M");
+        // missing a variable, not a number, a badly formed pair, and an ID already taken
+        String[] replies = commands.parseCommand(
+                        "PLACEBATCH s1 score=4 sex=F;s2 score=5;s3 score=x sex=M;s4 score=6 sex=M;"
+                                + "s5 score=7=8 sex=F;old score=2 sex=F;s6 score=3 sex=F")
+                .split(";", -1);
+        assertEquals(7, replies.length);
+        for (int i : new int[] {1, 2, 4, 5}) {
+            assertEquals("?", replies[i], "entry " + i);
+        }
+        for (int i : new int[] {0, 3, 6}) {
+            assertTrue(replies[i].equals("A") || replies[i].equals("B"), "entry " + i + ": " + replies[i]);
+        }
+        assertEquals(replies[0], commands.parseCommand("GET s1"));
+        assertEquals(replies[3], commands.parseCommand("GET s4"));
+        assertEquals(replies[6], commands.parseCommand("GET s6"));
+        for (String id : Arrays.asList("s2", "s3", "s5")) {
+            assertEquals("NO", commands.parseCommand("EXISTS " + id), id);
+        }
+        assertEquals(1.0, randomizer.subjectsByID.get("old").getFeatures().get("score"));
+        randomizer.close();
+    }
+
+    @Test
+    public void splitsBatchesOnSemicolonsOnly() throws Exception {
+        Randomizer randomizer = start(false, new SubjectDatabase());
+        CommandInterface commands = new CommandInterface(randomizer);
+        // one subject, no semicolon
+        assertEquals("OK", commands.parseCommand("PUTBATCH s1 score=1 sex=F"));
+        // empty entries get a reply each, except after the last semicolon
+        assertEquals("?;OK;?;OK", commands.parseCommand("PUTBATCH ;s2 score=2 sex=M;;s3 score=3 sex=F;"));
+        // spaces around the semicolons, and the command in lower case
+        assertEquals("OK;OK", commands.parseCommand("putbatch  s4 score=4 sex=M ; s5 score=5 sex=F "));
+        // nothing at all
+        assertEquals("?", commands.parseCommand("PUTBATCH"));
+        assertEquals("?", commands.parseCommand("PLACEBATCH "));
+        for (String id : Arrays.asList("s1", "s2", "s3", "s4", "s5")) {
+            assertEquals("YES", commands.parseCommand("EXISTS " + id), id);
+        }
+        assertEquals(5, randomizer.subjectCount());
+        randomizer.close();
+    }
+
+    @Test
+    public void savesTheWholeBatchAtOnceAndAddsAllBeforeAssigningAny() throws Exception {
+        RecordingDatabase database = new RecordingDatabase();
+        Randomizer randomizer = start(false, database);
+        List<BatchResult> results = randomizer.putOrPlaceSubjects(
+                Arrays.asList("s1", "s2", "s3", "s4"),
+                Arrays.asList(values("1", "F"), values("oops", "M"), values("3", "M"), values("4", null)),
+                false);
+        assertEquals(Arrays.asList("s1", "s2", "s3", "s4"), Arrays.asList(
+                results.get(0).getId(), results.get(1).getId(), results.get(2).getId(), results.get(3).getId()));
+        assertNull(results.get(0).getError());
+        assertNotNull(results.get(1).getError());
+        assertNull(results.get(2).getError());
+        assertNotNull(results.get(3).getError());
+        assertNull(results.get(1).getGroupName());
+        assertEquals(randomizer.getGroup("s1"), results.get(0).getGroupName());
+        assertEquals(randomizer.getGroup("s3"), results.get(2).getGroupName());
+
+        // one save, holding only the valid subjects, each added before any is assigned
+        assertEquals(1, database.saves.size());
+        List<SubjectChange> saved = database.saves.get(0);
+        assertEquals(
+                Arrays.asList(
+                        SubjectChange.Kind.PUT,
+                        SubjectChange.Kind.PUT,
+                        SubjectChange.Kind.ASSIGN,
+                        SubjectChange.Kind.ASSIGN),
+                kinds(saved));
+        assertEquals("s1", saved.get(0).subject.getId());
+        assertEquals("s3", saved.get(1).subject.getId());
+        randomizer.close();
+    }
+
+    @Test
+    public void aLaterEntryForTheSameSubjectWins() throws Exception {
+        Randomizer randomizer = start(true, new SubjectDatabase());
+        List<BatchResult> results = randomizer.putOrPlaceSubjects(
+                Arrays.asList("s1", "s2", "s1"),
+                Arrays.asList(values("1", "F"), values("2", "M"), values("9", "M")),
+                false);
+        assertNotNull(results.get(0).getError());
+        assertNull(results.get(0).getGroupName());
+        assertNull(results.get(2).getError());
+        assertEquals(randomizer.getGroup("s1"), results.get(2).getGroupName());
+        assertEquals(9.0, randomizer.subjectsByID.get("s1").getFeatures().get("score"));
+        assertEquals(2, randomizer.subjectCount());
+        randomizer.close();
+    }
+
+    @Test
+    public void whatABatchAddsIsThereAfterARestart() throws Exception {
+        String logFile = new File(directory, "subjects.log").getPath();
+        String subjectFile = new File(directory, "subjects.txt").getPath();
+        Randomizer randomizer = start(false, new SubjectLogDatabase(logFile, subjectFile));
+        CommandInterface commands = new CommandInterface(randomizer);
+        String replies = commands.parseCommand("PLACEBATCH s1 score=1 sex=F;s2 score=bad sex=M;s3 score=3 sex=M");
+        randomizer.close();
+
+        Randomizer restarted = start(false, new SubjectLogDatabase(logFile, subjectFile));
+        CommandInterface again = new CommandInterface(restarted);
+        String[] placed = replies.split(";");
+        assertEquals("?", placed[1]);
+        assertEquals(placed[0], again.parseCommand("GET s1"));
+        assertEquals(placed[2], again.parseCommand("GET s3"));
+        assertFalse(restarted.checkID("s2"));
+        restarted.close();
+    }
+
+    /* The name=value pairs of a STATS reply */
+    private static Map<String, String> stats(CommandInterface commands) throws IOException {
+        HashMap<String, String> stats = new HashMap<String, String>();
+        for (String pair : commands.parseCommand("STATS").split(" ")) {
+            String[] nameAndValue = pair.split("=");
+            assertEquals(2, nameAndValue.length, pair);
+            stats.put(nameAndValue[0], nameAndValue[1]);
+        }
+        return stats;
+    }
+
+    @Test
+    public void reportsCountsAndTimesInStats() throws Exception {
+        Randomizer randomizer = start(false, new SubjectDatabase());
+        CommandInterface commands = new CommandInterface(randomizer);
+        Map<String, String> before = stats(commands);
+        assertEquals("0", before.get("subjects"));
+        assertEquals("0", before.get("put.count"));
+        assertEquals("1", before.get("command.STATS"));
+
+        commands.parseCommand("PUT s1 score=1 sex=F");
+        commands.parseCommand("PUT s2 score=2 sex=M");
+        commands.parseCommand("PUT s3 score=3 sex=M");
+        commands.parseCommand("PLACE s4 score=4 sex=F");
+        commands.parseCommand("COMMIT s4");
+        commands.parseCommand("NONSENSE");
+        Map<String, String> after = stats(commands);
+        assertEquals("4", after.get("subjects"));
+        // PLACE assigns subjects that arrived before s4 until s4 has a group; the rest wait
+        int assignments = Integer.parseInt(after.get("assignments"));
+        assertEquals(4 - assignments, Integer.parseInt(after.get("backlog")));
+        assertEquals(
+                assignments, Integer.parseInt(after.get("group.A")) + Integer.parseInt(after.get("group.B")));
+        assertTrue(Double.parseDouble(after.get("imbalance")) >= 0.0);
+        assertEquals("3", after.get("put.count"));
+        assertEquals("1", after.get("place.count"));
+        assertEquals("1", after.get("commit.count"));
+        assertEquals("3", after.get("command.PUT"));
+        assertEquals("1", after.get("command.PLACE"));
+        assertEquals("1", after.get("command.OTHER"));
+        assertEquals("2", after.get("command.STATS"));
+        // each change was saved, and every operation has a count and times
+        assertTrue(Long.parseLong(after.get("save.count")) >= 5);
+        for (RandomizerStats.Operation operation : RandomizerStats.Operation.values()) {
+            String name = operation.tag();
+            long count = Long.parseLong(after.get(name + ".count"));
+            double mean = Double.parseDouble(after.get(name + ".mean_us"));
+            long p99 = Long.parseLong(after.get(name + ".p99_us"));
+            long max = Long.parseLong(after.get(name + ".max_us"));
+            assertTrue(count > 0 || (mean == 0.0 && max == 0), name);
+            assertTrue(p99 <= max && mean <= max + 1, name);
+        }
+        randomizer.close();
+    }
+}
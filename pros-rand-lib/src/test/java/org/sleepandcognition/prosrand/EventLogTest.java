@@ -0,0 +1,130 @@
+package org.sleepandcognition.prosrand;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import org.junit.jupiter.api.Test;
+
+public class EventLogTest {
+    /* Keeps each event written, on the log's background thread */
+    static class CollectingSink implements EventLog.Sink {
+        List<EventLog.Event> events = Collections.synchronizedList(new ArrayList<EventLog.Event>());
+
+        public void write(EventLog.Event event) {
+            events.add(event);
+        }
+
+        List<String> names() {
+            ArrayList<String> names = new ArrayList<String>();
+            synchronized (events) {
+                for (EventLog.Event event : events) {
+                    names.add(event.getName());
+                }
+            }
+            return names;
+        }
+    }
+
+    @Test
+    public void writesOnlyTheEnabledLevels() {
+        EventLog log = new EventLog("p1");
+        CollectingSink sink = new CollectingSink();
+        log.setSink(sink);
+        log.setLevel(EventLog.Level.INFO);
+        assertTrue(log.isEnabled(EventLog.Level.WARN));
+        assertTrue(log.isEnabled(EventLog.Level.INFO));
+        assertFalse(log.isEnabled(EventLog.Level.DEBUG));
+        log.log(EventLog.Level.TRACE, "trace", "not written");
+        log.log(EventLog.Level.DEBUG, "debug", "not written");
+        log.log(EventLog.Level.INFO, "info", "Assigned %s to %s", "s1", "A");
+        log.log(EventLog.Level.WARN, "warn", "written");
+        log.setLevel(EventLog.Level.TRACE);
+        log.log(EventLog.Level.TRACE, "trace", "now written");
+        log.flush();
+        assertEquals(Arrays.asList("info", "warn", "trace"), sink.names());
+        EventLog.Event assigned = sink.events.get(0);
+        assertEquals(EventLog.Level.INFO, assigned.getLevel());
+        assertEquals("p1", assigned.getSource());
+        assertEquals("Assigned s1 to A", assigned.getMessage());
+    }
+
+    @Test
+    public void mapsVerbosityOntoLevels() {
+        assertEquals(EventLog.Level.WARN, EventLog.levelForVerbosity(-1));
+        assertEquals(EventLog.Level.INFO, EventLog.levelForVerbosity(0));
+        assertEquals(EventLog.Level.DEBUG, EventLog.levelForVerbosity(1));
+        assertEquals(EventLog.Level.TRACE, EventLog.levelForVerbosity(2));
+    }
+
+    @Test
+    public void countsWhatDoesNotFitAndWarnsThroughTheSameSink() throws Exception {
+        EventLog log = new EventLog("p1");
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch released = new CountDownLatch(1);
+        CollectingSink sink = new CollectingSink() {
+            @Override
+            public void write(EventLog.Event event) {
+                super.write(event);
+                if (event.getName().equals("first")) {
+                    // hold up the background thread until the ring buffer has filled up
+                    writing.countDown();
+                    try {
+                        released.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        };
+        log.setSink(sink);
+        log.log(EventLog.Level.INFO, "first", "first");
+        writing.await();
+        for (int i = 0; i < EventLog.RING_SIZE + 10; i++) {
+            log.log(EventLog.Level.INFO, "next", "event %d", i);
+        }
+        assertEquals(10, log.dropped.get());
+        released.countDown();
+        log.flush();
+
+        // the warning comes before the next event written, and is not printed anywhere else
+        List<String> names = sink.names();
+        assertEquals(EventLog.RING_SIZE + 2, names.size());
+        assertEquals("first", names.get(0));
+        EventLog.Event warning = sink.events.get(1);
+        assertEquals("eventsDropped", warning.getName());
+        assertEquals(EventLog.Level.WARN, warning.getLevel());
+        assertEquals("p1", warning.getSource());
+        assertEquals("(10 diagnostic events dropped)", warning.getMessage());
+        assertEquals("event 0", sink.events.get(2).getMessage());
+        assertEquals(0, log.dropped.get());
+    }
+
+    @Test
+    public void carriesOnAfterAnEventThatCannotBeFormatted() {
+        EventLog log = new EventLog(null);
+        ByteArrayOutputStream printed = new ByteArrayOutputStream();
+        log.setSink(new EventLog.PrintSink(new PrintStream(printed, true, StandardCharsets.UTF_8)));
+        log.log(EventLog.Level.WARN, "bad", "%d subjects", "not a number");
+        log.log(EventLog.Level.WARN, "good", "%d subjects", 3);
+        log.setSource("p2");
+        LinkedHashMap<String, Integer> sizes = new LinkedHashMap<String, Integer>();
+        sizes.put("A", 1);
+        sizes.put("B", 2);
+        log.log(EventLog.Level.WARN, "named", "Current group means:%s", EventLog.lines(sizes));
+        log.flush();
+        String n = System.lineSeparator();
+        assertEquals(
+                "3 subjects" + n + "[p2] Current group means:" + n + "A: 1" + n + "B: 2" + n,
+                printed.toString(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,96 @@
+package org.sleepandcognition.prosrand;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+public class GroupDistancesTest {
+    private static BalancingRandomizer start() throws Exception {
+        VariableSpec score = new VariableSpec();
+        score.setName("score");
+        score.setType("continuous");
+        VariableSpec age = new VariableSpec();
+        age.setName("age");
+        age.setType("continuous");
+        // each of its dimensions weighted 1/3
+        VariableSpec site = new VariableSpec();
+        site.setName("site");
+        site.setType("categorical");
+        site.setLevels(Arrays.asList("X", "Y", "Z"));
+        ProtocolSpec spec = new ProtocolSpec();
+        spec.setGroupNames(Arrays.asList("A", "B", "C"));
+        spec.setVariableSpec(Arrays.asList(score, age, site));
+        spec.setAlgorithm("Balanced");
+        BalancingRandomizer randomizer = new BalancingRandomizer(spec, new SubjectDatabase());
+        randomizer.setVerbosity(-1);
+        return randomizer;
+    }
+
+    private static Map<String, String> values(Random draws) {
+        Hashtable<String, String> values = new Hashtable<String, String>();
+        values.put("score", Double.toString(draws.nextGaussian() * 15 + 100));
+        values.put("age", Double.toString(draws.nextInt(50) + 20));
+        values.put("site", Arrays.asList("X", "Y", "Z").get(draws.nextInt(3)));
+        return values;
+    }
+
+    /* The distance between two groups' means, standardized, as long as BalancingRandomizer would score it */
+    private static double weightedLength(BalancingRandomizer randomizer, String group1, String group2) {
+        double[] mean1 = randomizer.groups.get(group1).meanFeatures();
+        double[] mean2 = randomizer.groups.get(group2).meanFeatures();
+        MeanVectorCalculator all = randomizer.allSubjectStatistics();
+        double[] standardized = new double[mean1.length];
+        for (int i = 0; i < standardized.length; ++i) {
+            double stddev = all.stddev(i);
+            standardized[i] = stddev > 0.0 ? (mean1[i] - mean2[i]) / stddev : 0.0;
+        }
+        return randomizer.nomalizedLength(standardized);
+    }
+
+    private static void assertStandardizedDistancesAreWeightedLengths(BalancingRandomizer randomizer) {
+        Imbalance imbalance = randomizer.imbalance();
+        double max = 0.0;
+        for (String group1 : randomizer.groupNamesInOrder) {
+            for (String group2 : randomizer.groupNamesInOrder) {
+                if (!group1.equals(group2)) {
+                    double expected = weightedLength(randomizer, group1, group2);
+                    double actual = imbalance.getStandardizedDistances().get(group1).get(group2);
+                    assertEquals(expected, actual, 1e-9, group1 + " to " + group2);
+                    max = Math.max(max, expected);
+                }
+            }
+        }
+        assertEquals(max, imbalance.getMaxStandardizedDistance(), 1e-9);
+    }
+
+    @Test
+    public void standardizedDistancesAreTheWeightedLengthsOfTheMeanDifferences() throws Exception {
+        BalancingRandomizer randomizer = start();
+        Random draws = new Random(11);
+        randomizer.putSubject("first", values(draws));
+        // nobody in any group yet
+        assertNull(randomizer.imbalance().getStandardizedDistances().get("A").get("B"));
+        for (int i = 0; i < 30; i++) {
+            randomizer.placeSubject("s" + i, values(draws));
+        }
+        assertStandardizedDistancesAreWeightedLengths(randomizer);
+
+        // new statistics of all subjects, though no group has changed
+        Imbalance before = randomizer.imbalance();
+        for (int i = 0; i < 5; i++) {
+            randomizer.putSubject("u" + i, values(draws));
+        }
+        assertEquals(before.getDistances(), randomizer.imbalance().getDistances());
+        assertStandardizedDistancesAreWeightedLengths(randomizer);
+
+        randomizer.removeSubject("s3");
+        randomizer.assignAllSubjects();
+        assertStandardizedDistancesAreWeightedLengths(randomizer);
+        randomizer.close();
+    }
+}
@@ -0,0 +1,85 @@
+package org.sleepandcognition.prosrand;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+public class MeanVectorCalculatorTest {
+    static final double TOLERANCE = 1e-9;
+
+    /* Worked out from scratch on the vectors given */
+    static MeanVectorCalculator fresh(ArrayList<double[]> vectors, int dimensions) {
+        MeanVectorCalculator calculator = new MeanVectorCalculator(dimensions);
+        for (double[] vector : vectors) {
+            calculator.encounter(vector);
+        }
+        return calculator;
+    }
+
+    /*
+     * Relative to the size of the values, so that a dimension far from 0 is held to the same standard.
+     * Forgetting leaves the variance off by rounding, about 1e-16 times the size of the values times their spread.
+     * Where the true spread is 0, the square root makes that up to about 1e-8 in the standard deviation, so the
+     * variance is held to the tighter tolerance.
+     */
+    static void assertSameStatistics(MeanVectorCalculator expected, MeanVectorCalculator actual, String when) {
+        assertEquals(expected.count(), actual.count(), when);
+        for (int i = 0; i < expected.dimensionCount(); i++) {
+            double scale = Math.max(1.0, Math.abs(expected.mean(i)));
+            assertEquals(expected.mean(i), actual.mean(i), TOLERANCE * scale, "mean " + i + " " + when);
+            double expectedVariance = expected.stddev(i) * expected.stddev(i);
+            double actualVariance = actual.stddev(i) * actual.stddev(i);
+            assertEquals(expectedVariance, actualVariance, TOLERANCE * scale, "variance " + i + " " + when);
+            assertEquals(expected.stddev(i), actual.stddev(i), 1e-6 * scale, "stddev " + i + " " + when);
+        }
+    }
+
+    @Test
+    public void forgettingGivesTheStatisticsOfWhatIsLeft() {
+        Random draws = new Random(3);
+        int dimensions = 4;
+        ArrayList<double[]> vectors = new ArrayList<double[]>();
+        MeanVectorCalculator calculator = new MeanVectorCalculator(dimensions);
+        for (int i = 0; i < 40; i++) {
+            // a small spread, a large offset, a 0/1 indicator, and a constant
+            double[] vector = {
+                draws.nextGaussian() * 5, 1e6 + draws.nextGaussian(), draws.nextBoolean() ? 1 : 0, 7
+            };
+            vectors.add(vector);
+            calculator.encounter(vector);
+        }
+        long version = calculator.version();
+        // down to 1 left, then none
+        while (vectors.size() > 0) {
+            double[] leaving = vectors.remove(draws.nextInt(vectors.size()));
+            calculator.forget(leaving);
+            assertSameStatistics(fresh(vectors, dimensions), calculator, vectors.size() + " left");
+            assertEquals(++version, calculator.version());
+        }
+        for (int i = 0; i < dimensions; i++) {
+            assertEquals(0.0, calculator.mean(i));
+            assertEquals(0.0, calculator.stddev(i));
+        }
+
+        // and carries on as if new
+        double[] again = {1, 2, 3, 4};
+        calculator.encounter(again);
+        vectors.add(again);
+        assertSameStatistics(fresh(vectors, dimensions), calculator, "after starting again");
+    }
+
+    @Test
+    public void oneLeftHasItsOwnValuesAsTheMeanAndNoSpread() {
+        MeanVectorCalculator calculator = new MeanVectorCalculator(2);
+        calculator.encounter(new double[] {0.1, -3});
+        calculator.encounter(new double[] {1e8, 2.5});
+        calculator.forget(new double[] {1e8, 2.5});
+        assertEquals(1, calculator.count());
+        assertEquals(0.1, calculator.mean(0), TOLERANCE * 1e8);
+        assertEquals(-3, calculator.mean(1), TOLERANCE);
+        assertEquals(0.0, calculator.stddev(0));
+        assertEquals(0.0, calculator.stddev(1));
+    }
+}
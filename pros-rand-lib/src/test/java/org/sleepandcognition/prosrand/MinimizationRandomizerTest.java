@@ -0,0 +1,194 @@
+package org.sleepandcognition.prosrand;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.sleepandcognition.prosrand.TestProtocols.values;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class MinimizationRandomizerTest {
+    @TempDir
+    File directory;
+
+    private ProtocolSpec spec() {
+        // the cut points out of order, as a user might give them
+        return TestProtocols.spec("Minimization", true, Arrays.asList(20.0, 10.0));
+    }
+
+    private MinimizationRandomizer start(String name) throws Exception {
+        SubjectLogDatabase database = new SubjectLogDatabase(
+                new File(directory, name + ".log").getPath(), new File(directory, name + ".txt").getPath());
+        return (MinimizationRandomizer) TestProtocols.start(spec(), database);
+    }
+
+    /* The counts kept up to date as subjects come and go are those of the subjects now in the groups */
+    private static void assertCountsMatchGroups(MinimizationRandomizer randomizer) {
+        assertArrayEquals(randomizer.countGroups(), randomizer.counts());
+    }
+
+    /* Worked out the slow way: the sum over factors of the range of the groups' counts at the subject's level */
+    private static int imbalanceIfJoined(MinimizationRandomizer randomizer, MultiDimSubject subject, String joined) {
+        int imbalance = 0;
+        for (int f = 0; f < randomizer.variables.getVariableSpecs().size(); ++f) {
+            int most = Integer.MIN_VALUE;
+            int least = Integer.MAX_VALUE;
+            for (String groupName : randomizer.groupNamesInOrder) {
+                int n = groupName.equals(joined) ? 1 : 0;
+                for (MultiDimSubject other : randomizer.groups.get(groupName).getSubjects()) {
+                    if (randomizer.level(other, f) == randomizer.level(subject, f)) {
+                        ++n;
+                    }
+                }
+                most = Math.max(most, n);
+                least = Math.min(least, n);
+            }
+            imbalance += most - least;
+        }
+        return imbalance;
+    }
+
+    @Test
+    public void keepsTheCountsUpToDateThroughEveryKindOfChange() throws Exception {
+        MinimizationRandomizer randomizer = start("subjects");
+        // so that from here on the counts are only updated, never rebuilt
+        randomizer.counts();
+        for (int i = 0; i < 12; i++) {
+            randomizer.putSubject("s" + i, values(i * 2.5, i % 3 == 0 ? "F" : "M"));
+        }
+        assertCountsMatchGroups(randomizer);
+        randomizer.assignAllSubjects();
+        assertCountsMatchGroups(randomizer);
+        randomizer.placeSubject("late", values(12, "F"));
+        assertCountsMatchGroups(randomizer);
+        // revised into another bin, and assigned again
+        randomizer.placeSubject("s1", values(25, "F"));
+        assertCountsMatchGroups(randomizer);
+        // revised, and waiting to be assigned
+        randomizer.putSubject("s2", values(1, "M"));
+        assertCountsMatchGroups(randomizer);
+        randomizer.removeSubject("s5");
+        assertCountsMatchGroups(randomizer);
+        randomizer.commitSubject("s4");
+        randomizer.getGroup("s2");
+        assertCountsMatchGroups(randomizer);
+        int[][] counts = randomizer.counts();
+        randomizer.close();
+
+        MinimizationRandomizer restarted = start("subjects");
+        assertArrayEquals(counts, restarted.counts());
+        assertCountsMatchGroups(restarted);
+        restarted.placeSubject("after", values(20, "M"));
+        restarted.removeSubject("s7");
+        assertCountsMatchGroups(restarted);
+        restarted.close();
+    }
+
+    @Test
+    public void binsAValueEqualToACutPointWithTheValuesAboveIt() throws Exception {
+        MinimizationRandomizer randomizer = start("subjects");
+        double[] scores = {9.5, 10, 15, 19.99, 20, 30};
+        int[] bins = {0, 1, 1, 1, 2, 2};
+        for (int i = 0; i < scores.length; i++) {
+            randomizer.putSubject("s" + i, values(scores[i], (i % 2 == 0) ? "F" : "M"));
+            MultiDimSubject subject = randomizer.subjectsByID.get("s" + i);
+            assertEquals(bins[i], randomizer.level(subject, 0), "score " + scores[i]);
+            assertEquals(i % 2, randomizer.level(subject, 1));
+        }
+        randomizer.close();
+    }
+
+    @Test
+    public void alwaysChoosesTheLeastImbalanceWhenTheProbabilityIsOne() throws Exception {
+        List<List<String>> runs = new ArrayList<List<String>>();
+        for (String name : Arrays.asList("first", "second")) {
+            MinimizationRandomizer randomizer = start(name);
+            randomizer.setAssignmentProbability(1.0);
+            randomizer.setRandomSeed(42);
+            Random draws = new Random(7);
+            ArrayList<String> assignments = new ArrayList<String>();
+            for (int i = 0; i < 60; i++) {
+                String id = "s" + i;
+                randomizer.putSubject(id, values(draws.nextDouble() * 30, draws.nextBoolean() ? "F" : "M"));
+                MultiDimSubject subject = randomizer.subjectsByID.get(id);
+                int least = Integer.MAX_VALUE;
+                for (String groupName : randomizer.groupNamesInOrder) {
+                    least = Math.min(least, imbalanceIfJoined(randomizer, subject, groupName));
+                }
+                ArrayList<String> best = new ArrayList<String>();
+                for (String groupName : randomizer.groupNamesInOrder) {
+                    if (imbalanceIfJoined(randomizer, subject, groupName) == least) {
+                        best.add(groupName);
+                    }
+                }
+                String groupName = randomizer.getGroup(id);
+                assertTrue(best.contains(groupName), id + " went to " + groupName + ", not one of " + best);
+                assignments.add(groupName);
+            }
+            assertCountsMatchGroups(randomizer);
+            randomizer.close();
+            runs.add(assignments);
+        }
+        // ties are broken the same way with the same seed
+        assertEquals(runs.get(0), runs.get(1));
+    }
+
+    @Test
+    public void rejectsABadSpecBeforeReadingTheDatabase() throws Exception {
+        AtomicBoolean read = new AtomicBoolean();
+        SubjectDatabase database = new SubjectDatabase() {
+            @Override
+            public ArrayList<MultiDimSubject> ReadSubjectsIntoGroups(
+                    VariableSet variables, Map<String, InterventionGroup> groups) {
+                read.set(true);
+                return new ArrayList<MultiDimSubject>();
+            }
+        };
+        ProtocolSpec noCuts = spec();
+        noCuts.variableSpec.get(0).setCutPoints(null);
+        assertThrows(InvalidDataException.class, () -> new MinimizationRandomizer(noCuts, database));
+        ProtocolSpec badProbability = spec();
+        badProbability.setAssignmentProbability(1.5);
+        assertThrows(InvalidDataException.class, () -> new MinimizationRandomizer(badProbability, database));
+        assertFalse(read.get());
+    }
+
+    private List<VariableSpec> specsFromXML(String variables) throws Exception {
+        File file = new File(directory, "variables.xml");
+        Files.write(file.toPath(), ("<Variables>" + variables + "</Variables>").getBytes(StandardCharsets.UTF_8));
+        return VariableSpec.getSpecsFromXML(file.getPath());
+    }
+
+    @Test
+    public void readsOnlyCutElementsAsCutPoints() throws Exception {
+        List<VariableSpec> specs = specsFromXML("<Variable name=\"age\" type=\"continuous\">"
+                + "<Cut value=\"65\"/><Note text=\"ignored\"/><Cut value=\"40.5\"/></Variable>"
+                + "<Variable name=\"weight\" type=\"continuous\"/>");
+        assertEquals(Arrays.asList(65.0, 40.5), specs.get(0).getCutPoints());
+        assertNull(specs.get(1).getCutPoints());
+    }
+
+    @Test
+    public void rejectsACutWithoutANumericValue() throws Exception {
+        InvalidDataException missing = assertThrows(
+                InvalidDataException.class,
+                () -> specsFromXML("<Variable name=\"age\" type=\"continuous\"><Cut/></Variable>"));
+        assertTrue(missing.getMessage().contains("age"));
+        assertThrows(
+                InvalidDataException.class,
+                () -> specsFromXML("<Variable name=\"age\" type=\"continuous\"><Cut value=\"old\"/></Variable>"));
+    }
+}
@@ -0,0 +1,158 @@
+package org.sleepandcognition.prosrand;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/* Clients talking over real sockets to the thread-per-connection server (RandomizerServer.ServerThread) */
+public class RandomizerServerTest {
+    Randomizer randomizer;
+    StillGoingFlag listening;
+    ServerSocket serverSocket;
+    Thread server;
+
+    @BeforeEach
+    public void startServer() throws Exception {
+        VariableSpec score = new VariableSpec();
+        score.setName("score");
+        score.setType("continuous");
+        ProtocolSpec spec = new ProtocolSpec();
+        spec.setGroupNames(Arrays.asList("A", "B"));
+        spec.setVariableSpec(Arrays.asList(score));
+        randomizer = new BalancingRandomizer(spec, new SubjectDatabase());
+        randomizer.setVerbosity(-1);
+        listening = new StillGoingFlag();
+        serverSocket = new ServerSocket(0);
+        server = new RandomizerServer()
+                .new ServerThread(serverSocket, new CommandInterface(randomizer), listening, true, -1);
+        server.start();
+    }
+
+    @AfterEach
+    public void stopServer() throws Exception {
+        // as QUIT on the command line does
+        listening.clearFlag();
+        serverSocket.close();
+        server.join(TimeUnit.SECONDS.toMillis(10));
+        assertFalse(server.isAlive());
+        randomizer.close();
+    }
+
+    private Socket connect() throws IOException {
+        Socket socket = new Socket("127.0.0.1", serverSocket.getLocalPort());
+        socket.setSoTimeout(10000);
+        return socket;
+    }
+
+    private static BufferedReader reader(Socket socket) throws IOException {
+        return new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+    }
+
+    private static void send(Socket socket, String text) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write(text.getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    @Test
+    public void answersEachPipelinedLineInOrderAndClosesAfterBye() throws Exception {
+        try (Socket socket = connect()) {
+            send(socket, "HELLO RAND!\nPUT s1 score=1\nEXISTS s1\nPLACE s2 score=2\nCOMMITTED s1\nBYE\n"
+                    + "PUT s3 score=3\n");
+            BufferedReader in = reader(socket);
+            assertEquals(String.format("HI CLIENT! v%d", Randomizer.RandomizerCommVersion()), in.readLine());
+            assertEquals("OK", in.readLine());
+            assertEquals("YES", in.readLine());
+            String group = in.readLine();
+            assertTrue(Arrays.asList("A", "B").contains(group), group);
+            assertEquals("NO", in.readLine());
+            assertEquals("BYE", in.readLine());
+            assertNull(in.readLine());
+        }
+        // what came after BYE was not carried out
+        assertFalse(randomizer.checkID("s3"));
+    }
+
+    @Test
+    public void keepsTheConnectionOpenBetweenRequests() throws Exception {
+        try (Socket socket = connect()) {
+            BufferedReader in = reader(socket);
+            send(socket, "PUT s1 score=1\n");
+            assertEquals("OK", in.readLine());
+            Thread.sleep(100);
+            send(socket, "GET s1\n");
+            String group = in.readLine();
+            send(socket, "COMMIT s1\n");
+            assertEquals("OK", in.readLine());
+            send(socket, "GET s1\n");
+            assertEquals(group, in.readLine());
+            // closing without BYE is fine too, and an old client's last line needs no newline
+            send(socket, "COMMITTED s1");
+            socket.shutdownOutput();
+            assertEquals("YES", in.readLine());
+            assertNull(in.readLine());
+        }
+    }
+
+    @Test
+    public void servesManyConnectionsAtOnce() throws Exception {
+        int connections = 8;
+        int subjects = 50;
+        ExecutorService clients = Executors.newFixedThreadPool(connections);
+        try {
+            ArrayList<Future<List<String>>> replies = new ArrayList<Future<List<String>>>();
+            for (int c = 0; c < connections; c++) {
+                int client = c;
+                replies.add(clients.submit(() -> {
+                    try (Socket socket = connect()) {
+                        StringBuilder all = new StringBuilder();
+                        for (int i = 0; i < subjects; i++) {
+                            all.append("PUT c").append(client).append('s').append(i).append(" score=").append(i);
+                            all.append("\nEXISTS c").append(client).append('s').append(i).append('\n');
+                        }
+                        all.append("BYE\n");
+                        send(socket, all.toString());
+                        BufferedReader in = reader(socket);
+                        ArrayList<String> lines = new ArrayList<String>();
+                        String line;
+                        while ((line = in.readLine()) != null) {
+                            lines.add(line);
+                        }
+                        return lines;
+                    }
+                }));
+            }
+            for (int c = 0; c < connections; c++) {
+                List<String> lines = replies.get(c).get(30, TimeUnit.SECONDS);
+                assertEquals(2 * subjects + 1, lines.size(), "connection " + c);
+                for (int i = 0; i < subjects; i++) {
+                    assertEquals("OK", lines.get(2 * i));
+                    assertEquals("YES", lines.get(2 * i + 1));
+                }
+                assertEquals("BYE", lines.get(2 * subjects));
+            }
+            assertEquals(connections * subjects, randomizer.subjectCount());
+        } finally {
+            clients.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package org.sleepandcognition.prosrand;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+public class RandomizerStatsTest {
+    @Test
+    public void countsAddsUpAndKeepsTheLongestTime() {
+        RandomizerStats.Timer timer = new RandomizerStats.Timer();
+        assertEquals(0, timer.count());
+        assertEquals(0.0, timer.meanNanos());
+        assertEquals(0, timer.percentileNanos(0.99));
+        timer.record(100);
+        timer.record(300);
+        timer.record(-5); // as if the clock went backwards; counted as no time
+        assertEquals(3, timer.count());
+        assertEquals(400, timer.totalNanos());
+        assertEquals(300, timer.maxNanos());
+        assertEquals(400.0 / 3, timer.meanNanos(), 1e-9);
+    }
+
+    @Test
+    public void estimatesPercentilesToWithinAFactorOfTwo() {
+        RandomizerStats.Timer timer = new RandomizerStats.Timer();
+        for (int i = 0; i < 990; i++) {
+            timer.record(1000);
+        }
+        for (int i = 0; i < 10; i++) {
+            timer.record(1_000_000);
+        }
+        long median = timer.percentileNanos(0.5);
+        assertTrue(median >= 1000 && median < 2000, Long.toString(median));
+        long p99 = timer.percentileNanos(0.99);
+        assertTrue(p99 >= 1000 && p99 < 2000, Long.toString(p99));
+        // never more than the longest time actually taken
+        assertEquals(1_000_000, timer.percentileNanos(1.0));
+    }
+
+    @Test
+    public void countsFromManyThreadsWithoutLosingAny() throws Exception {
+        RandomizerStats stats = new RandomizerStats();
+        ExecutorService threads = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> done = new ArrayList<Future<?>>();
+            for (int t = 0; t < 8; t++) {
+                done.add(threads.submit(() -> {
+                    for (int i = 0; i < 10000; i++) {
+                        stats.timer(RandomizerStats.Operation.PUT).record(i);
+                        stats.assignments.increment();
+                        stats.countCommand("PUT");
+                    }
+                }));
+            }
+            for (Future<?> future : done) {
+                future.get();
+            }
+        } finally {
+            threads.shutdown();
+        }
+        assertEquals(80000, stats.timer(RandomizerStats.Operation.PUT).count());
+        assertEquals(80000, stats.assignments());
+        assertEquals(80000L, stats.commandCounts().get("PUT"));
+        assertEquals(0, stats.timer(RandomizerStats.Operation.GET).count());
+    }
+
+    @Test
+    public void listsCommandsInAlphabeticalOrder() {
+        RandomizerStats stats = new RandomizerStats();
+        for (String command : Arrays.asList("PUT", "GET", "OTHER", "PUT", "COMMIT")) {
+            stats.countCommand(command);
+        }
+        assertEquals(
+                Arrays.asList("COMMIT", "GET", "OTHER", "PUT"), new ArrayList<String>(stats.commandCounts().keySet()));
+        assertEquals(2L, stats.commandCounts().get("PUT"));
+    }
+
+    @Test
+    public void timesTheWaitBehindOtherChangesToTheProtocol() throws Exception {
+        VariableSpec score = new VariableSpec();
+        score.setName("score");
+        score.setType("continuous");
+        ProtocolSpec spec = new ProtocolSpec();
+        spec.setGroupNames(Arrays.asList("A", "B"));
+        spec.setVariableSpec(Arrays.asList(score));
+        Randomizer randomizer = new BalancingRandomizer(spec, new SubjectDatabase());
+        randomizer.setVerbosity(-1);
+        Hashtable<String, String> values = new Hashtable<String, String>();
+        values.put("score", "1.0");
+        ExecutorService thread = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> put;
+            // as if another change were being made
+            synchronized (randomizer) {
+                put = thread.submit(() -> {
+                    randomizer.putSubject("s1", values);
+                    return null;
+                });
+                Thread.sleep(200);
+            }
+            put.get(10, TimeUnit.SECONDS);
+        } finally {
+            thread.shutdown();
+        }
+        RandomizerStats.Timer queue = randomizer.stats().timer(RandomizerStats.Operation.QUEUE);
+        assertEquals(1, queue.count());
+        assertTrue(queue.maxNanos() >= TimeUnit.MILLISECONDS.toNanos(150), Long.toString(queue.maxNanos()));
+        randomizer.close();
+    }
+}
@@ -0,0 +1,305 @@
+package org.sleepandcognition.prosrand;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/*
+ * Clients talking to a SelectorServer over real sockets. Besides the protocol's own commands, the server here
+ * understands a few for testing (see TestCommands), which take their time, or wait to be let go, so that the
+ * workers finish requests out of order, or fall behind a client.
+ */
+public class SelectorServerTest {
+    static final int WORKERS = 4;
+
+    Randomizer randomizer;
+    TestCommands commander;
+    SelectorServer server;
+
+    /*
+     * ECHO WORDS... replies with the words, after a random pause of up to a millisecond or so; SAY WORDS... replies
+     * with the words at once; BIG NUM replies with NUM x's; WAIT waits until let go (see released), then replies WAITED
+     */
+    static class TestCommands extends CommandInterface {
+        CountDownLatch released = new CountDownLatch(1);
+        AtomicInteger echoed = new AtomicInteger();
+
+        TestCommands(Randomizer randomizer) {
+            super(randomizer);
+        }
+
+        @Override
+        public String parseCommand(String inputLine) throws IOException {
+            if (inputLine.startsWith("ECHO ")) {
+                echoed.incrementAndGet();
+                if (ThreadLocalRandom.current().nextBoolean()) {
+                    try {
+                        TimeUnit.MICROSECONDS.sleep(ThreadLocalRandom.current().nextInt(1500));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return inputLine.substring(5);
+            } else if (inputLine.startsWith("SAY ")) {
+                echoed.incrementAndGet();
+                return inputLine.substring(4);
+            } else if (inputLine.startsWith("BIG ")) {
+                return "x".repeat(Integer.parseInt(inputLine.substring(4)));
+            } else if (inputLine.equals("WAIT")) {
+                try {
+                    released.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return "WAITED";
+            }
+            return super.parseCommand(inputLine);
+        }
+    }
+
+    @BeforeEach
+    public void startServer() throws Exception {
+        VariableSpec score = new VariableSpec();
+        score.setName("score");
+        score.setType("continuous");
+        ProtocolSpec spec = new ProtocolSpec();
+        spec.setGroupNames(Arrays.asList("A", "B"));
+        spec.setVariableSpec(Arrays.asList(score));
+        randomizer = new BalancingRandomizer(spec, new SubjectDatabase());
+        randomizer.setVerbosity(-1);
+        randomizer.setChangeFeed(new ChangeFeed(ChangeFeed.DEFAULT_CAPACITY));
+        commander = new TestCommands(randomizer);
+        server = new SelectorServer(0, commander, new StillGoingFlag(), true, -1, WORKERS);
+        server.start();
+    }
+
+    @AfterEach
+    public void stopServer() throws Exception {
+        commander.released.countDown();
+        server.close();
+        server.join(TimeUnit.SECONDS.toMillis(10));
+        assertFalse(server.isAlive());
+        commander.close();
+    }
+
+    private Socket connect() throws IOException {
+        Socket socket = new Socket();
+        socket.connect(new InetSocketAddress("127.0.0.1", server.serverChannel.socket().getLocalPort()));
+        socket.setSoTimeout(10000);
+        return socket;
+    }
+
+    private static BufferedReader reader(Socket socket) throws IOException {
+        return new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+    }
+
+    private static void send(Socket socket, String text) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write(text.getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    @Test
+    public void repliesInOrderOnEachOfManyPipelinedConnections() throws Exception {
+        int connections = 16;
+        int requests = 300;
+        ExecutorService clients = Executors.newFixedThreadPool(connections);
+        try {
+            ArrayList<Future<List<String>>> replies = new ArrayList<Future<List<String>>>();
+            for (int c = 0; c < connections; c++) {
+                int client = c;
+                replies.add(clients.submit(() -> {
+                    try (Socket socket = connect()) {
+                        StringBuilder all = new StringBuilder();
+                        for (int i = 0; i < requests; i++) {
+                            all.append("ECHO ").append(client).append(' ').append(i).append('\n');
+                        }
+                        all.append("BYE\n");
+                        // everything before reading anything
+                        send(socket, all.toString());
+                        BufferedReader in = reader(socket);
+                        ArrayList<String> lines = new ArrayList<String>();
+                        String line;
+                        while ((line = in.readLine()) != null) {
+                            lines.add(line);
+                        }
+                        return lines;
+                    }
+                }));
+            }
+            for (int c = 0; c < connections; c++) {
+                List<String> lines = replies.get(c).get(30, TimeUnit.SECONDS);
+                assertEquals(requests + 1, lines.size(), "connection " + c);
+                for (int i = 0; i < requests; i++) {
+                    assertEquals(c + " " + i, lines.get(i), "connection " + c);
+                }
+                assertEquals("BYE", lines.get(requests));
+            }
+        } finally {
+            clients.shutdownNow();
+        }
+    }
+
+    @Test
+    public void putsLinesTogetherFromPiecesAndSendsLongRepliesWhole() throws Exception {
+        try (Socket socket = connect()) {
+            BufferedReader in = reader(socket);
+            // a byte at a time
+            for (byte b : "ECHO one\n".getBytes(StandardCharsets.UTF_8)) {
+                send(socket, new String(new byte[] {b}, StandardCharsets.UTF_8));
+                Thread.sleep(2);
+            }
+            assertEquals("one", in.readLine());
+            // two and a half lines at once, then the rest
+            send(socket, "ECHO two\nECHO three\nECH");
+            Thread.sleep(50);
+            send(socket, "O four\n");
+            assertEquals("two", in.readLine());
+            assertEquals("three", in.readLine());
+            assertEquals("four", in.readLine());
+            // a line much longer than the server reads at once
+            String longWord = "y".repeat(50000);
+            send(socket, "ECHO " + longWord + "\n");
+            assertEquals(longWord, in.readLine());
+            // a reply far bigger than the socket takes at once, read slowly, then one after it
+            send(socket, "BIG 4000000\nECHO after\n");
+            Thread.sleep(200);
+            String big = in.readLine();
+            assertEquals(4000000, big.length());
+            assertTrue(big.chars().allMatch(c -> c == 'x'));
+            assertEquals("after", in.readLine());
+            // the last line needs no newline, if the client closes its end
+            send(socket, "ECHO last");
+            socket.shutdownOutput();
+            assertEquals("last", in.readLine());
+            assertNull(in.readLine());
+        }
+    }
+
+    @Test
+    public void closesAfterByeWithoutCarryingOutWhatFollows() throws Exception {
+        try (Socket socket = connect()) {
+            send(socket, "HELLO RAND!\nECHO before\nBYE\nECHO after\n");
+            BufferedReader in = reader(socket);
+            assertEquals(String.format("HI CLIENT! v%d", Randomizer.RandomizerCommVersion()), in.readLine());
+            assertEquals("before", in.readLine());
+            assertEquals("BYE", in.readLine());
+            assertNull(in.readLine());
+        }
+        assertEquals(1, commander.echoed.get());
+    }
+
+    @Test
+    public void stopsReadingFromAClientThatIsFarAhead() throws Exception {
+        int requests = 20000;
+        String padding = "z".repeat(1000);
+        try (Socket socket = connect()) {
+            // the first request holds up the rest, and the client sends far more than the socket buffers hold
+            Thread writer = new Thread(() -> {
+                try {
+                    send(socket, "WAIT\n");
+                    for (int i = 0; i < requests; i++) {
+                        send(socket, "SAY " + i + " " + padding + "\n");
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+            writer.start();
+            writer.join(3000);
+            assertTrue(writer.isAlive(), "the server took in every request while the first was still waiting");
+            assertEquals(0, commander.echoed.get());
+
+            commander.released.countDown();
+            BufferedReader in = reader(socket);
+            assertEquals("WAITED", in.readLine());
+            for (int i = 0; i < requests; i++) {
+                assertEquals(i + " " + padding, in.readLine());
+            }
+            writer.join(10000);
+            assertFalse(writer.isAlive());
+        }
+    }
+
+    @Test
+    public void carriesOnWhenAClientClosesWithRequestsInFlight() throws Exception {
+        Socket gone = connect();
+        send(gone, "WAIT\nECHO 1\nECHO 2\nECHO 3\n");
+        Thread.sleep(100);
+        gone.close();
+        commander.released.countDown();
+        // the requests already taken are still carried out, and their replies dropped
+        for (int i = 0; i < 100 && commander.echoed.get() < 3; i++) {
+            Thread.sleep(50);
+        }
+        assertEquals(3, commander.echoed.get());
+        try (Socket socket = connect()) {
+            send(socket, "ECHO still here\nBYE\n");
+            BufferedReader in = reader(socket);
+            assertEquals("still here", in.readLine());
+            assertEquals("BYE", in.readLine());
+            assertNull(in.readLine());
+        }
+    }
+
+    @Test
+    public void sendsSubscribersTheChangesOthersMake() throws Exception {
+        try (Socket subscriber = connect();
+                Socket other = connect()) {
+            BufferedReader events = reader(subscriber);
+            send(subscriber, "SUBSCRIBE\n");
+            String start = randomizer.changeFeed().latest();
+            assertEquals("OK " + start, events.readLine());
+
+            BufferedReader replies = reader(other);
+            send(other, "PUT s1 score=1\nPUT s2 score=2\nASSIGN\n");
+            assertEquals("OK", replies.readLine());
+            assertEquals("OK", replies.readLine());
+            assertEquals("OK", replies.readLine());
+            String epoch = randomizer.changeFeed().epoch;
+            assertEquals("EVENT " + epoch + "-1 PUT s1", events.readLine());
+            assertEquals("EVENT " + epoch + "-2 PUT s2", events.readLine());
+            // both assigned, in some order
+            assertTrue(events.readLine().startsWith("EVENT " + epoch + "-3 ASSIGN "));
+            assertTrue(events.readLine().startsWith("EVENT " + epoch + "-4 ASSIGN "));
+
+            // a subscriber takes no more requests, but another can resume where it left off
+            send(other, "BYE\n");
+            assertEquals("BYE", replies.readLine());
+            try (Socket resumed = connect()) {
+                send(resumed, "SUBSCRIBE " + epoch + "-2\n");
+                BufferedReader again = reader(resumed);
+                assertEquals("OK " + epoch + "-2", again.readLine());
+                assertTrue(again.readLine().startsWith("EVENT " + epoch + "-3 ASSIGN "));
+                assertTrue(again.readLine().startsWith("EVENT " + epoch + "-4 ASSIGN "));
+            }
+        }
+        // subscribers that went away do not stop others being served
+        try (Socket socket = connect()) {
+            send(socket, "GET s2\n");
+            assertTrue(Arrays.asList("A", "B").contains(reader(socket).readLine()));
+        }
+    }
+}
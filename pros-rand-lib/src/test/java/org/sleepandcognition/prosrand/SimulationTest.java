@@ -0,0 +1,72 @@
+package org.sleepandcognition.prosrand;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+/*
+ * The expected statistics are what scipy.stats.f_oneway and scipy.stats.chi2_contingency give for the same data
+ * (worked out exactly, with fractions, as scipy is not needed to build this project).
+ */
+public class SimulationTest {
+    static final double TOLERANCE = 1e-12;
+
+    @Test
+    public void analysisOfVarianceGivesTheOneWayF() {
+        // three groups of six: means 5, 9 and 10; F = 315/34
+        double[] values = {6, 8, 4, 5, 3, 4, 8, 12, 9, 11, 6, 8, 13, 9, 11, 8, 7, 12};
+        int[] groupOf = {0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 1, 1, 2, 2, 2, 2, 2, 2};
+        String[] fields = Simulation.analysisOfVariance(values, groupOf, 3).split(",", -1);
+        assertEquals(5, fields.length);
+        assertEquals(315.0 / 34, Double.parseDouble(fields[0]), TOLERANCE);
+        assertEquals("2", fields[1]);
+        assertEquals("15", fields[2]);
+        assertEquals(5.0, Double.parseDouble(fields[3]), TOLERANCE);
+        assertEquals("", fields[4]);
+    }
+
+    @Test
+    public void analysisOfVarianceLeavesOutEmptyGroups() {
+        double[] values = {6, 8, 4, 5, 3, 4, 8, 12, 9, 11, 6, 8, 13, 9, 11, 8, 7, 12};
+        int[] groupOf = {0, 0, 0, 0, 0, 0, 2, 2, 2, 2, 2, 2, 3, 3, 3, 3, 3, 3};
+        String[] fields = Simulation.analysisOfVariance(values, groupOf, 4).split(",", -1);
+        assertEquals(315.0 / 34, Double.parseDouble(fields[0]), TOLERANCE);
+        assertEquals("2", fields[1]);
+        assertEquals("15", fields[2]);
+    }
+
+    @Test
+    public void chiSquareOfALargerTableIsUncorrected() {
+        // levels by groups
+        String[] fields = Simulation.chiSquare(new int[][] {{10, 10, 20}, {20, 20, 20}}).split(",", -1);
+        assertEquals(5, fields.length);
+        assertEquals(25.0 / 9, Double.parseDouble(fields[0]), TOLERANCE);
+        assertEquals("2", fields[1]);
+        assertEquals("", fields[2]);
+        assertEquals("", fields[3]);
+        assertEquals("10/10/20;20/20/20", fields[4]);
+    }
+
+    @Test
+    public void chiSquareOfATwoByTwoTableHasYatesCorrection() {
+        String[] fields = Simulation.chiSquare(new int[][] {{10, 20}, {30, 40}}).split(",", -1);
+        assertEquals(25.0 / 56, Double.parseDouble(fields[0]), TOLERANCE);
+        assertEquals("1", fields[1]);
+        fields = Simulation.chiSquare(new int[][] {{12, 5}, {3, 14}}).split(",", -1);
+        assertEquals(7.635087719298245, Double.parseDouble(fields[0]), TOLERANCE);
+    }
+
+    @Test
+    public void chiSquareLeavesOutLevelsNoSubjectHas() {
+        String[] fields = Simulation.chiSquare(new int[][] {{10, 10, 20}, {0, 0, 0}, {20, 20, 20}}).split(",", -1);
+        assertEquals(25.0 / 9, Double.parseDouble(fields[0]), TOLERANCE);
+        assertEquals("2", fields[1]);
+        // but still shows them
+        assertEquals("10/10/20;0/0/0;20/20/20", fields[4]);
+
+        // one level left: nothing to compare
+        fields = Simulation.chiSquare(new int[][] {{0, 0}, {4, 6}}).split(",", -1);
+        assertEquals(0.0, Double.parseDouble(fields[0]));
+        assertEquals("0", fields[1]);
+    }
+}
@@ -0,0 +1,130 @@
+package org.sleepandcognition.prosrand;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.sleepandcognition.prosrand.TestProtocols.members;
+import static org.sleepandcognition.prosrand.TestProtocols.values;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Hashtable;
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/*
+ * Against an in-memory H2 database, in the table SubjectJdbcDatabase creates: a row per subject, keyed by
+ * (protocol, subject_id), with its arrival, group_name and assigned_seq (the order of assignment), committed,
+ * and its features, as variable=value text.
+ */
+public class SubjectJdbcDatabaseTest {
+    JdbcConnectionPool pool;
+
+    @BeforeEach
+    public void openDatabase() {
+        pool = JdbcConnectionPool.create("jdbc:h2:mem:subjects;DB_CLOSE_DELAY=-1", "sa", "");
+    }
+
+    @AfterEach
+    public void closeDatabase() throws Exception {
+        pool.getConnection().createStatement().execute("DROP ALL OBJECTS");
+        pool.dispose();
+    }
+
+    private Randomizer start(String protocolName, boolean allowRevision) throws Exception {
+        return TestProtocols.start(
+                TestProtocols.spec("Balanced", allowRevision), new SubjectJdbcDatabase(pool, protocolName));
+    }
+
+    @Test
+    public void restoresSubjectsGroupsAndCommits() throws Exception {
+        Randomizer randomizer = start("p1", false);
+        for (int i = 0; i < 20; i++) {
+            randomizer.putSubject("s" + i, values(i * 1.5, i % 3 == 0 ? "F" : "M"));
+        }
+        randomizer.assignAllSubjects();
+        randomizer.placeSubject("late", values(7, "F"));
+        randomizer.putSubject("waiting", values(3, "M"));
+        randomizer.commitSubject("s4");
+        randomizer.removeSubject("s5");
+        String lateGroup = randomizer.getGroup("late");
+        randomizer.close();
+
+        Randomizer restarted = start("p1", false);
+        assertFalse(restarted.checkID("s5"));
+        assertTrue(restarted.isCommitted("s4"));
+        assertFalse(restarted.isCommitted("s6"));
+        assertNull(restarted.subjectsByID.get("waiting").getGroupName());
+        assertEquals(lateGroup, restarted.getGroup("late"));
+        for (String groupName : Arrays.asList("A", "B", "C")) {
+            assertEquals(members(randomizer, groupName), members(restarted, groupName));
+        }
+        assertEquals(
+                randomizer.subjectsByID.get("s7").getFeatures(),
+                restarted.subjectsByID.get("s7").getFeatures());
+        restarted.close();
+    }
+
+    @Test
+    public void keepsTheFeaturesOfManyVariables() throws Exception {
+        ArrayList<VariableSpec> variables = new ArrayList<VariableSpec>();
+        Hashtable<String, String> values = new Hashtable<String, String>();
+        for (int i = 0; i < 300; i++) {
+            VariableSpec variable = new VariableSpec();
+            variable.setName(String.format("measurement_number_%03d", i));
+            variable.setType("continuous");
+            variables.add(variable);
+            values.put(variable.getName(), Double.toString(i * 1.25));
+        }
+        ProtocolSpec spec = TestProtocols.spec("Balanced", false);
+        spec.setVariableSpec(variables);
+        Randomizer randomizer = TestProtocols.start(spec, new SubjectJdbcDatabase(pool, "wide"));
+        String group = randomizer.putOrPlaceSubject("s1", values, false);
+        randomizer.close();
+
+        Randomizer restarted = new BalancingRandomizer(spec, new SubjectJdbcDatabase(pool, "wide"));
+        assertEquals(group, restarted.subjectsByID.get("s1").getGroupName());
+        assertEquals(
+                randomizer.subjectsByID.get("s1").getFeatures(),
+                restarted.subjectsByID.get("s1").getFeatures());
+        restarted.close();
+    }
+
+    @Test
+    public void readsBackContinuousValuesExactly() throws Exception {
+        Randomizer randomizer = start("exact", false);
+        randomizer.putSubject("third", values(1.0 / 3, "F"));
+        randomizer.putSubject("tiny", values(1.0e-9, "M"));
+        randomizer.close();
+
+        Randomizer restarted = start("exact", false);
+        assertEquals(1.0 / 3, restarted.subjectsByID.get("third").getFeatures().get("score"));
+        assertEquals(1.0e-9, restarted.subjectsByID.get("tiny").getFeatures().get("score"));
+        restarted.close();
+    }
+
+    @Test
+    public void keepsProtocolsApartAndAppliesRevisionsInOrder() throws Exception {
+        Randomizer first = start("first", true);
+        Randomizer second = start("second", false);
+        first.placeSubject("s1", values(1, "F"));
+        second.putSubject("s1", values(2, "M"));
+        // a revision removes and re-adds the subject in one batch of changes
+        first.placeSubject("s1", values(5, "M"));
+        String revisedGroup = first.getGroup("s1");
+        first.close();
+        second.close();
+
+        Randomizer first2 = start("first", true);
+        Randomizer second2 = start("second", false);
+        assertEquals(5.0, first2.subjectsByID.get("s1").getFeatures().get("score"));
+        assertEquals(revisedGroup, first2.subjectsByID.get("s1").getGroupName());
+        assertEquals(2.0, second2.subjectsByID.get("s1").getFeatures().get("score"));
+        assertNull(second2.subjectsByID.get("s1").getGroupName());
+        first2.close();
+        second2.close();
+    }
+}
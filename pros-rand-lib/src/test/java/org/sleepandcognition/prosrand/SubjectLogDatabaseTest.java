@@ -0,0 +1,239 @@
+package org.sleepandcognition.prosrand;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.sleepandcognition.prosrand.TestProtocols.members;
+import static org.sleepandcognition.prosrand.TestProtocols.values;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class SubjectLogDatabaseTest {
+    @TempDir
+    File directory;
+
+    SubjectLogDatabase database;
+
+    private File logFile() {
+        return new File(directory, "subjects.log");
+    }
+
+    /* checkpointInterval: 0 for never */
+    private Randomizer start(long checkpointInterval) throws Exception {
+        database = new SubjectLogDatabase(logFile().getPath(), new File(directory, "subjects.txt").getPath());
+        database.setCheckpointInterval(checkpointInterval);
+        return TestProtocols.start(TestProtocols.spec("Balanced", true), database);
+    }
+
+    /* Some of every kind of change; s5 is removed, s4 committed, s1 revised, and "waiting" has no group */
+    private void makeChanges(Randomizer randomizer) throws Exception {
+        for (int i = 0; i < 12; i++) {
+            randomizer.putSubject("s" + i, values(i * 1.5, i % 3 == 0 ? "F" : "M"));
+        }
+        randomizer.assignAllSubjects();
+        randomizer.placeSubject("late", values(7, "F"));
+        randomizer.placeSubject("s1", values(20, "F"));
+        randomizer.putSubject("waiting", values(3, "M"));
+        randomizer.commitSubject("s4");
+        randomizer.removeSubject("s5");
+    }
+
+    private void assertSameSubjects(Randomizer expected, Randomizer actual) {
+        assertEquals(expected.subjectsByID.keySet(), actual.subjectsByID.keySet());
+        for (MultiDimSubject subject : expected.subjectsByID.values()) {
+            MultiDimSubject restored = actual.subjectsByID.get(subject.getId());
+            assertEquals(subject.getFeatures(), restored.getFeatures());
+            assertEquals(subject.getGroupName(), restored.getGroupName());
+            assertEquals(subject.isCommitted, restored.isCommitted);
+        }
+        for (String groupName : Arrays.asList("A", "B", "C")) {
+            assertEquals(members(expected, groupName), members(actual, groupName));
+        }
+    }
+
+    @Test
+    public void replaysTheLogIntoTheSameSubjectsAndGroups() throws Exception {
+        Randomizer randomizer = start(0);
+        makeChanges(randomizer);
+        randomizer.close();
+        assertFalse(database.snapshotFile.exists());
+
+        Randomizer restarted = start(0);
+        assertSameSubjects(randomizer, restarted);
+        assertFalse(restarted.checkID("s5"));
+        assertTrue(restarted.isCommitted("s4"));
+        assertEquals(20.0, restarted.subjectsByID.get("s1").getFeatures().get("score"));
+        assertNull(restarted.subjectsByID.get("waiting").getGroupName());
+        restarted.close();
+    }
+
+    @Test
+    public void truncatesATornLastLineAndCarriesOn() throws Exception {
+        Randomizer randomizer = start(0);
+        makeChanges(randomizer);
+        randomizer.close();
+        long length = logFile().length();
+        // as if the program died part way through writing a change
+        try (FileOutputStream out = new FileOutputStream(logFile(), true)) {
+            out.write((database.lastSequenceNumber + 1 + "\tPUT\ttorn\tscore=1.0").getBytes(StandardCharsets.UTF_8));
+        }
+
+        Randomizer restarted = start(0);
+        assertSameSubjects(randomizer, restarted);
+        assertFalse(restarted.checkID("torn"));
+        assertEquals(length, logFile().length());
+        restarted.putSubject("after", values(9, "M"));
+        restarted.close();
+
+        Randomizer again = start(0);
+        assertTrue(again.checkID("after"));
+        assertFalse(again.checkID("torn"));
+        assertEquals(restarted.subjectsByID.size(), again.subjectsByID.size());
+        again.close();
+    }
+
+    @Test
+    public void checkpointWritesASnapshotAndEmptiesTheLog() throws Exception {
+        Randomizer randomizer = start(5);
+        makeChanges(randomizer);
+        database.awaitCheckpoint();
+        assertTrue(database.snapshotFile.exists());
+        assertTrue(database.recordsSinceCheckpoint < 5);
+        randomizer.close();
+        // only the changes since the last checkpoint are left in the log
+        String log = new String(Files.readAllBytes(logFile().toPath()), StandardCharsets.UTF_8);
+        assertTrue(log.split("\n").length < 5);
+
+        Randomizer restarted = start(5);
+        assertSameSubjects(randomizer, restarted);
+        restarted.close();
+    }
+
+    @Test
+    public void changesGoOnWhileASnapshotIsWrittenAndStayInTheLog() throws Exception {
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch finish = new CountDownLatch(1);
+        database = new SubjectLogDatabase(logFile().getPath(), new File(directory, "subjects.txt").getPath()) {
+            @Override
+            protected void writeSnapshot(SnapshotContents contents) throws IOException {
+                writing.countDown();
+                try {
+                    finish.await();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+                super.writeSnapshot(contents);
+            }
+        };
+        database.setCheckpointInterval(12);
+        Randomizer randomizer = TestProtocols.start(TestProtocols.spec("Balanced", true), database);
+        try {
+            for (int i = 0; i < 12; i++) {
+                randomizer.putSubject("s" + i, values(i * 1.5, i % 3 == 0 ? "F" : "M"));
+            }
+            assertTrue(writing.await(10, TimeUnit.SECONDS));
+            database.setCheckpointInterval(0);
+            // not held up by the snapshot being written
+            ExecutorService client = Executors.newSingleThreadExecutor();
+            client.submit(() -> {
+                        randomizer.placeSubject("during", values(7, "F"));
+                        randomizer.removeSubject("s3");
+                        return null;
+                    })
+                    .get(10, TimeUnit.SECONDS);
+            client.shutdown();
+        } finally {
+            finish.countDown();
+        }
+        database.awaitCheckpoint();
+        assertTrue(database.snapshotFile.exists());
+        randomizer.close();
+        // only the changes after those in the snapshot are left in the log, ending with those made meanwhile
+        long through;
+        try (DataInputStream in = new DataInputStream(new FileInputStream(database.snapshotFile))) {
+            in.readInt();
+            in.readInt();
+            through = in.readLong();
+        }
+        String[] lines = new String(Files.readAllBytes(logFile().toPath()), StandardCharsets.UTF_8).split("\n");
+        assertEquals(database.lastSequenceNumber - through, lines.length);
+        assertTrue(lines[0].startsWith(through + 1 + "\t"));
+        assertTrue(lines[lines.length - 1].endsWith("\tREMOVE\ts3"));
+
+        Randomizer restarted = start(0);
+        assertSameSubjects(randomizer, restarted);
+        assertFalse(restarted.checkID("s3"));
+        assertTrue(restarted.checkID("during"));
+        restarted.close();
+    }
+
+    @Test
+    public void reloadSkipsChangesTheSnapshotCovers() throws Exception {
+        Randomizer randomizer = start(0);
+        makeChanges(randomizer);
+        randomizer.close();
+        byte[] log = Files.readAllBytes(logFile().toPath());
+        long lastChange = database.lastSequenceNumber;
+
+        // replaying all of those changes is due for a checkpoint, which empties the log
+        Randomizer checkpointed = start(1);
+        checkpointed.close();
+        assertTrue(database.snapshotFile.exists());
+        assertEquals(0, logFile().length());
+
+        // as if the program stopped after writing the snapshot but before emptying the log
+        Files.write(logFile().toPath(), log);
+        Randomizer restarted = start(0);
+        assertSameSubjects(randomizer, restarted);
+        assertEquals(0, database.recordsSinceCheckpoint);
+        assertEquals(lastChange, database.lastSequenceNumber);
+        restarted.putSubject("after", values(9, "M"));
+        assertEquals(lastChange + 1, database.lastSequenceNumber);
+        restarted.close();
+
+        Randomizer again = start(0);
+        assertTrue(again.checkID("after"));
+        assertEquals(restarted.subjectsByID.size(), again.subjectsByID.size());
+        again.close();
+    }
+
+    @Test
+    public void replaysExactlyTheFeaturesThatWereGiven() throws Exception {
+        Randomizer randomizer = start(0);
+        double[] scores = {1.0 / 3, 1e-7, 123456.123456789, -2.5e10, Math.PI};
+        for (int i = 0; i < scores.length; i++) {
+            randomizer.placeSubject("s" + i, values(scores[i], i % 2 == 0 ? "F" : "M"));
+        }
+        randomizer.close();
+
+        // from the log alone
+        Randomizer replayed = start(0);
+        assertSameSubjects(randomizer, replayed);
+        replayed.close();
+        // from a snapshot of what was replayed, and nothing in the log
+        Randomizer checkpointed = start(1);
+        checkpointed.close();
+        assertEquals(0, logFile().length());
+        Randomizer restored = start(0);
+        assertSameSubjects(randomizer, restored);
+        for (int i = 0; i < scores.length; i++) {
+            assertEquals(scores[i], restored.subjectsByID.get("s" + i).getFeatures().get("score"));
+        }
+        restored.close();
+    }
+}
@@ -0,0 +1,138 @@
+package org.sleepandcognition.prosrand;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/* Paging through a randomizer's subjects (Randomizer.subjectsAfter()) while they arrive and are revised */
+public class SubjectPagingTest {
+    Randomizer randomizer;
+
+    @BeforeEach
+    public void startRandomizer() throws Exception {
+        VariableSpec score = new VariableSpec();
+        score.setName("score");
+        score.setType("continuous");
+        ProtocolSpec spec = new ProtocolSpec();
+        spec.setGroupNames(Arrays.asList("A", "B"));
+        spec.setVariableSpec(Arrays.asList(score));
+        spec.setAllowRevision(true);
+        randomizer = new BalancingRandomizer(spec, new SubjectDatabase());
+        randomizer.setVerbosity(-1);
+    }
+
+    @AfterEach
+    public void closeRandomizer() throws Exception {
+        randomizer.close();
+    }
+
+    private void put(String id, double score) throws Exception {
+        Hashtable<String, String> values = new Hashtable<String, String>();
+        values.put("score", Double.toString(score));
+        randomizer.putSubject(id, values);
+    }
+
+    private static List<String> ids(List<SubjectRecord> records) {
+        ArrayList<String> ids = new ArrayList<String>();
+        for (SubjectRecord record : records) {
+            ids.add(record.getId());
+        }
+        return ids;
+    }
+
+    @Test
+    public void aRevisedSubjectComesAgainAfterTheCursor() throws Exception {
+        put("s1", 1.0);
+        put("s2", 2.0);
+        put("s3", 3.0);
+        SubjectPage first = randomizer.subjectsAfter(0, 2);
+        assertEquals(Arrays.asList("s1", "s2"), ids(first.getSubjects()));
+        assertEquals(2L, first.getNext());
+        put("s1", 10.0);
+        SubjectPage second = randomizer.subjectsAfter(first.getNext(), 2);
+        assertEquals(Arrays.asList("s3", "s1"), ids(second.getSubjects()));
+        assertEquals(10.0, second.getSubjects().get(1).getFeatures().get("score"));
+        assertEquals(4L, second.getSubjects().get(1).getArrivalNumber());
+        assertNull(second.getNext());
+        // once each, in their new order
+        assertEquals(Arrays.asList("s2", "s3", "s1"), ids(randomizer.snapshotSubjects()));
+    }
+
+    @Test
+    public void pagesCarryOnFromTheCursorWhileSubjectsArriveAndAreRevised() throws Exception {
+        int existing = 200;
+        int arriving = 300;
+        for (int i = 0; i < existing; i++) {
+            put("old" + i, i);
+        }
+        HashSet<String> revised = new HashSet<String>();
+        for (int i = 0; i < existing; i += 3) {
+            revised.add("old" + i);
+        }
+        ExecutorService writer = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> writing = writer.submit(() -> {
+                for (int i = 0; i < arriving; i++) {
+                    put("new" + i, i);
+                    if (i % 3 == 0 && i / 3 * 9 < existing) {
+                        put("old" + (i / 3 * 9), -i);
+                    }
+                    if (i % 9 == 0) {
+                        Thread.sleep(1);
+                    }
+                }
+                for (String id : revised) {
+                    put(id, -1.0);
+                }
+                return null;
+            });
+
+            HashMap<String, Integer> seen = new HashMap<String, Integer>();
+            long cursor = 0;
+            boolean writerDone = false;
+            while (true) {
+                // once the writer is done, the rest of the way to the end is all there is to see
+                writerDone = writerDone || writing.isDone();
+                SubjectPage page = randomizer.subjectsAfter(cursor, 7);
+                for (SubjectRecord record : page.getSubjects()) {
+                    assertTrue(record.getArrivalNumber() > cursor, "went back past the cursor");
+                    cursor = record.getArrivalNumber();
+                    seen.merge(record.getId(), 1, Integer::sum);
+                }
+                if (page.getNext() == null) {
+                    if (writerDone) {
+                        break;
+                    }
+                } else {
+                    assertEquals(cursor, page.getNext());
+                }
+            }
+            writing.get(10, TimeUnit.SECONDS);
+
+            // nobody missed, and only a revised subject more than once
+            assertEquals(existing + arriving, seen.size());
+            for (String id : seen.keySet()) {
+                if (seen.get(id) > 1) {
+                    assertTrue(revised.contains(id), id + " seen " + seen.get(id) + " times");
+                }
+            }
+            assertEquals(existing + arriving, randomizer.snapshotSubjects().size());
+        } finally {
+            writer.shutdownNow();
+        }
+    }
+}
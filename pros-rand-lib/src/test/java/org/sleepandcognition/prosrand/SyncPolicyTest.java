@@ -0,0 +1,287 @@
+package org.sleepandcognition.prosrand;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class SyncPolicyTest {
+    /*
+     * Takes its time forcing each batch to disk (and if there is a gate, waits for it to open first), and keeps count
+     * of the batches and the last change forced
+     */
+    static class SlowLogDatabase extends SubjectLogDatabase {
+        AtomicInteger flushes = new AtomicInteger();
+        volatile long forcedThrough;
+        volatile CountDownLatch gate;
+
+        SlowLogDatabase(File directory) {
+            super(new File(directory, "subjects.log").getPath(), new File(directory, "subjects.txt").getPath());
+        }
+
+        @Override
+        protected void writeAndForce(byte[] records) throws IOException {
+            try {
+                if (gate != null) {
+                    gate.await();
+                }
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            super.writeAndForce(records);
+            flushes.incrementAndGet();
+            // the sequence number that starts the last line
+            String text = new String(records, StandardCharsets.UTF_8);
+            String lastLine = text.substring(text.lastIndexOf('\n', text.length() - 2) + 1);
+            forcedThrough = Long.parseLong(lastLine.substring(0, lastLine.indexOf('\t')));
+        }
+    }
+
+    @TempDir
+    File directory;
+
+    SlowLogDatabase database;
+    VariableSet variables;
+
+    private void open(SyncPolicy policy, long maxDelayMillis) throws IOException {
+        VariableSpec score = new VariableSpec();
+        score.setName("score");
+        score.setType("continuous");
+        variables = new VariableSet(Arrays.asList(score));
+        database = new SlowLogDatabase(directory);
+        database.setSyncPolicy(policy, maxDelayMillis);
+        database.ReadSubjectsIntoGroups(variables, new HashMap<String, InterventionGroup>());
+    }
+
+    private Randomizer startRandomizer(SyncPolicy policy) throws Exception {
+        VariableSpec score = new VariableSpec();
+        score.setName("score");
+        score.setType("continuous");
+        ProtocolSpec spec = new ProtocolSpec();
+        spec.setGroupNames(Arrays.asList("A", "B"));
+        spec.setVariableSpec(Arrays.asList(score));
+        spec.setAlgorithm("Balanced");
+        spec.setAllowRevision(true);
+        database = new SlowLogDatabase(directory);
+        database.setSyncPolicy(policy, 0);
+        Randomizer randomizer = new BalancingRandomizer(spec, database);
+        randomizer.setVerbosity(-1);
+        return randomizer;
+    }
+
+    private static Hashtable<String, String> score(String value) {
+        Hashtable<String, String> values = new Hashtable<String, String>();
+        values.put("score", value);
+        return values;
+    }
+
+    @AfterEach
+    public void close() throws IOException {
+        database.Close();
+    }
+
+    /* Records putting one subject; as under the randomizer's lock, only one thread records changes at a time */
+    private long put(String id) throws IOException {
+        MultiDimSubject subject = new MultiDimSubject(id, variables, new double[] {1.0});
+        List<SubjectChange> changes = Collections.singletonList(new SubjectChange(SubjectChange.Kind.PUT, subject));
+        synchronized (database) {
+            return database.RecordChanges(changes, new ConcurrentHashMap<String, MultiDimSubject>(), variables);
+        }
+    }
+
+    @Test
+    public void awaitDurableReturnsOnlyOnceTheTicketIsForced() throws Exception {
+        open(SyncPolicy.GROUP_COMMIT, 0);
+        for (int i = 0; i < 5; i++) {
+            long ticket = put("s" + i);
+            database.AwaitDurable(ticket);
+            assertTrue(database.forcedThrough >= ticket);
+        }
+    }
+
+    @Test
+    public void concurrentWritersShareOneFlush() throws Exception {
+        open(SyncPolicy.GROUP_COMMIT, 500);
+        int writers = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(writers);
+        try {
+            CountDownLatch ready = new CountDownLatch(writers);
+            CountDownLatch go = new CountDownLatch(1);
+            Future<?>[] results = new Future<?>[writers];
+            for (int i = 0; i < writers; i++) {
+                String id = "s" + i;
+                results[i] = executor.submit(() -> {
+                    ready.countDown();
+                    go.await();
+                    long ticket = put(id);
+                    database.AwaitDurable(ticket);
+                    assertTrue(database.forcedThrough >= ticket);
+                    return null;
+                });
+            }
+            ready.await();
+            go.countDown();
+            for (Future<?> result : results) {
+                result.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(1, database.flushes.get());
+        assertEquals(writers, database.forcedThrough);
+    }
+
+    @Test
+    public void everyWriteForcesEachBatchBeforeReturning() throws Exception {
+        open(SyncPolicy.EVERY_WRITE, 0);
+        for (int i = 0; i < 3; i++) {
+            long ticket = put("s" + i);
+            assertEquals(ticket, database.forcedThrough);
+        }
+        assertEquals(3, database.flushes.get());
+    }
+
+    @Test
+    public void subscribersHearOfAChangeOnlyOnceItIsForced() throws Exception {
+        Randomizer randomizer = startRandomizer(SyncPolicy.GROUP_COMMIT);
+        ChangeFeed feed = new ChangeFeed(ChangeFeed.DEFAULT_CAPACITY);
+        randomizer.setChangeFeed(feed);
+        String start = feed.latest();
+        database.gate = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Hashtable<String, String> values = new Hashtable<String, String>();
+            values.put("score", "1.0");
+            Future<String> placed = executor.submit(() -> randomizer.putOrPlaceSubject("s1", values, false));
+            // saved, but not yet on disk
+            assertTrue(feed.eventsAfter(start, 10, 300).isEmpty());
+            assertFalse(placed.isDone());
+            database.gate.countDown();
+            String groupName = placed.get(10, TimeUnit.SECONDS);
+            assertEquals(2, database.forcedThrough);
+            List<ChangeEvent> events = feed.eventsAfter(start, 10, 0);
+            assertEquals(2, events.size());
+            assertEquals("put", events.get(0).kind);
+            assertEquals(groupName, events.get(1).groupName);
+        } finally {
+            database.gate.countDown();
+            executor.shutdown();
+        }
+        randomizer.close();
+    }
+
+    @Test
+    public void readersSeeAChangeOnlyOnceItIsForced() throws Exception {
+        Randomizer randomizer = startRandomizer(SyncPolicy.GROUP_COMMIT);
+        database.gate = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<String> placed = executor.submit(() -> randomizer.putOrPlaceSubject("s1", score("1.0"), false));
+            Thread.sleep(300);
+            // saved, but not yet on disk
+            assertFalse(placed.isDone());
+            assertFalse(randomizer.checkID("s1"));
+            assertTrue(randomizer.snapshotSubjects().isEmpty());
+            assertTrue(randomizer.subjectsAfter(0, 10).getSubjects().isEmpty());
+            database.gate.countDown();
+            String groupName = placed.get(10, TimeUnit.SECONDS);
+            assertTrue(randomizer.checkID("s1"));
+            assertEquals(groupName, randomizer.snapshotSubjects().get(0).getGroupName());
+            assertEquals(groupName, randomizer.getGroup("s1"));
+        } finally {
+            database.gate.countDown();
+            executor.shutdown();
+        }
+        randomizer.close();
+    }
+
+    @Test
+    public void aRevisedSubjectStaysAsItWasUntilTheRevisionIsForced() throws Exception {
+        Randomizer randomizer = startRandomizer(SyncPolicy.GROUP_COMMIT);
+        String groupName = randomizer.putOrPlaceSubject("s1", score("1.0"), false);
+        database.gate = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<String> revised = executor.submit(() -> randomizer.putOrPlaceSubject("s1", score("5.0"), true));
+            Thread.sleep(300);
+            assertFalse(revised.isDone());
+            // still there, as it was before, not missing while the revision is on its way to the disk
+            assertTrue(randomizer.checkID("s1"));
+            // (were it the revision, it would be assigned again, and wait for the disk)
+            assertEquals(groupName, executor.submit(() -> randomizer.getGroup("s1")).get(1, TimeUnit.SECONDS));
+            List<SubjectRecord> records = randomizer.snapshotSubjects();
+            assertEquals(1, records.size());
+            assertEquals(1.0, records.get(0).getFeatures().get("score"));
+            assertEquals(groupName, records.get(0).getGroupName());
+            // nor does paging stop at it
+            SubjectPage page = randomizer.subjectsAfter(0, 10);
+            assertEquals(1, page.getSubjects().size());
+            assertEquals(1.0, page.getSubjects().get(0).getFeatures().get("score"));
+            assertEquals(null, page.getNext());
+            database.gate.countDown();
+            revised.get(10, TimeUnit.SECONDS);
+            assertTrue(randomizer.checkID("s1"));
+            records = randomizer.snapshotSubjects();
+            assertEquals(1, records.size());
+            assertEquals(5.0, records.get(0).getFeatures().get("score"));
+            // waiting to be assigned again
+            assertEquals(null, records.get(0).getGroupName());
+        } finally {
+            database.gate.countDown();
+            executor.shutdown();
+        }
+        randomizer.close();
+    }
+
+    @Test
+    public void aRemovedSubjectStaysUntilTheRemovalIsForced() throws Exception {
+        Randomizer randomizer = startRandomizer(SyncPolicy.GROUP_COMMIT);
+        String groupName = randomizer.putOrPlaceSubject("s1", score("1.0"), false);
+        database.gate = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<?> removed = executor.submit(() -> {
+                randomizer.removeSubject("s1");
+                return null;
+            });
+            Thread.sleep(300);
+            assertFalse(removed.isDone());
+            // still there, as it was, while the removal is on its way to the disk
+            assertTrue(randomizer.checkID("s1"));
+            assertFalse(randomizer.isCommitted("s1"));
+            assertEquals(groupName, executor.submit(() -> randomizer.getGroup("s1")).get(1, TimeUnit.SECONDS));
+            assertEquals(1, randomizer.snapshotSubjects().size());
+            SubjectPage page = randomizer.subjectsAfter(0, 10);
+            assertEquals(1, page.getSubjects().size());
+            assertEquals(groupName, page.getSubjects().get(0).getGroupName());
+            database.gate.countDown();
+            removed.get(10, TimeUnit.SECONDS);
+            assertFalse(randomizer.checkID("s1"));
+            assertTrue(randomizer.snapshotSubjects().isEmpty());
+            assertTrue(randomizer.subjectsAfter(0, 10).getSubjects().isEmpty());
+        } finally {
+            database.gate.countDown();
+            executor.shutdown();
+        }
+        randomizer.close();
+    }
+}
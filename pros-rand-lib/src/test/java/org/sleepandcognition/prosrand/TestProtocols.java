@@ -0,0 +1,73 @@
+package org.sleepandcognition.prosrand;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * The protocol that most tests here start: groups A, B and C, and two variables, a continuous "score" and a
+ * categorical "sex" (F or M). Each test gives only what it needs different: the algorithm, whether revision is
+ * allowed, the score's cut points, and the database.
+ */
+class TestProtocols {
+    static ProtocolSpec spec(String algorithm, boolean allowRevision) {
+        return spec(algorithm, allowRevision, null);
+    }
+
+    /* scoreCutPoints: as the Minimization algorithm needs; null for none */
+    static ProtocolSpec spec(String algorithm, boolean allowRevision, List<Double> scoreCutPoints) {
+        VariableSpec score = new VariableSpec();
+        score.setName("score");
+        score.setType("continuous");
+        score.setCutPoints(scoreCutPoints);
+        VariableSpec sex = new VariableSpec();
+        sex.setName("sex");
+        sex.setType("categorical");
+        sex.setLevels(Arrays.asList("F", "M"));
+        ProtocolSpec spec = new ProtocolSpec();
+        spec.setGroupNames(Arrays.asList("A", "B", "C"));
+        spec.setVariableSpec(Arrays.asList(score, sex));
+        spec.setAlgorithm(algorithm);
+        spec.setAllowRevision(allowRevision);
+        return spec;
+    }
+
+    /* A randomizer of the spec's algorithm, on the given database, logging only warnings */
+    static Randomizer start(ProtocolSpec spec, SubjectDatabase database) throws Exception {
+        Randomizer randomizer;
+        if (spec.getAlgorithm().equals("Minimization")) {
+            randomizer = new MinimizationRandomizer(spec, database);
+        } else if (spec.getAlgorithm().equals("Alternating")) {
+            randomizer = new AlternatingRandomizer(spec, database);
+        } else {
+            randomizer = new BalancingRandomizer(spec, database);
+        }
+        randomizer.setVerbosity(-1);
+        return randomizer;
+    }
+
+    static Map<String, String> values(double score, String sex) {
+        return values(Double.toString(score), sex);
+    }
+
+    /* As a client would give them; score may be anything, and sex null to leave it out */
+    static Map<String, String> values(String score, String sex) {
+        Hashtable<String, String> values = new Hashtable<String, String>();
+        values.put("score", score);
+        if (sex != null) {
+            values.put("sex", sex);
+        }
+        return values;
+    }
+
+    /* The IDs of the subjects in the group, in the order it lists them */
+    static List<String> members(Randomizer randomizer, String groupName) {
+        ArrayList<String> ids = new ArrayList<String>();
+        for (MultiDimSubject subject : randomizer.groups.get(groupName).getSubjects()) {
+            ids.add(subject.getId());
+        }
+        return ids;
+    }
+}
@@ -105,7 +105,11 @@ def run_test(protocol_name,
     assert (response == "?")
 
     write(process, "HELLO RAND!")
-    assert (read(process) == "HI CLIENT! v5")
+    assert (read(process) == "HI CLIENT! v9")
+
+    # Changes can only be subscribed to over the network
+    write(process, "SUBSCRIBE")
+    assert (read(process) == "?")
 
     write(process, "EXISTS s01")
     assert read(process) == "NO"